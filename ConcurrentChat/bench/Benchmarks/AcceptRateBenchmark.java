@@ -0,0 +1,100 @@
+package Benchmarks;
+
+import Server.ConcurrentServer;
+import Server.ServerConfig;
+import Server.ServerMode;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Handler;
+import java.util.logging.Logger;
+
+/**
+ * Measures how many connections per second the server accepts and answers with its name prompt, with the
+ * synchronous file logging and with the {@link Server.AsyncLogHandler}. Every accepted connection logs a few
+ * INFO lines, so the difference is the cost of log I/O on the accept and session threads. Console output
+ * goes to a discarding stream in both cases.
+ * <p>
+ * Usage: {@code AcceptRateBenchmark [connections] [parallelism]}
+ */
+public class AcceptRateBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 5_000;
+        int parallelism = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+        PrintStream out = System.out;
+        // the root console handler keeps the stream it finds when logging starts
+        System.setErr(new PrintStream(OutputStream.nullOutputStream()));
+        Path directory = Files.createTempDirectory("accept-bench");
+
+        out.printf("%-9s %-6s %14s%n", "mode", "log", "accepts/s");
+        int port = 9201;
+        for (ServerMode mode : new ServerMode[]{ServerMode.VIRTUAL, ServerMode.NIO}) {
+            for (boolean async : new boolean[]{false, true}) {
+                // first pass warms up, second is reported
+                run(directory, mode, async, port++, connections / 5, parallelism);
+                double rate = run(directory, mode, async, port++, connections, parallelism);
+                out.printf("%-9s %-6s %14.0f%n", mode, async ? "async" : "sync", rate);
+            }
+        }
+        System.exit(0);
+    }
+
+    private static double run(Path directory, ServerMode mode, boolean async, int port, int connections, int parallelism)
+            throws Exception {
+        Path runDirectory = directory.resolve(mode + "-" + port);
+        ServerConfig config = new ServerConfig()
+                .set("mode", mode.name())
+                .set("console", "false")
+                .set("journalDir", runDirectory.resolve("history").toString())
+                .set("channelDir", runDirectory.resolve("channels").toString())
+                .set("logFile", runDirectory.resolve("server.log").toString())
+                .set("asyncLogging", String.valueOf(async));
+        ConcurrentServer server = new ConcurrentServer(port, config);
+        server.setupLogger();
+        Thread serverThread = new Thread(server::run, "server-" + port);
+        serverThread.setDaemon(true);
+        serverThread.start();
+        Thread.sleep(300);
+
+        AtomicInteger next = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(parallelism);
+        long start = System.nanoTime();
+        for (int i = 0; i < parallelism; i++) {
+            Thread.ofVirtual().start(() -> {
+                while (next.getAndIncrement() < connections) {
+                    try (Socket socket = new Socket("localhost", port)) {
+                        InputStream inputStream = socket.getInputStream();
+                        int b;
+                        while ((b = inputStream.read()) != -1 && b != '\n') {
+                            // the name prompt
+                        }
+                    } catch (IOException e) {
+                        failed.incrementAndGet();
+                    }
+                }
+                done.countDown();
+            });
+        }
+        done.await();
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        Logger logger = server.getLogger();
+        for (Handler handler : logger.getHandlers()) {
+            logger.removeHandler(handler);
+            handler.close();
+        }
+        if (failed.get() > 0) {
+            System.out.println(failed.get() + " connections failed");
+        }
+        return (connections - failed.get()) / seconds;
+    }
+}
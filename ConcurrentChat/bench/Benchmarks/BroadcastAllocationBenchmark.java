@@ -0,0 +1,114 @@
+package Benchmarks;
+
+import Server.ClientConnection;
+import Server.ClientHandler;
+import Server.ConcurrentServer;
+import Server.Frame;
+import Server.OutboundQueue;
+import Server.ServerConfig;
+import utils.ConsoleColor;
+
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Measures heap allocated per broadcast when every recipient encodes its own copy of the message versus
+ * when one shared {@link Frame} is fanned out. Connections are in-memory stubs that drain their queue on
+ * the calling thread, so all allocation is attributed to the broadcasting thread.
+ * <p>
+ * Usage: {@code BroadcastAllocationBenchmark [iterations]}
+ */
+public class BroadcastAllocationBenchmark {
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    public static void main(String[] args) {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 20_000;
+        Logger.getLogger(ConcurrentServer.class.getName()).setLevel(Level.WARNING);
+
+        System.out.printf("%-10s %22s %22s%n", "recipients", "per-recipient B/msg", "encode-once B/msg");
+        for (int recipients : new int[]{10, 100, 1000}) {
+            ConcurrentServer server = new ConcurrentServer(0, new ServerConfig().set("console", "false"));
+            List<ClientHandler> handlers = new ArrayList<>();
+            for (int i = 0; i <= recipients; i++) {
+                ClientHandler clientHandler = new ClientHandler(new DiscardConnection(), server, server.getLogger());
+                server.trackClient(clientHandler);
+                handlers.add(clientHandler);
+            }
+            ClientHandler sender = handlers.get(0);
+            String formattedMessage = ConsoleColor.LIGHT_BLUE.getCode() + "sender: " + ConsoleColor.DEFAULT.getCode()
+                    + "a typical chat message of a few dozen characters";
+
+            Runnable perRecipient = () -> {
+                for (ClientHandler clientHandler : handlers) {
+                    if (clientHandler != sender) {
+                        clientHandler.sendMessage(formattedMessage);
+                    }
+                }
+            };
+            Runnable encodeOnce = () -> server.deliverToAll(Frame.ofLine(formattedMessage), sender);
+
+            long before = measure(perRecipient, iterations);
+            long after = measure(encodeOnce, iterations);
+            System.out.printf("%-10d %22d %22d%n", recipients, before, after);
+        }
+    }
+
+    private static long measure(Runnable broadcast, int iterations) {
+        for (int i = 0; i < iterations / 4; i++) {
+            broadcast.run();
+        }
+        long threadId = Thread.currentThread().threadId();
+        long start = THREADS.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < iterations; i++) {
+            broadcast.run();
+        }
+        return (THREADS.getThreadAllocatedBytes(threadId) - start) / iterations;
+    }
+
+    /**
+     * Drains and discards queued frames on the signalling thread.
+     */
+    static class DiscardConnection implements ClientConnection {
+
+        private boolean closed;
+
+        @Override
+        public void signalWrite(OutboundQueue outbound) {
+            while (outbound.poll() != null) {
+                // discard
+            }
+        }
+
+        @Override
+        public void flushAndClose(OutboundQueue outbound, long timeoutMillis) {
+            outbound.clear();
+            closed = true;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+
+        @Override
+        public boolean isClosed() {
+            return closed;
+        }
+
+        @Override
+        public InetAddress getInetAddress() {
+            return InetAddress.getLoopbackAddress();
+        }
+
+        @Override
+        public int getPort() {
+            return 0;
+        }
+    }
+}
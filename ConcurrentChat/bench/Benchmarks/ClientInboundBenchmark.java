@@ -0,0 +1,197 @@
+package Benchmarks;
+
+import Client.BinaryFrameReader;
+import Client.ChatClient;
+import Client.ChatMessage;
+import Client.ConsoleListener;
+import Client.MessageListener;
+import utils.BinaryProtocol;
+import utils.ConsoleColor;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Inbound messages per second a client can take in and show, from a local socket that sends a fixed stream of
+ * chat messages as fast as the client reads them. Compares the former console client, a blocking reader
+ * thread that prints each message with an auto-flushing {@code println}, with {@link ChatClient} feeding a
+ * {@link ConsoleListener}, and with {@link ChatClient} alone, which only counts. Console output goes to a
+ * temporary file so the terminal does not set the pace.
+ * <p>
+ * Usage: {@code ClientInboundBenchmark [messages] [senders] [rounds]}
+ */
+public class ClientInboundBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+        int senders = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+        ByteArrayOutputStream text = new ByteArrayOutputStream();
+        ByteArrayOutputStream binary = new ByteArrayOutputStream();
+        binary.write(BinaryProtocol.MAGIC);
+        Set<Integer> introduced = new HashSet<>();
+        ConsoleColor[] colors = ConsoleColor.values();
+        for (int i = 0; i < messages; i++) {
+            int senderId = 1 + i % senders;
+            ConsoleColor color = colors[senderId % colors.length];
+            String name = "user" + senderId;
+            String message = "message " + i + " with a typical length of a few dozen characters";
+            text.write((color.getCode() + name + ": " + ConsoleColor.DEFAULT.getCode() + message + "\n").getBytes(StandardCharsets.UTF_8));
+            if (introduced.add(senderId)) {
+                writeFrame(binary, BinaryProtocol.USER, senderId, color.ordinal(), name);
+            }
+            writeFrame(binary, BinaryProtocol.CHAT, senderId, -1, message);
+        }
+
+        File console = File.createTempFile("client-inbound", ".out");
+        console.deleteOnExit();
+        System.out.printf("%d messages from %d senders, best of %d rounds%n", messages, senders, rounds);
+        System.out.printf("%-34s %16s %16s%n", "client", "text msg/s", "binary msg/s");
+        String[] names = {"blocking reader, println per line", "ChatClient + ConsoleListener", "ChatClient, no output"};
+        for (int client = 0; client < names.length; client++) {
+            long textRate = 0;
+            long binaryRate = 0;
+            for (int round = 0; round < rounds; round++) {
+                textRate = Math.max(textRate, run(client, text.toByteArray(), false, messages, console));
+                binaryRate = Math.max(binaryRate, run(client, binary.toByteArray(), true, messages, console));
+            }
+            System.out.printf("%-34s %16d %16d%n", names[client], textRate, binaryRate);
+        }
+    }
+
+    private static void writeFrame(ByteArrayOutputStream out, byte type, int senderId, int color, String text) {
+        byte[] textBytes = text.getBytes(StandardCharsets.UTF_8);
+        int length = 1 + BinaryProtocol.varintSize(senderId) + (color >= 0 ? 1 : 0) + textBytes.length;
+        byte[] frame = new byte[BinaryProtocol.varintSize(length) + length];
+        int position = BinaryProtocol.putVarint(frame, 0, length);
+        frame[position++] = type;
+        position = BinaryProtocol.putVarint(frame, position, senderId);
+        if (color >= 0) {
+            frame[position++] = (byte) color;
+        }
+        System.arraycopy(textBytes, 0, frame, position, textBytes.length);
+        out.write(frame, 0, frame.length);
+    }
+
+    /**
+     * Serves {@code stream} to one client and times it from connecting until it has seen the end.
+     *
+     * @return messages per second
+     */
+    private static long run(int client, byte[] stream, boolean binary, int messages, File console) throws Exception {
+        try (ServerSocket serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+             OutputStream consoleFile = new FileOutputStream(console)) {
+            Thread server = new Thread(() -> {
+                try (Socket socket = serverSocket.accept()) {
+                    if (binary && socket.getInputStream().read() != BinaryProtocol.MAGIC) {
+                        throw new IOException("Client did not ask for binary frames");
+                    }
+                    socket.getOutputStream().write(stream);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            });
+            server.start();
+            long start = System.nanoTime();
+            long received = client == 0 ? readBlocking(serverSocket.getLocalPort(), binary, consoleFile)
+                    : readChatClient(serverSocket.getLocalPort(), binary, client == 1 ? new ConsoleListener(consoleFile) : null);
+            long elapsed = System.nanoTime() - start;
+            server.join();
+            if (received != messages) {
+                throw new IllegalStateException("Received " + received + " of " + messages + " messages");
+            }
+            return (long) (messages * 1e9 / elapsed);
+        }
+    }
+
+    /**
+     * The console client as it was: a reader on a blocking socket and a {@code println} per message on a
+     * stream that flushes every line, as {@code System.out} does.
+     */
+    private static long readBlocking(int port, boolean binary, OutputStream consoleFile) throws IOException {
+        PrintStream out = new PrintStream(new BufferedOutputStream(consoleFile, 8192), true);
+        long count = 0;
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            if (!binary) {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    out.println(line);
+                    count++;
+                }
+                return count;
+            }
+            socket.getOutputStream().write(BinaryProtocol.MAGIC);
+            InputStream inputStream = new BufferedInputStream(socket.getInputStream());
+            BinaryFrameReader reader = new BinaryFrameReader(inputStream);
+            reader.awaitSwitch(out::println);
+            Map<Integer, String> senders = new HashMap<>();
+            ConsoleColor[] colors = ConsoleColor.values();
+            while (reader.next()) {
+                if (reader.getType() == BinaryProtocol.USER) {
+                    senders.put(reader.getSenderId(), colors[reader.getColor()].getCode() + reader.getText());
+                    continue;
+                }
+                out.println(senders.get(reader.getSenderId()) + ": " + ConsoleColor.DEFAULT.getCode() + reader.getText());
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @param console where messages are shown, or null to count them only
+     */
+    private static long readChatClient(int port, boolean binary, MessageListener console) throws Exception {
+        long[] count = {0};
+        CountDownLatch disconnected = new CountDownLatch(1);
+        MessageListener listener = new MessageListener() {
+            @Override
+            public void onMessage(ChatMessage message) {
+                if (console != null) {
+                    console.onMessage(message);
+                }
+                count[0]++;
+            }
+
+            @Override
+            public void onBatchEnd() {
+                if (console != null) {
+                    console.onBatchEnd();
+                }
+            }
+
+            @Override
+            public void onDisconnected(IOException cause) {
+                if (console != null) {
+                    console.onDisconnected(cause);
+                }
+                disconnected.countDown();
+            }
+        };
+        ChatClient client = new ChatClient(InetAddress.getLoopbackAddress().getHostAddress(), port, binary, listener);
+        client.connect();
+        disconnected.await();
+        client.close();
+        return count[0];
+    }
+}
@@ -0,0 +1,188 @@
+package Benchmarks;
+
+import Server.ConcurrentServer;
+import Server.ServerConfig;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Starts three clustered nodes on localhost, checks that names, whispers and kicks work across them and
+ * measures how long a broadcast from a client on the first node takes to reach clients on the other two.
+ * <p>
+ * Usage: {@code ClusterLatencyTest [clientsPerNode] [broadcasts]}, run from a scratch directory since each
+ * node writes its history under {@code logs/}.
+ */
+public class ClusterLatencyTest {
+
+    private static final int NODES = 3;
+    private static final int CLIENT_PORT = 9301;
+    private static final int CLUSTER_PORT = 9401;
+
+    public static void main(String[] args) throws Exception {
+        int clientsPerNode = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+        int broadcasts = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        Logger.getLogger(ConcurrentServer.class.getName()).setLevel(Level.WARNING);
+
+        StringBuilder peers = new StringBuilder();
+        for (int i = 0; i < NODES; i++) {
+            peers.append(i > 0 ? "," : "").append("localhost:").append(CLUSTER_PORT + i);
+        }
+        ConcurrentServer[] nodes = new ConcurrentServer[NODES];
+        for (int i = 0; i < NODES; i++) {
+            ServerConfig config = new ServerConfig()
+                    .set("mode", "virtual")
+                    .set("console", "false")
+                    .set("messageRate", "0")
+                    .set("nodeId", "node" + i)
+                    .set("clusterPort", Integer.toString(CLUSTER_PORT + i))
+                    .set("clusterPeers", peers.toString())
+                    .set("journalDir", "logs/node" + i + "/chathistory")
+                    .set("channelDir", "logs/node" + i + "/channels");
+            nodes[i] = new ConcurrentServer(CLIENT_PORT + i, config);
+            Thread serverThread = new Thread(nodes[i]::run, "node" + i);
+            serverThread.setDaemon(true);
+            serverThread.start();
+        }
+        long meshStart = System.nanoTime();
+        for (ConcurrentServer node : nodes) {
+            while (node.getCluster() == null || node.getCluster().peers().size() < NODES - 1) {
+                Thread.sleep(10);
+            }
+        }
+        System.out.printf("mesh up in %d ms%n", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - meshStart));
+
+        String marker = "cluster-" + System.nanoTime() + " ";
+        TestClient sender = TestClient.join(CLIENT_PORT, "sender", marker);
+        List<List<TestClient>> receivers = new ArrayList<>();
+        for (int node = 1; node < NODES; node++) {
+            List<TestClient> clients = new ArrayList<>();
+            for (int i = 0; i < clientsPerNode; i++) {
+                clients.add(TestClient.join(CLIENT_PORT + node, "r" + node + "-" + i, marker));
+            }
+            receivers.add(clients);
+        }
+
+        TestClient duplicate = TestClient.connect(CLIENT_PORT + 2, marker);
+        duplicate.send("Sender");
+        System.out.println("duplicate name on another node refused: " + duplicate.await("Enter another name", 2000));
+
+        TestClient whisperTarget = receivers.get(1).get(0);
+        long whisperStart = System.nanoTime();
+        sender.send("@" + whisperTarget.name + ": psst");
+        boolean whispered = whisperTarget.await("psst", 2000);
+        System.out.printf("cross-node whisper delivered: %s (%d us)%n", whispered, (System.nanoTime() - whisperStart) / 1000);
+
+        for (int i = 0; i < broadcasts; i++) {
+            sender.send(marker + System.nanoTime());
+            Thread.sleep(5);
+        }
+        System.out.printf("%-6s %8s %10s %10s %10s%n", "node", "received", "p50 (us)", "p99 (us)", "max (us)");
+        for (int node = 1; node < NODES; node++) {
+            List<TestClient> clients = receivers.get(node - 1);
+            long deadline = System.currentTimeMillis() + 5000;
+            while (received(clients) < (long) clients.size() * broadcasts && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            long[] sorted = clients.stream().flatMap(c -> c.latencies.stream()).mapToLong(Long::longValue).sorted().toArray();
+            System.out.printf("node%-2d %5d/%-5d %10s %10s %10s%n", node, sorted.length, clients.size() * broadcasts,
+                    percentile(sorted, 0.50), percentile(sorted, 0.99), percentile(sorted, 1.0));
+        }
+
+        TestClient kicked = receivers.get(0).get(0);
+        nodes[0].kickClient(kicked.name + "127.0.0.1" + kicked.socket.getLocalPort());
+        System.out.println("kick from another node delivered: " + kicked.await("reason: KICKED", 2000));
+        System.exit(0);
+    }
+
+    private static long received(List<TestClient> clients) {
+        long total = 0;
+        for (TestClient client : clients) {
+            total += client.latencies.size();
+        }
+        return total;
+    }
+
+    private static String percentile(long[] sorted, double percentile) {
+        if (sorted.length == 0) {
+            return "-";
+        }
+        int index = (int) Math.ceil(percentile * sorted.length) - 1;
+        return Long.toString(sorted[Math.max(0, Math.min(sorted.length - 1, index))]);
+    }
+
+    private static final class TestClient {
+        private final Socket socket;
+        private final OutputStream outputStream;
+        private final String marker;
+        private final BlockingQueue<String> lines = new LinkedBlockingQueue<>();
+        private final ConcurrentLinkedQueue<Long> latencies = new ConcurrentLinkedQueue<>();
+        private String name;
+
+        private TestClient(Socket socket, String marker) throws IOException {
+            this.socket = socket;
+            this.outputStream = socket.getOutputStream();
+            this.marker = marker;
+            Thread.ofVirtual().start(this::read);
+        }
+
+        static TestClient connect(int port, String marker) throws IOException {
+            return new TestClient(new Socket("localhost", port), marker);
+        }
+
+        static TestClient join(int port, String name, String marker) throws IOException, InterruptedException {
+            TestClient client = connect(port, marker);
+            client.name = name;
+            client.send(name);
+            if (!client.await("Welcome", 2000)) {
+                throw new IllegalStateException(name + " was not admitted on port " + port);
+            }
+            return client;
+        }
+
+        void send(String line) throws IOException {
+            outputStream.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+            outputStream.flush();
+        }
+
+        boolean await(String text, long timeoutMillis) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            String line;
+            while ((line = lines.poll(Math.max(1, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS)) != null) {
+                if (line.contains(text)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private void read() {
+            try {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    int markerIndex = line.indexOf(marker);
+                    if (markerIndex != -1) {
+                        long sentAt = Long.parseLong(line.substring(markerIndex + marker.length()).trim());
+                        latencies.add((System.nanoTime() - sentAt) / 1000);
+                    } else {
+                        lines.add(line);
+                    }
+                }
+            } catch (IOException | NumberFormatException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package Benchmarks;
+
+import Server.JournalSettings;
+import Server.MessageJournal;
+import Server.ServerConfig;
+import Server.TimestampCache;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * JMH benchmarks over a synthetic history of {@code mb} megabytes in 64MB segment files, one entry per
+ * second from 1000 senders with words drawn from a skewed vocabulary of made-up words, read back
+ * {@code plain} and after the journal has {@code compressed} the sealed segments: sequential read and
+ * export of the whole history, and reading 100 entries or finding a time at random places. The setup prints
+ * the compression ratio and time.
+ * <p>
+ * Run with {@code mvn -Pjmh verify -Djmh.args="CompressedHistoryBenchmark"}; {@code -p mb=256} makes the
+ * history smaller, {@code -p level=} and {@code -p blockBytes=} change the compression.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompressedHistoryBenchmark {
+
+    private static final long SEGMENT_BYTES = 64L * 1024 * 1024;
+    private static final int SENDERS = 1000;
+    private static final int VOCABULARY = 5000;
+    private static final long FIRST_SECOND = Instant.parse("2024-01-01T00:00:00Z").getEpochSecond();
+
+    @Param({"2048"})
+    public long mb;
+
+    @Param({"plain", "compressed"})
+    public String stored;
+
+    @Param({"6"})
+    public int level;
+
+    @Param({"32768"})
+    public int blockBytes;
+
+    private Path directory;
+    private MessageJournal journal;
+    private long entries;
+
+    @Setup
+    public void setUp() throws IOException, InterruptedException {
+        Logger logger = Logger.getLogger(CompressedHistoryBenchmark.class.getName());
+        logger.setLevel(Level.WARNING);
+        directory = Files.createTempDirectory("compress-bench");
+        long start = System.nanoTime();
+        entries = generate(directory, mb * 1024 * 1024);
+        long plainBytes = bytesOnDisk(directory);
+        System.out.printf("generated %d MB, %d entries in %d ms%n", mb, entries, (System.nanoTime() - start) / 1_000_000);
+
+        ServerConfig config = new ServerConfig()
+                .set("journalSegmentBytes", String.valueOf(SEGMENT_BYTES))
+                .set("searchIndex", "false")
+                .set("journalCompressBlockBytes", "0");
+        if (stored.equals("compressed")) {
+            config.set("journalCompressBlockBytes", String.valueOf(blockBytes))
+                    .set("journalCompressLevel", String.valueOf(level));
+        }
+        start = System.nanoTime();
+        journal = MessageJournal.open(directory, new JournalSettings(config), logger);
+        if (stored.equals("compressed")) {
+            while (plainSegments(directory) > 1) {
+                Thread.sleep(10);
+            }
+            long compressMillis = (System.nanoTime() - start) / 1_000_000;
+            long compressedBytes = bytesOnDisk(directory);
+            System.out.printf("compressed %,d to %,d bytes on disk (%.2fx) in %d ms, %.0f MB/s%n", plainBytes, compressedBytes,
+                    (double) plainBytes / compressedBytes, compressMillis, plainBytes / 1048576.0 / (compressMillis / 1000.0));
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        journal.close();
+        delete(directory);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 1)
+    @Measurement(iterations = 3)
+    public long readFromAll() {
+        long[] bytes = {0};
+        journal.readFrom(0, Long.MAX_VALUE, line -> bytes[0] += line.length() + 1);
+        return bytes[0];
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 1)
+    @Measurement(iterations = 3)
+    public long exportAll() throws IOException {
+        return journal.exportAll().copyTo(OutputStream.nullOutputStream());
+    }
+
+    @Benchmark
+    public long readFrom100Random() {
+        long[] count = {0};
+        journal.readFrom(ThreadLocalRandom.current().nextLong(entries - 100), 100, line -> count[0]++);
+        return count[0];
+    }
+
+    @Benchmark
+    public long sequenceAtRandom() {
+        return journal.sequenceAt((FIRST_SECOND + ThreadLocalRandom.current().nextLong(entries)) * 1000);
+    }
+
+    private static long generate(Path directory, long targetBytes) throws IOException {
+        Random random = new Random(42);
+        String[] vocabulary = new String[VOCABULARY];
+        for (int i = 0; i < VOCABULARY; i++) {
+            StringBuilder word = new StringBuilder();
+            int length = 1 + random.nextInt(3) + random.nextInt(8);
+            for (int j = 0; j < length; j++) {
+                word.append((char) ('a' + random.nextInt(26)));
+            }
+            vocabulary[i] = word.toString();
+        }
+        TimestampCache timestamps = new TimestampCache();
+        long sequence = 0;
+        long written = 0;
+        StringBuilder line = new StringBuilder(256);
+        while (written < targetBytes) {
+            Path file = directory.resolve(String.format("%020d.log", sequence));
+            long segmentWritten = 0;
+            try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+                while (segmentWritten < SEGMENT_BYTES - 512 && written + segmentWritten < targetBytes) {
+                    line.setLength(0);
+                    line.append('|').append(timestamps.format((FIRST_SECOND + sequence) * 1000)).append("| user")
+                            .append(random.nextInt(SENDERS)).append(':');
+                    int words = 2 + random.nextInt(14);
+                    for (int i = 0; i < words; i++) {
+                        // squaring skews the draw towards the first words, like natural language
+                        double draw = random.nextDouble();
+                        line.append(' ').append(vocabulary[(int) (draw * draw * VOCABULARY)]);
+                    }
+                    line.append('\n');
+                    writer.append(line);
+                    segmentWritten += line.length();
+                    sequence++;
+                }
+            }
+            written += segmentWritten;
+        }
+        return sequence;
+    }
+
+    /**
+     * Log bytes in the directory, compressed or not, without the index files.
+     */
+    private static long bytesOnDisk(Path directory) throws IOException {
+        long total = 0;
+        try (Stream<Path> paths = Files.list(directory)) {
+            for (Path path : paths.filter(path -> path.toString().endsWith(".log") || path.toString().endsWith(".logz")).toList()) {
+                total += Files.size(path);
+            }
+        }
+        return total;
+    }
+
+    private static long plainSegments(Path directory) throws IOException {
+        try (Stream<Path> paths = Files.list(directory)) {
+            return paths.filter(path -> path.toString().endsWith(".log")).count();
+        }
+    }
+
+    private static void delete(Path directory) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            List<Path> all = paths.sorted(Comparator.reverseOrder()).toList();
+            for (Path path : all) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+}
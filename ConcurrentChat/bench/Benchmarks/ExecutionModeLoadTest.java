@@ -0,0 +1,124 @@
+package Benchmarks;
+
+import Server.ConcurrentServer;
+import Server.ServerConfig;
+import Server.ServerMode;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Starts the server in each {@link ServerMode}, connects a batch of clients and reports how many of them
+ * finish the name handshake and how long a broadcast takes to reach every other client.
+ * <p>
+ * Usage: {@code ExecutionModeLoadTest [clients] [broadcasts]}, run from a scratch directory since the
+ * server writes its journal to {@code logs/}.
+ */
+public class ExecutionModeLoadTest {
+
+
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int broadcasts = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+        Logger.getLogger(ConcurrentServer.class.getName()).setLevel(Level.WARNING);
+
+        System.out.printf("%-9s %10s %12s %12s %12s%n", "mode", "served", "p50 (us)", "p99 (us)", "max (us)");
+        int port = 9101;
+        for (ServerMode mode : ServerMode.values()) {
+            run(mode, port++, clients, broadcasts);
+        }
+        System.exit(0);
+    }
+
+    private static void run(ServerMode mode, int port, int clients, int broadcasts) throws Exception {
+        ServerConfig config = new ServerConfig()
+                .set("mode", mode.name())
+                .set("console", "false");
+        Thread serverThread = new Thread(new ConcurrentServer(port, config)::run, "server-" + mode);
+        serverThread.setDaemon(true);
+        serverThread.start();
+        Thread.sleep(500);
+
+        // unique per run so history replayed from earlier runs is not mistaken for a fresh broadcast
+        String marker = "ping-" + mode + "-" + System.nanoTime() + " ";
+        ConcurrentLinkedQueue<Long> latencies = new ConcurrentLinkedQueue<>();
+        CountDownLatch welcomed = new CountDownLatch(clients);
+        AtomicInteger served = new AtomicInteger();
+        List<Socket> sockets = new ArrayList<>();
+        for (int i = 0; i < clients; i++) {
+            Socket socket = new Socket("localhost", port);
+            sockets.add(socket);
+            String name = "load" + i;
+            Thread.ofVirtual().start(() -> readSession(socket, name, marker, served, welcomed, latencies));
+        }
+        welcomed.await(3, TimeUnit.SECONDS);
+
+        int receivers = served.get() - 1;
+        if (receivers > 0) {
+            OutputStream sender = sockets.get(0).getOutputStream();
+            for (int i = 0; i < broadcasts; i++) {
+                sender.write((marker + System.nanoTime() + "\n").getBytes(StandardCharsets.UTF_8));
+                sender.flush();
+                Thread.sleep(20);
+            }
+            long deadline = System.currentTimeMillis() + 3000;
+            while (latencies.size() < (long) receivers * broadcasts && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+        }
+        for (Socket socket : sockets) {
+            socket.close();
+        }
+
+        long[] sorted = latencies.stream().mapToLong(Long::longValue).sorted().toArray();
+        System.out.printf("%-9s %5d/%-4d %12s %12s %12s%n", mode, served.get(), clients,
+                percentile(sorted, 0.50), percentile(sorted, 0.99), percentile(sorted, 1.0));
+    }
+
+    private static void readSession(Socket socket, String name, String marker, AtomicInteger served, CountDownLatch welcomed,
+                                    ConcurrentLinkedQueue<Long> latencies) {
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            OutputStream outputStream = socket.getOutputStream();
+            String line;
+            boolean joined = false;
+            while ((line = reader.readLine()) != null) {
+                if (!joined && line.contains("Type your name")) {
+                    outputStream.write((name + "\n").getBytes(StandardCharsets.UTF_8));
+                    outputStream.flush();
+                } else if (!joined && line.contains("Welcome")) {
+                    joined = true;
+                    served.incrementAndGet();
+                    welcomed.countDown();
+                } else if (joined) {
+                    int markerIndex = line.indexOf(marker);
+                    if (markerIndex != -1) {
+                        long sentAt = Long.parseLong(line.substring(markerIndex + marker.length()).trim());
+                        latencies.add((System.nanoTime() - sentAt) / 1000);
+                    }
+                }
+            }
+        } catch (IOException | NumberFormatException ignored) {
+        }
+    }
+
+    private static String percentile(long[] sorted, double percentile) {
+        if (sorted.length == 0) {
+            return "-";
+        }
+        int index = (int) Math.ceil(percentile * sorted.length) - 1;
+        return Long.toString(sorted[Math.max(0, Math.min(sorted.length - 1, index))]);
+    }
+}
@@ -0,0 +1,197 @@
+package Benchmarks;
+
+import Server.JournalSettings;
+import Server.MessageJournal;
+import Server.SearchQuery;
+import Server.ServerConfig;
+import Server.TimestampCache;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * JMH benchmarks of history search over a synthetic history of {@code mb} megabytes, one entry per second
+ * from 1000 senders with words drawn from a skewed 5000 word vocabulary, written straight into 64MB segment
+ * files. Each benchmark is a typical query, with and without the word index ({@code words}). The setup prints
+ * how long the index takes to build from scratch and to load once saved, its heap size, and each query's
+ * match count.
+ * <p>
+ * Run with {@code mvn -Pjmh verify -Djmh.args="HistorySearchBenchmark"}; {@code -p mb=256} makes the
+ * history smaller.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HistorySearchBenchmark {
+
+    private static final long SEGMENT_BYTES = 64L * 1024 * 1024;
+    private static final int SENDERS = 1000;
+    private static final int VOCABULARY = 5000;
+    private static final long FIRST_SECOND = Instant.parse("2024-01-01T00:00:00Z").getEpochSecond();
+
+    @Param({"1024"})
+    public long mb;
+
+    @Param({"true", "false"})
+    public boolean words;
+
+    private Path directory;
+    private MessageJournal journal;
+    private SearchQuery newest50;
+    private SearchQuery user;
+    private SearchQuery userOneHour;
+    private SearchQuery oneMinute;
+    private SearchQuery commonWord;
+    private SearchQuery twoRareWords;
+    private SearchQuery userAndRareWord;
+
+    @Setup
+    public void setUp() throws IOException {
+        Logger logger = Logger.getLogger(HistorySearchBenchmark.class.getName());
+        logger.setLevel(Level.WARNING);
+        directory = Files.createTempDirectory("search-bench");
+        long start = System.nanoTime();
+        long entries = generate(directory, mb * 1024 * 1024);
+        System.out.printf("generated %d MB, %d entries in %d ms%n", mb, entries, (System.nanoTime() - start) / 1_000_000);
+
+        ServerConfig config = new ServerConfig()
+                .set("journalSegmentBytes", String.valueOf(SEGMENT_BYTES))
+                .set("searchWords", String.valueOf(words));
+        start = System.nanoTime();
+        journal = MessageJournal.open(directory, new JournalSettings(config), logger);
+        long buildMillis = (System.nanoTime() - start) / 1_000_000;
+        journal.close();
+        start = System.nanoTime();
+        journal = MessageJournal.open(directory, new JournalSettings(config), logger);
+        long loadMillis = (System.nanoTime() - start) / 1_000_000;
+        System.out.printf("word index %s: built in %d ms, loaded in %d ms, %d MB on the heap%n",
+                words ? "on" : "off", buildMillis, loadMillis, journal.searchIndexBytes() / (1024 * 1024));
+
+        long now = (FIRST_SECOND + entries) * 1000;
+        long middle = FIRST_SECOND + entries / 2;
+        newest50 = query("newest 50", "limit:50", now);
+        user = query("user", "user:user417", now);
+        userOneHour = query("user, one hour", "user:user417 from:" + stamp(middle) + " to:" + stamp(middle + 3600), now);
+        oneMinute = query("one minute", "from:" + stamp(middle) + " to:" + stamp(middle + 60), now);
+        commonWord = query("common word", "w3", now);
+        twoRareWords = query("two rare words", "w4001 w4999", now);
+        userAndRareWord = query("user and rare word", "user:user417 w4500", now);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        journal.close();
+        delete(directory);
+    }
+
+    private SearchQuery query(String name, String text, long now) {
+        SearchQuery query = SearchQuery.parse(text, now);
+        System.out.printf("  %-24s %d matches%n", name, journal.search(query).length);
+        return query;
+    }
+
+    @Benchmark
+    public int newest50() {
+        return journal.search(newest50).length;
+    }
+
+    @Benchmark
+    public int user() {
+        return journal.search(user).length;
+    }
+
+    @Benchmark
+    public int userOneHour() {
+        return journal.search(userOneHour).length;
+    }
+
+    @Benchmark
+    public int oneMinute() {
+        return journal.search(oneMinute).length;
+    }
+
+    @Benchmark
+    public int commonWord() {
+        return journal.search(commonWord).length;
+    }
+
+    @Benchmark
+    public int twoRareWords() {
+        return journal.search(twoRareWords).length;
+    }
+
+    @Benchmark
+    public int userAndRareWord() {
+        return journal.search(userAndRareWord).length;
+    }
+
+    private static String stamp(long epochSecond) {
+        return LocalDateTime.ofInstant(Instant.ofEpochSecond(epochSecond), ZoneId.systemDefault()).toString();
+    }
+
+    private static long generate(Path directory, long targetBytes) throws IOException {
+        Random random = new Random(42);
+        TimestampCache timestamps = new TimestampCache();
+        long sequence = 0;
+        long written = 0;
+        StringBuilder line = new StringBuilder(256);
+        while (written < targetBytes) {
+            Path file = directory.resolve(String.format("%020d.log", sequence));
+            long segmentWritten = 0;
+            try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+                while (segmentWritten < SEGMENT_BYTES - 512 && written + segmentWritten < targetBytes) {
+                    line.setLength(0);
+                    line.append('|').append(timestamps.format((FIRST_SECOND + sequence) * 1000)).append("| user")
+                            .append(random.nextInt(SENDERS)).append(':');
+                    int words = 4 + random.nextInt(12);
+                    for (int i = 0; i < words; i++) {
+                        // squaring skews the draw towards the first words, like natural language
+                        double draw = random.nextDouble();
+                        line.append(" w").append((int) (draw * draw * VOCABULARY));
+                    }
+                    line.append('\n');
+                    writer.append(line);
+                    segmentWritten += line.length();
+                    sequence++;
+                }
+            }
+            written += segmentWritten;
+        }
+        return sequence;
+    }
+
+    private static void delete(Path directory) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+}
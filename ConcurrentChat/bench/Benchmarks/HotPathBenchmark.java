@@ -0,0 +1,505 @@
+package Benchmarks;
+
+import Server.ClientConnection;
+import Server.ClientHandler;
+import Server.ConcurrentServer;
+import Server.Frame;
+import Server.OutboundQueue;
+import Server.ServerConfig;
+import Server.TimerWheel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import utils.ConsoleColor;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.UnaryOperator;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * JMH benchmarks for the server's hot paths, run in process against {@link ConcurrentServer} with
+ * connections replaced by in-memory sinks so results do not depend on the network:
+ * <ul>
+ *     <li>{@link Fanout}: {@link ConcurrentServer#broadcastMessage} and the bare {@link ConcurrentServer#deliverToAll}
+ *     at 10 to 10k recipients</li>
+ *     <li>{@link Lookup}: {@link ConcurrentServer#findClientHandlerByName} and {@link ConcurrentServer#checkIfNameExists},
+ *     hits and misses</li>
+ *     <li>{@link Journal}: {@link ConcurrentServer#persistMessageJournal} per entry, including the flush</li>
+ *     <li>{@link Tail}: {@link ConcurrentServer#readLastEntriesFromJournal} served from the cache and from the
+ *     segment files of histories from 1MB to 256MB; {@code -p logMB=1024} adds the 1GB case</li>
+ *     <li>{@link Format}: building a coloured chat line by concatenation and as a {@link Frame}</li>
+ *     <li>{@link Whisper}: a whisper to a list of names and to a group, against the former per-recipient
+ *     split, lookup and encode</li>
+ *     <li>{@link Timers}: arming and cancelling a session timeout on a {@link TimerWheel} that already holds
+ *     up to 100k, and firing 100k at once</li>
+ * </ul>
+ * Run with {@code mvn -Pjmh verify -Djmh.args="HotPathBenchmark"}, or a narrower pattern such as
+ * {@code HotPathBenchmark.Fanout}; JMH's {@code -p name=values} overrides a parameter.
+ */
+public class HotPathBenchmark {
+
+    private static final String MESSAGE = "a typical chat message of a few dozen characters";
+
+    @State(Scope.Benchmark)
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    @Warmup(iterations = 3, time = 1)
+    @Measurement(iterations = 5, time = 1)
+    @Fork(1)
+    public static class Fanout {
+
+        @Param({"10", "100", "1000", "10000"})
+        public int recipients;
+
+        private Bench bench;
+        private ClientHandler sender;
+
+        @Setup
+        public void setUp() throws IOException {
+            bench = new Bench("fanout", "none");
+            sender = bench.connect(recipients + 1).get(0);
+        }
+
+        @TearDown(Level.Iteration)
+        public void flushJournal() throws IOException {
+            bench.server.getJournal().flush();
+        }
+
+        @TearDown
+        public void tearDown() throws IOException {
+            bench.close();
+        }
+
+        @Benchmark
+        public void broadcastMessage() {
+            bench.server.broadcastMessage(MESSAGE, sender);
+        }
+
+        @Benchmark
+        public void deliverToAll() {
+            bench.server.deliverToAll(Frame.chat(sender, MESSAGE), sender);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    @Warmup(iterations = 3, time = 1)
+    @Measurement(iterations = 5, time = 1)
+    @Fork(1)
+    public static class Whisper {
+
+        @Param({"10", "1000"})
+        public int recipients;
+
+        private Bench bench;
+        private ClientHandler sender;
+        private String listLine;
+        private String groupLine;
+
+        @Setup
+        public void setUp() throws IOException {
+            bench = new Bench("whisper", "none");
+            sender = bench.connect(recipients + 1).get(0);
+            StringBuilder names = new StringBuilder();
+            for (int i = 1; i <= recipients; i++) {
+                names.append(i > 1 ? ", " : "").append("User").append(i);
+            }
+            bench.server.editGroup("bench add " + names);
+            listLine = "@" + names + ": " + MESSAGE;
+            groupLine = "@@bench: " + MESSAGE;
+        }
+
+        @TearDown
+        public void tearDown() throws IOException {
+            bench.close();
+        }
+
+        @Benchmark
+        public void splitLookupEncodeEach() {
+            int colon = listLine.indexOf(':');
+            String message = listLine.substring(colon + 1).trim();
+            for (String name : listLine.substring(1, colon).trim().split("\\s*,\\s*")) {
+                ClientHandler recipient = bench.server.findClientHandlerByName(name);
+                if (recipient != null) {
+                    recipient.sendFrame(Frame.whisper(sender, message));
+                }
+            }
+        }
+
+        @Benchmark
+        public void nameList() {
+            sender.onLine(listLine);
+        }
+
+        @Benchmark
+        public void group() {
+            sender.onLine(groupLine);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    @Warmup(iterations = 3, time = 1)
+    @Measurement(iterations = 5, time = 1)
+    @Fork(1)
+    public static class Lookup {
+
+        @Param({"10", "1000", "10000"})
+        public int clients;
+
+        private Bench bench;
+        private final String[] present = new String[64];
+        private final String[] absent = new String[64];
+        private int next;
+
+        @Setup
+        public void setUp() throws IOException {
+            bench = new Bench("lookup", "none");
+            bench.connect(clients);
+            for (int i = 0; i < present.length; i++) {
+                present[i] = "User" + (i * 7919 % clients);
+                absent[i] = "nobody" + i;
+            }
+        }
+
+        @TearDown
+        public void tearDown() throws IOException {
+            bench.close();
+        }
+
+        @Benchmark
+        public ClientHandler findClientHandlerByNameHit() {
+            return bench.server.findClientHandlerByName(present[next++ & 63]);
+        }
+
+        @Benchmark
+        public ClientHandler findClientHandlerByNameMiss() {
+            return bench.server.findClientHandlerByName(absent[next++ & 63]);
+        }
+
+        @Benchmark
+        public boolean checkIfNameExistsHit() {
+            return bench.server.checkIfNameExists(present[next++ & 63]);
+        }
+
+        @Benchmark
+        public boolean checkIfNameExistsMiss() {
+            return bench.server.checkIfNameExists(absent[next++ & 63]);
+        }
+    }
+
+    /**
+     * Appends in batches of 10000 entries and waits for the journal to write them, reported per entry.
+     */
+    @State(Scope.Benchmark)
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    @Warmup(iterations = 3, time = 1)
+    @Measurement(iterations = 5, time = 1)
+    @Fork(1)
+    public static class Journal {
+
+        private static final int BATCH = 10_000;
+
+        @Param({"none", "batch"})
+        public String durability;
+
+        private Bench bench;
+        private int sequence;
+
+        @Setup
+        public void setUp() throws IOException {
+            bench = new Bench("journal", durability);
+        }
+
+        @TearDown
+        public void tearDown() throws IOException {
+            bench.close();
+        }
+
+        @Benchmark
+        @OperationsPerInvocation(BATCH)
+        public void persistMessageJournal(Blackhole blackhole) throws IOException {
+            for (int i = 0; i < BATCH; i++) {
+                blackhole.consume(bench.server.persistMessageJournal("user" + (i & 15) + ": " + MESSAGE + " " + sequence++));
+            }
+            bench.server.getJournal().flush();
+        }
+    }
+
+    /**
+     * The history cache is kept at its minimum so that asking for more entries than the join replay has to
+     * go through the segment index and the files.
+     */
+    @State(Scope.Benchmark)
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    @Warmup(iterations = 3, time = 1)
+    @Measurement(iterations = 5, time = 1)
+    @Fork(1)
+    public static class Tail {
+
+        @Param({"1", "4", "16", "64", "256"})
+        public int logMB;
+
+        private Bench bench;
+
+        @Setup
+        public void setUp() throws IOException {
+            bench = new Bench("tail", "none", config -> config.set("historyCacheSize", "10"));
+            long target = logMB * 1024L * 1024;
+            String entry = "user1: " + MESSAGE + " padded to a hundred bytes with the timestamp ";
+            long entries = target / (entry.length() + 24);
+            for (long i = 0; i < entries; i++) {
+                bench.server.persistMessageJournal(entry + i);
+            }
+            bench.server.getJournal().flush();
+        }
+
+        @TearDown
+        public void tearDown() throws IOException {
+            bench.close();
+        }
+
+        @Benchmark
+        public String last10Cache() {
+            return bench.server.readLastEntriesFromJournal(10);
+        }
+
+        @Benchmark
+        public String last100Files() {
+            return bench.server.readLastEntriesFromJournal(100);
+        }
+
+        @Benchmark
+        public String last1000Files() {
+            return bench.server.readLastEntriesFromJournal(1000);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    @Warmup(iterations = 3, time = 1)
+    @Measurement(iterations = 5, time = 1)
+    @Fork(1)
+    public static class Format {
+
+        private Bench bench;
+        private ClientHandler sender;
+
+        @Setup
+        public void setUp() throws IOException {
+            bench = new Bench("format", "none");
+            sender = bench.connect(1).get(0);
+        }
+
+        @TearDown
+        public void tearDown() throws IOException {
+            bench.close();
+        }
+
+        @Benchmark
+        public String concatenation() {
+            return sender.getColor().getCode() + sender.getClientSimpleName() + ": " + ConsoleColor.DEFAULT.getCode() + MESSAGE;
+        }
+
+        @Benchmark
+        public Frame frameChat() {
+            return Frame.chat(sender, MESSAGE);
+        }
+
+        @Benchmark
+        public Frame frameOfConcatenatedLine() {
+            return Frame.ofLine(sender.getColor().getCode() + sender.getClientSimpleName() + ": " + ConsoleColor.DEFAULT.getCode() + MESSAGE);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    @Warmup(iterations = 3, time = 1)
+    @Measurement(iterations = 5, time = 1)
+    @Fork(1)
+    public static class Timers {
+
+        private static final Runnable NOTHING = () -> { };
+        private static final int FIRED = 100_000;
+
+        @Param({"1000", "100000"})
+        public int pending;
+
+        private final Logger logger = Logger.getLogger(HotPathBenchmark.class.getName());
+        private TimerWheel wheel;
+
+        @Setup
+        public void setUp() {
+            wheel = new TimerWheel("bench-timers", 100, 512, logger);
+            for (int i = 0; i < pending; i++) {
+                wheel.schedule(NOTHING, 600_000 + i % 60_000);
+            }
+        }
+
+        @TearDown
+        public void tearDown() {
+            wheel.stop();
+        }
+
+        @Benchmark
+        public boolean scheduleAndCancel() {
+            return wheel.schedule(NOTHING, 30_000).cancel();
+        }
+
+        /**
+         * Time from arming 100k timeouts due 50ms later until the last has run, on a wheel with a 10ms tick;
+         * the same for every {@code pending}.
+         */
+        @Benchmark
+        @BenchmarkMode(Mode.SingleShotTime)
+        @OutputTimeUnit(TimeUnit.MILLISECONDS)
+        @Warmup(iterations = 3)
+        @Measurement(iterations = 5)
+        public long fireAllDue() throws InterruptedException {
+            TimerWheel firing = new TimerWheel("bench-fire", 10, 512, logger);
+            try {
+                CountDownLatch fired = new CountDownLatch(FIRED);
+                for (int i = 0; i < FIRED; i++) {
+                    firing.schedule(fired::countDown, 50);
+                }
+                if (!fired.await(10, TimeUnit.SECONDS)) {
+                    throw new IllegalStateException(fired.getCount() + " timeouts did not fire");
+                }
+                return fired.getCount();
+            } finally {
+                firing.stop();
+            }
+        }
+    }
+
+    /**
+     * A server of its own in a temporary directory, logging warnings only.
+     */
+    static final class Bench {
+
+        private final Path directory;
+        final ConcurrentServer server;
+
+        Bench(String name, String durability) throws IOException {
+            this(name, durability, config -> config);
+        }
+
+        Bench(String name, String durability, UnaryOperator<ServerConfig> settings) throws IOException {
+            Logger.getLogger(ConcurrentServer.class.getName()).setLevel(java.util.logging.Level.WARNING);
+            directory = Files.createTempDirectory("hotpath-" + name);
+            server = new ConcurrentServer(0, settings.apply(config(directory, durability)));
+        }
+
+        /**
+         * Tracks {@code count} clients named {@code User0..} that went through the normal name handshake.
+         */
+        List<ClientHandler> connect(int count) {
+            List<ClientHandler> clients = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                ClientHandler clientHandler = new ClientHandler(new MemoryConnection(), server, server.getLogger());
+                server.trackClient(clientHandler);
+                clientHandler.onLine("User" + i);
+                clients.add(clientHandler);
+            }
+            return clients;
+        }
+
+        void close() throws IOException {
+            server.getJournal().close();
+            try (Stream<Path> paths = Files.walk(directory)) {
+                for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                    Files.deleteIfExists(path);
+                }
+            }
+        }
+
+        private static ServerConfig config(Path directory, String durability) {
+            return new ServerConfig()
+                    .set("console", "false")
+                    .set("journalDir", directory.resolve("history").toString())
+                    .set("channelDir", directory.resolve("channels").toString())
+                    .set("journalDurability", durability)
+                    .set("outboundQueueSize", "1024")
+                    .set("messageRate", "0")
+                    .set("groupsFile", "");
+        }
+    }
+
+    /**
+     * Stands in for a socket: copies every queued frame into a reused buffer on the signalling thread, the
+     * way a writer copies it into the socket send buffer.
+     */
+    static class MemoryConnection implements ClientConnection {
+
+        private final ByteBuffer sink = ByteBuffer.allocate(64 * 1024);
+        private boolean closed;
+
+        @Override
+        public void signalWrite(OutboundQueue outbound) {
+            Frame frame;
+            while ((frame = outbound.poll()) != null) {
+                ByteBuffer buffer = frame.buffer();
+                if (sink.remaining() < buffer.remaining()) {
+                    sink.clear();
+                }
+                if (sink.remaining() >= buffer.remaining()) {
+                    sink.put(buffer);
+                }
+            }
+        }
+
+        @Override
+        public void flushAndClose(OutboundQueue outbound, long timeoutMillis) {
+            signalWrite(outbound);
+            closed = true;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+
+        @Override
+        public boolean isClosed() {
+            return closed;
+        }
+
+        @Override
+        public InetAddress getInetAddress() {
+            return InetAddress.getLoopbackAddress();
+        }
+
+        @Override
+        public int getPort() {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package Benchmarks;
+
+import Server.DurabilityMode;
+import Server.JournalSettings;
+import Server.MessageJournal;
+import Server.ServerConfig;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.logging.Logger;
+
+/**
+ * Appends the same messages from several threads through the original synchronized open-per-message
+ * journal and through {@link MessageJournal} in each {@link DurabilityMode}, and prints messages per second.
+ * The timing for {@link MessageJournal} includes the final {@link MessageJournal#flush()}.
+ * <p>
+ * Usage: {@code JournalThroughputBenchmark [threads] [messagesPerThread]}
+ */
+public class JournalThroughputBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int messagesPerThread = args.length > 1 ? Integer.parseInt(args[1]) : 10_000;
+        Path directory = Files.createTempDirectory("journal-bench");
+        Logger logger = Logger.getLogger(JournalThroughputBenchmark.class.getName());
+
+        LegacyJournal legacy = new LegacyJournal(directory.resolve("legacy.log").toString());
+        report("legacy synchronized", run(threads, messagesPerThread, message -> {
+            try {
+                legacy.persistMessageJournal(message);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }, () -> { }), threads * messagesPerThread);
+
+        for (DurabilityMode durability : DurabilityMode.values()) {
+            JournalSettings settings = new JournalSettings(new ServerConfig().set("journalDurability", durability.name()));
+            MessageJournal journal = MessageJournal.open(directory.resolve(durability.name()), settings, logger);
+            report("journal " + durability, run(threads, messagesPerThread, journal::append, () -> {
+                try {
+                    journal.flush();
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }), threads * messagesPerThread);
+            journal.close();
+        }
+    }
+
+    private static long run(int threads, int messagesPerThread, java.util.function.Consumer<String> append, Runnable finish)
+            throws InterruptedException {
+        Thread[] workers = new Thread[threads];
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            String sender = "user" + t;
+            workers[t] = new Thread(() -> {
+                for (int i = 0; i < messagesPerThread; i++) {
+                    append.accept(sender + ": message number " + i + " with some ordinary chat text");
+                }
+            });
+            workers[t].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        finish.run();
+        return System.nanoTime() - start;
+    }
+
+    private static void report(String name, long nanos, int messages) {
+        System.out.printf("%-22s %10.0f msg/s  (%d ms)%n", name, messages / (nanos / 1e9), nanos / 1_000_000);
+    }
+
+    /**
+     * The journal as it was before MessageJournal, except that the writer is closed so the run does not
+     * exhaust file descriptors.
+     */
+    private static class LegacyJournal {
+        private final String messageLogPath;
+
+        LegacyJournal(String messageLogPath) {
+            this.messageLogPath = messageLogPath;
+        }
+
+        synchronized void persistMessageJournal(String message) throws IOException {
+            File logDir = new File(messageLogPath).getParentFile();
+            if (!logDir.exists()) {
+                logDir.mkdirs();
+            }
+
+            try (PrintWriter writer = new PrintWriter(new FileWriter(messageLogPath, true), true)) {
+                writer.println("|"
+                        + LocalDateTime.now().
+                        format(DateTimeFormatter.ofPattern("dd MMM yyyy HH:mm:ss"))
+                        + "| "
+                        + message);
+            }
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package Benchmarks;
+
+import Client.BinaryFrameReader;
+import utils.BinaryProtocol;
+import utils.ConsoleColor;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Compares the newline text protocol with the binary protocol for a stream of chat messages from a fixed set
+ * of senders: bytes on the wire, with each sender introduced once, and client-side parse time for
+ * {@link BufferedReader#readLine()} against {@link BinaryFrameReader#next()}.
+ * <p>
+ * Usage: {@code WireProtocolBenchmark [messages] [senders] [rounds]}
+ */
+public class WireProtocolBenchmark {
+
+    public static void main(String[] args) throws IOException {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+        int senders = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+
+        ByteArrayOutputStream text = new ByteArrayOutputStream();
+        ByteArrayOutputStream binary = new ByteArrayOutputStream();
+        Set<Integer> introduced = new HashSet<>();
+        ConsoleColor[] colors = ConsoleColor.values();
+        for (int i = 0; i < messages; i++) {
+            int senderId = 1 + i % senders;
+            ConsoleColor color = colors[senderId % colors.length];
+            String name = "user" + senderId;
+            String message = "message " + i + " with a typical length of a few dozen characters";
+
+            text.write((color.getCode() + name + ": " + ConsoleColor.DEFAULT.getCode() + message + "\n").getBytes(StandardCharsets.UTF_8));
+            if (introduced.add(senderId)) {
+                writeFrame(binary, BinaryProtocol.USER, senderId, color.ordinal(), name);
+            }
+            writeFrame(binary, BinaryProtocol.CHAT, senderId, -1, message);
+        }
+        byte[] textBytes = text.toByteArray();
+        byte[] binaryBytes = binary.toByteArray();
+
+        System.out.printf("%d messages from %d senders%n", messages, senders);
+        System.out.printf("%-8s %14s %12s %16s%n", "protocol", "bytes", "B/msg", "parse msg/s");
+        long textRate = 0;
+        long binaryRate = 0;
+        for (int round = 0; round < rounds; round++) {
+            textRate = Math.max(textRate, parseText(textBytes, messages));
+            binaryRate = Math.max(binaryRate, parseBinary(binaryBytes, messages));
+        }
+        System.out.printf("%-8s %14d %12.1f %16d%n", "text", textBytes.length, (double) textBytes.length / messages, textRate);
+        System.out.printf("%-8s %14d %12.1f %16d%n", "binary", binaryBytes.length, (double) binaryBytes.length / messages, binaryRate);
+    }
+
+    private static void writeFrame(ByteArrayOutputStream out, byte type, int senderId, int color, String text) {
+        byte[] textBytes = text.getBytes(StandardCharsets.UTF_8);
+        int length = 1 + BinaryProtocol.varintSize(senderId) + (color >= 0 ? 1 : 0) + textBytes.length;
+        byte[] frame = new byte[BinaryProtocol.varintSize(length) + length];
+        int position = BinaryProtocol.putVarint(frame, 0, length);
+        frame[position++] = type;
+        position = BinaryProtocol.putVarint(frame, position, senderId);
+        if (color >= 0) {
+            frame[position++] = (byte) color;
+        }
+        System.arraycopy(textBytes, 0, frame, position, textBytes.length);
+        out.write(frame, 0, frame.length);
+    }
+
+    private static long parseText(byte[] bytes, int messages) throws IOException {
+        long start = System.nanoTime();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(bytes), StandardCharsets.UTF_8));
+        int count = 0;
+        while (reader.readLine() != null) {
+            count++;
+        }
+        return rate(count, messages, start);
+    }
+
+    private static long parseBinary(byte[] bytes, int messages) throws IOException {
+        long start = System.nanoTime();
+        BinaryFrameReader reader = new BinaryFrameReader(new ByteArrayInputStream(bytes));
+        int count = 0;
+        while (reader.next()) {
+            if (reader.getType() == BinaryProtocol.CHAT) {
+                count++;
+            }
+        }
+        return rate(count, messages, start);
+    }
+
+    private static long rate(int count, int messages, long start) {
+        if (count != messages) {
+            throw new IllegalStateException("Parsed " + count + " of " + messages + " messages");
+        }
+        return messages * 1_000_000_000L / Math.max(1, System.nanoTime() - start);
+    }
+}
@@ -0,0 +1,136 @@
+package Client;
+
+import utils.BinaryProtocol;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Consumer;
+
+/**
+ * Reads {@link BinaryProtocol} frames from the server one at a time. After {@link #next()} the fields of the
+ * current frame are available through the getters; fields the frame type does not have are 0 or null.
+ */
+public class BinaryFrameReader {
+
+    private static final int MAX_FRAME_LENGTH = 64 * 1024 * 1024;
+
+    private final InputStream inputStream;
+    private byte[] body = new byte[256];
+    private int position;
+    private byte type;
+    private int senderId;
+    private int color;
+    private String channel;
+    private String text;
+
+    public BinaryFrameReader(InputStream inputStream) {
+        this.inputStream = inputStream;
+    }
+
+    /**
+     * Reads the plain text the server sent before it switched to binary frames, line by line.
+     *
+     * @return false if the stream ended before the switch
+     */
+    public boolean awaitSwitch(Consumer<String> lineConsumer) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = inputStream.read()) != -1) {
+            if (b == BinaryProtocol.MAGIC) {
+                return true;
+            }
+            if (b == '\n') {
+                lineConsumer.accept(line.toString(StandardCharsets.UTF_8));
+                line.reset();
+            } else {
+                line.write(b);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return false at the end of the stream
+     */
+    public boolean next() throws IOException {
+        int length = BinaryProtocol.readVarint(inputStream);
+        if (length == -1) {
+            return false;
+        }
+        if (length <= 0 || length > MAX_FRAME_LENGTH) {
+            throw new IOException("Invalid frame length " + length);
+        }
+        if (body.length < length) {
+            body = new byte[Math.max(length, body.length * 2)];
+        }
+        if (inputStream.readNBytes(body, 0, length) < length) {
+            throw new EOFException("Stream ended inside a frame");
+        }
+        parse(body, 0, length);
+        return true;
+    }
+
+    /**
+     * Decodes the frame body at {@code bytes[offset, offset + length)}, type byte first.
+     */
+    void parse(byte[] bytes, int offset, int length) {
+        position = offset;
+        type = bytes[position++];
+        senderId = 0;
+        color = 0;
+        channel = null;
+        if (type == BinaryProtocol.USER || type == BinaryProtocol.CHAT || type == BinaryProtocol.WHISPER || type == BinaryProtocol.CHANNEL) {
+            senderId = varint(bytes);
+        }
+        if (type == BinaryProtocol.USER || type == BinaryProtocol.SYSTEM) {
+            color = bytes[position++] & 0xFF;
+        }
+        if (type == BinaryProtocol.CHANNEL) {
+            int channelLength = varint(bytes);
+            channel = new String(bytes, position, channelLength, StandardCharsets.UTF_8);
+            position += channelLength;
+        }
+        text = new String(bytes, position, offset + length - position, StandardCharsets.UTF_8);
+    }
+
+    private int varint(byte[] bytes) {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = bytes[position++];
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    public byte getType() {
+        return type;
+    }
+
+    public int getSenderId() {
+        return senderId;
+    }
+
+    /**
+     * {@link utils.ConsoleColor} ordinal of a {@code USER} or {@code SYSTEM} frame.
+     */
+    public int getColor() {
+        return color;
+    }
+
+    public String getChannel() {
+        return channel;
+    }
+
+    /**
+     * The message text, or the name for a {@code USER} frame.
+     */
+    public String getText() {
+        return text;
+    }
+}
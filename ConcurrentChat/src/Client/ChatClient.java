@@ -0,0 +1,329 @@
+package Client;
+
+import utils.BinaryProtocol;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A chat connection for programs: one non-blocking socket channel served by a single I/O thread, which
+ * decodes what arrives and hands it to a {@link MessageListener}, and answers the server's pings itself.
+ * <p>
+ * {@link #send(String)} may be called from any thread. It encodes the line as UTF-8 into a shared outbound
+ * buffer and wakes the I/O thread only if it is not already due to write, so lines sent while a write is
+ * under way go out together in the next one. Nagle's algorithm is switched off because the client does
+ * this batching itself: a lone line is sent at once instead of waiting for the previous one's ACK.
+ */
+public class ChatClient implements Closeable {
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_READ_BUFFER_SIZE = 64 * 1024 * 1024 + 5;
+    /** Senders wait while this much is queued and unwritten. */
+    private static final int MAX_PENDING = 1024 * 1024;
+    /** Reads per wakeup before queued sends get their turn. */
+    private static final int READS_PER_WAKEUP = 16;
+    private static final long CLOSE_FLUSH_NANOS = 1_000_000_000L;
+
+    private final String host;
+    private final int port;
+    private final boolean binary;
+    private final MessageListener listener;
+    private final InboundDecoder decoder;
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+    private SocketChannel channel;
+    private Selector selector;
+    private SelectionKey key;
+    private Thread ioThread;
+    private volatile boolean closing;
+    private volatile boolean closed;
+
+    private ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    /** Owned by the I/O thread; in read mode, holding what the channel has not taken yet. */
+    private ByteBuffer writeBuffer = ByteBuffer.allocate(8 * 1024).flip();
+    private final Object sendLock = new Object();
+    /** Guarded by sendLock; in write mode, holding lines the I/O thread has not picked up. */
+    private ByteBuffer pending = ByteBuffer.allocate(8 * 1024);
+    private boolean wakeupDue;
+
+    public ChatClient(String host, int port, boolean binary, MessageListener listener) {
+        this.host = host;
+        this.port = port;
+        this.binary = binary;
+        this.listener = listener;
+        this.decoder = new InboundDecoder(binary);
+    }
+
+    /**
+     * Connects, blocking until the connection is made, and starts the I/O thread.
+     */
+    public synchronized void connect() throws IOException {
+        if (channel != null) {
+            throw new IllegalStateException("Already connected");
+        }
+        channel = SocketChannel.open(new InetSocketAddress(host, port));
+        try {
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            channel.configureBlocking(false);
+            selector = Selector.open();
+            key = channel.register(selector, SelectionKey.OP_READ);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        synchronized (sendLock) {
+            if (binary) {
+                pending.put((byte) BinaryProtocol.MAGIC);
+            } else {
+                // the server only pings line clients that have shown they answer
+                pending.put("/pong\n".getBytes(StandardCharsets.US_ASCII));
+            }
+            wakeupDue = true;
+        }
+        ioThread = new Thread(this::run, "chat-client-" + host + ":" + port);
+        ioThread.start();
+        selector.wakeup();
+    }
+
+    public boolean isConnected() {
+        return channel != null && !closed;
+    }
+
+    /**
+     * Queues one line for the server. Waits while a large backlog is still unwritten.
+     *
+     * @throws IOException if the connection is closed
+     */
+    public void send(String line) throws IOException {
+        enqueue(line, Thread.currentThread() != ioThread);
+    }
+
+    private void enqueue(String line, boolean mayWait) throws IOException {
+        // at most three bytes per char, plus the newline or the frame header
+        int maxLength = line.length() * 3 + 6;
+        synchronized (sendLock) {
+            if (mayWait) {
+                while (pending.position() > 0 && pending.position() + maxLength > MAX_PENDING && !closing && !closed) {
+                    try {
+                        sendLock.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted while sending", e);
+                    }
+                }
+            }
+            if (closing || closed || channel == null) {
+                throw new IOException("Not connected");
+            }
+            if (pending.remaining() < maxLength) {
+                pending = grow(pending, pending.position() + maxLength);
+            }
+            if (binary) {
+                pending.position(BinaryProtocol.putVarint(pending.array(), pending.position(), utf8Length(line) + 1));
+                pending.put(BinaryProtocol.INPUT);
+                encode(line);
+            } else {
+                encode(line);
+                pending.put((byte) '\n');
+            }
+            if (!wakeupDue) {
+                wakeupDue = true;
+                selector.wakeup();
+            }
+        }
+    }
+
+    private void encode(String line) {
+        encoder.reset();
+        CoderResult result = encoder.encode(CharBuffer.wrap(line), pending, true);
+        if (!result.isUnderflow()) {
+            throw new IllegalStateException("Output buffer too small: " + result);
+        }
+        encoder.flush(pending);
+    }
+
+    /**
+     * The length of {@code line} in UTF-8, with lone surrogates counted as the one-byte replacement the
+     * encoder writes for them.
+     */
+    private static int utf8Length(String line) {
+        int length = 0;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < line.length() && Character.isLowSurrogate(line.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                length++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    private void run() {
+        IOException failure = null;
+        try {
+            while (!closing) {
+                selector.select();
+                if (key.isReadable() && !read()) {
+                    break;
+                }
+                selector.selectedKeys().clear();
+                takePending();
+                if (writeBuffer.hasRemaining()) {
+                    channel.write(writeBuffer);
+                }
+                key.interestOps(writeBuffer.hasRemaining() ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+            }
+            if (closing) {
+                flush();
+            }
+        } catch (IOException e) {
+            if (!closing) {
+                failure = e;
+            }
+        } finally {
+            disconnect();
+            listener.onDisconnected(failure);
+        }
+    }
+
+    /**
+     * Reads until the channel has nothing more or a few buffers' worth has been handled.
+     *
+     * @return false at the end of the stream
+     */
+    private boolean read() throws IOException {
+        boolean open = true;
+        for (int reads = 0; reads < READS_PER_WAKEUP; reads++) {
+            int count = channel.read(readBuffer);
+            if (count == -1) {
+                open = false;
+                break;
+            }
+            if (count == 0) {
+                break;
+            }
+            readBuffer.flip();
+            decoder.decode(readBuffer, listener::onMessage, this::pong);
+            readBuffer.compact();
+            if (!readBuffer.hasRemaining()) {
+                // one line or frame fills the buffer
+                if (readBuffer.capacity() >= MAX_READ_BUFFER_SIZE) {
+                    throw new IOException("Message longer than " + MAX_READ_BUFFER_SIZE + " bytes");
+                }
+                readBuffer = grow(readBuffer, Math.min(readBuffer.capacity() * 2, MAX_READ_BUFFER_SIZE));
+            }
+        }
+        listener.onBatchEnd();
+        return open;
+    }
+
+    /**
+     * Writes what is still queued when the client is closed, giving a stalled server a second to take it.
+     */
+    private void flush() throws IOException {
+        takePending();
+        long deadline = System.nanoTime() + CLOSE_FLUSH_NANOS;
+        while (writeBuffer.hasRemaining()) {
+            channel.write(writeBuffer);
+            long left = deadline - System.nanoTime();
+            if (!writeBuffer.hasRemaining() || left <= 0) {
+                break;
+            }
+            key.interestOps(SelectionKey.OP_WRITE);
+            selector.select(Math.max(1, left / 1_000_000));
+            selector.selectedKeys().clear();
+        }
+    }
+
+    private void pong() {
+        try {
+            enqueue("/pong", false);
+        } catch (IOException ignored) {
+            // the connection is going
+        }
+    }
+
+    /**
+     * Moves the lines queued by {@link #send(String)} behind whatever the last write left over.
+     */
+    private void takePending() {
+        synchronized (sendLock) {
+            wakeupDue = false;
+            if (pending.position() == 0) {
+                return;
+            }
+            pending.flip();
+            writeBuffer.compact();
+            if (writeBuffer.remaining() < pending.remaining()) {
+                writeBuffer = grow(writeBuffer, writeBuffer.position() + pending.remaining());
+            }
+            writeBuffer.put(pending).flip();
+            pending.clear();
+            sendLock.notifyAll();
+        }
+    }
+
+    private static ByteBuffer grow(ByteBuffer buffer, int minCapacity) {
+        ByteBuffer grown = ByteBuffer.allocate(Math.max(minCapacity, buffer.capacity() * 2));
+        buffer.flip();
+        return grown.put(buffer);
+    }
+
+    private void disconnect() {
+        closed = true;
+        synchronized (sendLock) {
+            sendLock.notifyAll();
+        }
+        try {
+            selector.close();
+        } catch (IOException ignored) {
+        }
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Writes what has been sent but not written yet, closes the connection and waits for the I/O thread to
+     * end. Nothing more is read once the client is closing.
+     */
+    @Override
+    public void close() {
+        synchronized (sendLock) {
+            if (channel == null || closing) {
+                return;
+            }
+            closing = true;
+        }
+        selector.wakeup();
+        if (Thread.currentThread() != ioThread) {
+            try {
+                ioThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package Client;
+
+import utils.BinaryProtocol;
+import utils.ConsoleColor;
+
+/**
+ * One message from the server, as handed to a {@link MessageListener}. With the text protocol every message
+ * is a {@link BinaryProtocol#LINE} whose text still holds the server's colour codes; with the binary protocol
+ * the sender, colour and channel come as fields and {@link #render()} adds the colours.
+ */
+public final class ChatMessage {
+
+    private final byte type;
+    private final String sender;
+    private final ConsoleColor color;
+    private final String channel;
+    private final String text;
+
+    ChatMessage(byte type, String sender, ConsoleColor color, String channel, String text) {
+        this.type = type;
+        this.sender = sender;
+        this.color = color;
+        this.channel = channel;
+        this.text = text;
+    }
+
+    static ChatMessage line(String text) {
+        return new ChatMessage(BinaryProtocol.LINE, null, ConsoleColor.DEFAULT, null, text);
+    }
+
+    /**
+     * A {@link BinaryProtocol} frame type: {@code CHAT}, {@code WHISPER}, {@code CHANNEL}, {@code SYSTEM},
+     * {@code HISTORY} or {@code LINE}.
+     */
+    public byte getType() {
+        return type;
+    }
+
+    /**
+     * Name of the client that sent a chat, whisper or channel message; null otherwise.
+     */
+    public String getSender() {
+        return sender;
+    }
+
+    /**
+     * The sender's colour, or the colour of a system notice.
+     */
+    public ConsoleColor getColor() {
+        return color;
+    }
+
+    public String getChannel() {
+        return channel;
+    }
+
+    /**
+     * The message text; history entries are one per line.
+     */
+    public String getText() {
+        return text;
+    }
+
+    /**
+     * The message as the console client shows it, with colour codes.
+     */
+    public String render() {
+        switch (type) {
+            case BinaryProtocol.CHAT:
+                return color.getCode() + sender + ": " + ConsoleColor.DEFAULT.getCode() + text;
+            case BinaryProtocol.WHISPER:
+                return ConsoleColor.WHISPER.getCode() + "<whisper>" + sender + ": " + ConsoleColor.DEFAULT.getCode() + text;
+            case BinaryProtocol.CHANNEL:
+                return color.getCode() + "#" + channel + " " + sender + ": " + ConsoleColor.DEFAULT.getCode() + text;
+            case BinaryProtocol.SYSTEM:
+                return color.getCode() + text + ConsoleColor.DEFAULT.getCode();
+            case BinaryProtocol.HISTORY:
+                return ConsoleColor.CHAT_HISTORY.getCode() + text + ConsoleColor.DEFAULT.getCode();
+            default:
+                return text;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return render();
+    }
+}
@@ -1,27 +0,0 @@
-package Client;
-
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.net.Socket;
-
-public class ClientMessageReader implements Runnable {
-    private final Socket socket;
-
-    public ClientMessageReader(Socket socket) {
-        this.socket = socket;
-    }
-
-    @Override
-    public void run() {
-        try {
-            BufferedReader serverReader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            String serverMessage;
-            while ((serverMessage = serverReader.readLine()) != null) {
-                System.out.println(serverMessage);
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-    }
-}
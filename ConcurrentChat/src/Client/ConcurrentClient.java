@@ -1,31 +1,79 @@
 package Client;
 
-import java.io.*;
-import java.net.Socket;
+import utils.BinaryProtocol;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Console client. Uses the binary protocol unless started with {@code --text}; {@code --host=} and
+ * {@code --port=} pick the server. {@code --load} runs the headless {@link LoadGenerator} instead.
+ */
 public class ConcurrentClient {
-    public static void main(String[] args) {
-        new ConcurrentClient().start();
+    private final String host;
+    private final int port;
+    private final boolean binary;
+
+    public ConcurrentClient() {
+        this("localhost", 9001, true);
     }
 
-    public void start() {
-        try {
-            Socket socket = new Socket("localhost", 9001);
+    public ConcurrentClient(String host, int port, boolean binary) {
+        this.host = host;
+        this.port = port;
+        this.binary = binary;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (Arrays.asList(args).contains("--load")) {
+            LoadGenerator.main(args);
+            return;
+        }
+        new ConcurrentClient(option(args, "host", "localhost"), Integer.parseInt(option(args, "port", "9001")),
+                !Arrays.asList(args).contains("--text")).start();
+    }
 
-            Thread serverReaderThread = new Thread(new ClientMessageReader(socket));
-            serverReaderThread.start();
+    /**
+     * The value of a {@code --key=value} argument, or {@code defaultValue}.
+     */
+    static String option(String[] args, String key, String defaultValue) {
+        String prefix = "--" + key + "=";
+        for (String arg : args) {
+            if (arg.startsWith(prefix)) {
+                return arg.substring(prefix.length());
+            }
+        }
+        return defaultValue;
+    }
 
+    /**
+     * Connects and sends what is typed until standard input ends; what the server sends is shown by a
+     * {@link ConsoleListener} on the {@link ChatClient}'s I/O thread.
+     */
+    public void start() {
+        try (ChatClient client = new ChatClient(host, port, binary, new ConsoleListener())) {
+            client.connect();
             BufferedReader userInputReader = new BufferedReader(new InputStreamReader(System.in));
-            OutputStream outputStream = socket.getOutputStream();
             String userInput;
-            while ((userInput = userInputReader.readLine()) != null) {
-                outputStream.write((userInput + "\n").getBytes());
-                outputStream.flush();
+            while ((userInput = userInputReader.readLine()) != null && client.isConnected()) {
+                client.send(userInput);
             }
-
-            socket.close();
         } catch (IOException e) {
-            e.printStackTrace();
+            System.err.println("Connection failed: " + e.getMessage());
         }
     }
+
+    /**
+     * Writes one binary {@code INPUT} frame; the blocking sessions of {@link LoadGenerator} send through here.
+     */
+    static void writeInput(OutputStream outputStream, String line) throws IOException {
+        byte[] text = line.getBytes(StandardCharsets.UTF_8);
+        BinaryProtocol.writeVarint(outputStream, text.length + 1);
+        outputStream.write(BinaryProtocol.INPUT);
+        outputStream.write(text);
+    }
 }
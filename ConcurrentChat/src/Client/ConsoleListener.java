@@ -0,0 +1,60 @@
+package Client;
+
+import java.io.BufferedWriter;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Shows messages the way the console client always has, but through one buffered UTF-8 writer that is
+ * flushed once per read instead of once per line, so a busy room costs a write call per batch rather than
+ * per message.
+ */
+public class ConsoleListener implements MessageListener {
+
+    private static final String NEWLINE = System.lineSeparator();
+
+    private final Writer out;
+
+    public ConsoleListener() {
+        this(new FileOutputStream(FileDescriptor.out));
+    }
+
+    public ConsoleListener(OutputStream outputStream) {
+        this.out = new BufferedWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8), 64 * 1024);
+    }
+
+    @Override
+    public void onMessage(ChatMessage message) {
+        try {
+            out.write(message.render());
+            out.write(NEWLINE);
+        } catch (IOException ignored) {
+            // nowhere left to report it
+        }
+    }
+
+    @Override
+    public void onBatchEnd() {
+        flush();
+    }
+
+    @Override
+    public void onDisconnected(IOException cause) {
+        if (cause != null) {
+            onMessage(ChatMessage.line("Connection lost: " + cause.getMessage()));
+        }
+        flush();
+    }
+
+    private void flush() {
+        try {
+            out.flush();
+        } catch (IOException ignored) {
+        }
+    }
+}
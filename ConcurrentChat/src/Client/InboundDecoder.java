@@ -0,0 +1,156 @@
+package Client;
+
+import utils.BinaryProtocol;
+import utils.ConsoleColor;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Turns what a {@link ChatClient} reads into {@link ChatMessage}s, straight from the read buffer: text lines
+ * up to the switch to binary frames, then frames. Keeps the names and colours the server sends once per
+ * sender. A line or frame cut off at the end of a read is left in the buffer for the next one.
+ */
+final class InboundDecoder {
+
+    private static final int MAX_FRAME_LENGTH = 64 * 1024 * 1024;
+    private static final ConsoleColor[] COLORS = ConsoleColor.values();
+
+    private final boolean binary;
+    private final BinaryFrameReader frame = new BinaryFrameReader(null);
+    private final Map<Integer, Sender> senders = new HashMap<>();
+    private boolean switched;
+
+    /**
+     * @param binary whether the client asked for the binary protocol; it is used once the server switches
+     */
+    InboundDecoder(boolean binary) {
+        this.binary = binary;
+    }
+
+    /**
+     * Decodes every complete line or frame between the position and limit of {@code buffer}, a heap buffer
+     * in read mode, and moves the position past them.
+     *
+     * @param onPing answers the server's heartbeat, which is not passed on
+     */
+    void decode(ByteBuffer buffer, Consumer<ChatMessage> sink, Runnable onPing) throws IOException {
+        byte[] bytes = buffer.array();
+        int base = buffer.arrayOffset();
+        int position = base + buffer.position();
+        int limit = base + buffer.limit();
+        if (!switched) {
+            position = decodeLines(bytes, position, limit, sink, onPing);
+        }
+        if (switched) {
+            position = decodeFrames(bytes, position, limit, sink, onPing);
+        }
+        buffer.position(position - base);
+    }
+
+    private int decodeLines(byte[] bytes, int position, int limit, Consumer<ChatMessage> sink, Runnable onPing) {
+        int start = position;
+        for (int i = position; i < limit; i++) {
+            byte b = bytes[i];
+            if (b == '\n') {
+                String line = new String(bytes, start, i - start, StandardCharsets.UTF_8);
+                if (line.equals("/ping")) {
+                    onPing.run();
+                } else {
+                    sink.accept(ChatMessage.line(line));
+                }
+                start = i + 1;
+            } else if (binary && b == BinaryProtocol.MAGIC) {
+                switched = true;
+                return i + 1;
+            }
+        }
+        return start;
+    }
+
+    private int decodeFrames(byte[] bytes, int position, int limit, Consumer<ChatMessage> sink, Runnable onPing)
+            throws IOException {
+        while (position < limit) {
+            int length = 0;
+            int shift = 0;
+            int body = position;
+            byte b;
+            do {
+                if (body == limit) {
+                    return position;
+                }
+                if (shift > 28) {
+                    throw new IOException("Malformed frame length");
+                }
+                b = bytes[body++];
+                length |= (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            if (length <= 0 || length > MAX_FRAME_LENGTH) {
+                throw new IOException("Invalid frame length " + length);
+            }
+            if (limit - body < length) {
+                return position;
+            }
+            frame.parse(bytes, body, length);
+            ChatMessage message = message(onPing);
+            if (message != null) {
+                sink.accept(message);
+            }
+            position = body + length;
+        }
+        return position;
+    }
+
+    private ChatMessage message(Runnable onPing) {
+        switch (frame.getType()) {
+            case BinaryProtocol.USER:
+                senders.put(frame.getSenderId(), new Sender(frame.getText(), color(frame.getColor())));
+                return null;
+            case BinaryProtocol.PING:
+                onPing.run();
+                return null;
+            case BinaryProtocol.CHAT:
+            case BinaryProtocol.WHISPER:
+            case BinaryProtocol.CHANNEL: {
+                Sender sender = sender(frame.getSenderId());
+                return new ChatMessage(frame.getType(), sender.name, sender.color, frame.getChannel(), frame.getText());
+            }
+            case BinaryProtocol.SYSTEM:
+                return new ChatMessage(BinaryProtocol.SYSTEM, null, color(frame.getColor()), null, frame.getText());
+            case BinaryProtocol.HISTORY: {
+                String history = frame.getText();
+                if (history.endsWith("\n")) {
+                    history = history.substring(0, history.length() - 1);
+                }
+                return history.isEmpty() ? null
+                        : new ChatMessage(BinaryProtocol.HISTORY, null, ConsoleColor.CHAT_HISTORY, null, history);
+            }
+            default:
+                return ChatMessage.line(frame.getText());
+        }
+    }
+
+    private Sender sender(int senderId) {
+        Sender sender = senders.get(senderId);
+        return sender != null ? sender : new Sender("#" + senderId, ConsoleColor.DEFAULT);
+    }
+
+    private static ConsoleColor color(int ordinal) {
+        return ordinal < COLORS.length ? COLORS[ordinal] : ConsoleColor.DEFAULT;
+    }
+
+    private static final class Sender {
+        private final String name;
+        private final ConsoleColor color;
+
+        private Sender(String name, ConsoleColor color) {
+            this.name = name;
+            this.color = color;
+        }
+    }
+}
@@ -0,0 +1,312 @@
+package Client;
+
+import utils.BinaryProtocol;
+import utils.LatencyHistogram;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Headless load: opens many sessions against a server, runs the name handshake on each and then sends
+ * broadcasts and {@code @name:} whispers at a fixed total rate. Every payload carries the time it was due to
+ * be sent, and each recipient records the time from then until it read the message, so a server that falls
+ * behind shows up as latency rather than as a lower send rate. Sessions run on virtual threads with one
+ * blocking socket each.
+ * <p>
+ * Usage: {@code ConcurrentClient --load [--host=localhost] [--port=9001] [--clients=1000] [--rate=1000]
+ * [--whisperPercent=10] [--payload=64] [--seconds=30] [--connectParallelism=64] [--text]}, where
+ * {@code rate} is messages per second over all sessions.
+ */
+public class LoadGenerator {
+
+    private final String host;
+    private final int port;
+    private final int clients;
+    private final double rate;
+    private final int whisperPercent;
+    private final String padding;
+    private final int seconds;
+    private final boolean binary;
+    private final Semaphore connectPermits;
+    // unique per run so history replayed from earlier runs is not counted
+    private final String marker = "lg" + Long.toString(System.nanoTime() & 0xFFFFFF, 36) + ":";
+    private final Session[] sessions;
+    // payload times are relative to this, since System.nanoTime() may be negative
+    private final long epoch = System.nanoTime();
+
+    private final LatencyHistogram connectTimes = new LatencyHistogram();
+    private final LatencyHistogram handshakeTimes = new LatencyHistogram();
+    private final LatencyHistogram broadcastLatency = new LatencyHistogram();
+    private final LatencyHistogram whisperLatency = new LatencyHistogram();
+    private final LongAdder broadcastsSent = new LongAdder();
+    private final LongAdder whispersSent = new LongAdder();
+    private final AtomicInteger joined = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private final CountDownLatch settled;
+    private final CountDownLatch go = new CountDownLatch(1);
+    private volatile boolean running = true;
+
+    public LoadGenerator(String[] args) {
+        this.host = ConcurrentClient.option(args, "host", "localhost");
+        this.port = Integer.parseInt(ConcurrentClient.option(args, "port", "9001"));
+        this.clients = Integer.parseInt(ConcurrentClient.option(args, "clients", "1000"));
+        this.rate = Double.parseDouble(ConcurrentClient.option(args, "rate", "1000"));
+        this.whisperPercent = Integer.parseInt(ConcurrentClient.option(args, "whisperPercent", "10"));
+        this.padding = "x".repeat(Integer.parseInt(ConcurrentClient.option(args, "payload", "64")));
+        this.seconds = Integer.parseInt(ConcurrentClient.option(args, "seconds", "30"));
+        this.connectPermits = new Semaphore(Integer.parseInt(ConcurrentClient.option(args, "connectParallelism", "64")));
+        this.binary = !Arrays.asList(args).contains("--text");
+        this.sessions = new Session[clients];
+        this.settled = new CountDownLatch(clients);
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        new LoadGenerator(args).run();
+        System.exit(0);
+    }
+
+    public void run() throws InterruptedException {
+        System.out.printf("Opening %d sessions to %s:%d (%s protocol)%n", clients, host, port, binary ? "binary" : "text");
+        long setupStart = System.nanoTime();
+        for (int i = 0; i < clients; i++) {
+            sessions[i] = new Session(marker.substring(0, marker.length() - 1) + "-" + i);
+        }
+        for (Session session : sessions) {
+            Thread.ofVirtual().name(session.name).start(session::run);
+        }
+        settled.await(Math.max(60, clients / 50), TimeUnit.SECONDS);
+        long setupMillis = (System.nanoTime() - setupStart) / 1_000_000;
+        System.out.printf("%d joined, %d failed in %d ms; sending %.0f msg/s for %d s%n",
+                joined.get(), failed.get(), setupMillis, rate, seconds);
+
+        long sendStart = System.nanoTime();
+        go.countDown();
+        Thread.sleep(seconds * 1000L);
+        running = false;
+        long sendNanos = System.nanoTime() - sendStart;
+        // let messages still in flight arrive
+        Thread.sleep(2000);
+        for (Session session : sessions) {
+            session.close();
+        }
+        report(setupMillis, sendNanos);
+    }
+
+    private void report(long setupMillis, long sendNanos) {
+        long broadcasts = broadcastsSent.sum();
+        long whispers = whispersSent.sum();
+        long delivered = broadcastLatency.getCount() + whisperLatency.getCount();
+        long expected = broadcasts * Math.max(0, joined.get() - 1) + whispers;
+        double sendSeconds = sendNanos / 1e9;
+        System.out.printf("%nsessions   joined=%d/%d failed=%d setup=%d ms%n", joined.get(), clients, failed.get(), setupMillis);
+        System.out.println("connect    " + connectTimes.summary("us"));
+        System.out.println("handshake  " + handshakeTimes.summary("us"));
+        System.out.printf("sent       broadcasts=%d whispers=%d (%.0f msg/s)%n", broadcasts, whispers, (broadcasts + whispers) / sendSeconds);
+        System.out.printf("received   %d of %d expected (%.0f deliveries/s)%n", delivered, expected, delivered / sendSeconds);
+        System.out.println("broadcast  " + broadcastLatency.summary("us"));
+        System.out.println("whisper    " + whisperLatency.summary("us"));
+    }
+
+    private Session randomPeer(Session self, ThreadLocalRandom random) {
+        for (int attempt = 0; attempt < 8; attempt++) {
+            Session peer = sessions[random.nextInt(sessions.length)];
+            if (peer != self && peer.joined) {
+                return peer;
+            }
+        }
+        return null;
+    }
+
+    private void record(boolean whisper, String text, int offset) {
+        long dueAt = 0;
+        for (int i = offset; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < '0' || c > '9') {
+                break;
+            }
+            dueAt = dueAt * 10 + (c - '0');
+        }
+        long micros = (System.nanoTime() - epoch - dueAt) / 1000;
+        (whisper ? whisperLatency : broadcastLatency).record(micros);
+    }
+
+    private final class Session {
+
+        private final String name;
+        private volatile boolean joined;
+        private volatile Socket socket;
+        private OutputStream outputStream;
+        private long connectedAt;
+        private boolean settledOnce;
+
+        Session(String name) {
+            this.name = name;
+        }
+
+        void run() {
+            try {
+                connectPermits.acquire();
+                long start = System.nanoTime();
+                try {
+                    socket = new Socket();
+                    socket.setTcpNoDelay(true);
+                    socket.connect(new InetSocketAddress(host, port), 10_000);
+                } finally {
+                    connectPermits.release();
+                }
+                connectedAt = System.nanoTime();
+                connectTimes.record((connectedAt - start) / 1000);
+                outputStream = new BufferedOutputStream(socket.getOutputStream());
+                InputStream inputStream = new BufferedInputStream(socket.getInputStream());
+                if (binary) {
+                    outputStream.write(BinaryProtocol.MAGIC);
+                    ConcurrentClient.writeInput(outputStream, name);
+                    outputStream.flush();
+                    readFrames(inputStream);
+                } else {
+                    // the unasked /pong tells the server this session answers heartbeats
+                    outputStream.write(("/pong\n" + name + "\n").getBytes(StandardCharsets.UTF_8));
+                    outputStream.flush();
+                    readLines(inputStream);
+                }
+            } catch (IOException | InterruptedException | RuntimeException ignored) {
+                // counted as failed unless the session had joined
+            } finally {
+                settle(false);
+            }
+        }
+
+        private void readFrames(InputStream inputStream) throws IOException {
+            BinaryFrameReader reader = new BinaryFrameReader(inputStream);
+            if (!reader.awaitSwitch(line -> { })) {
+                return;
+            }
+            while (reader.next()) {
+                byte type = reader.getType();
+                if (type == BinaryProtocol.PING) {
+                    write("/pong");
+                } else if (!joined) {
+                    if (type == BinaryProtocol.LINE && reader.getText().contains("Welcome")) {
+                        onWelcome();
+                    } else if (type == BinaryProtocol.SYSTEM && reader.getText().startsWith("Enter another name")) {
+                        return;
+                    }
+                } else if (type == BinaryProtocol.CHAT || type == BinaryProtocol.WHISPER) {
+                    String text = reader.getText();
+                    if (text.startsWith(marker)) {
+                        record(type == BinaryProtocol.WHISPER, text, marker.length());
+                    }
+                }
+            }
+        }
+
+        private void readLines(InputStream inputStream) throws IOException {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.equals("/ping")) {
+                    write("/pong");
+                    continue;
+                }
+                if (!joined) {
+                    if (line.contains("Welcome")) {
+                        onWelcome();
+                    } else if (line.contains("Enter another name")) {
+                        return;
+                    }
+                    continue;
+                }
+                int markerIndex = line.indexOf(marker);
+                if (markerIndex != -1) {
+                    record(line.contains("<whisper>"), line, markerIndex + marker.length());
+                }
+            }
+        }
+
+        private void onWelcome() {
+            handshakeTimes.record((System.nanoTime() - connectedAt) / 1000);
+            joined = true;
+            settle(true);
+            Thread.ofVirtual().name(name + "-sender").start(this::send);
+        }
+
+        private synchronized void settle(boolean success) {
+            if (settledOnce) {
+                return;
+            }
+            settledOnce = true;
+            (success ? LoadGenerator.this.joined : failed).incrementAndGet();
+            settled.countDown();
+        }
+
+        /**
+         * Sends one message every {@code clients / rate} seconds, starting at a random offset so the sessions
+         * spread their sends evenly.
+         */
+        private void send() {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            try {
+                go.await();
+                long interval = (long) (clients * 1e9 / rate);
+                long next = System.nanoTime() + (long) (random.nextDouble() * interval);
+                StringBuilder message = new StringBuilder(64 + padding.length());
+                while (running) {
+                    long wait = next - System.nanoTime();
+                    if (wait > 0) {
+                        LockSupport.parkNanos(wait);
+                        continue;
+                    }
+                    message.setLength(0);
+                    Session peer = random.nextInt(100) < whisperPercent ? randomPeer(this, random) : null;
+                    if (peer != null) {
+                        message.append('@').append(peer.name).append(": ");
+                    }
+                    message.append(marker).append(next - epoch).append(' ').append(padding);
+                    write(message.toString());
+                    (peer != null ? whispersSent : broadcastsSent).increment();
+                    next += interval;
+                }
+            } catch (IOException | InterruptedException e) {
+                close();
+            }
+        }
+
+        /**
+         * Called by the sender thread and, for pongs, the reader thread.
+         */
+        private synchronized void write(String message) throws IOException {
+            if (binary) {
+                ConcurrentClient.writeInput(outputStream, message);
+            } else {
+                outputStream.write((message + "\n").getBytes(StandardCharsets.UTF_8));
+            }
+            outputStream.flush();
+        }
+
+        void close() {
+            Socket current = socket;
+            if (current != null) {
+                try {
+                    current.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package Client;
+
+import java.io.IOException;
+
+/**
+ * Receives what a {@link ChatClient} reads. Every method runs on the client's I/O thread, so a listener that
+ * takes long holds up reading, and through TCP flow control the server's writes to this client.
+ */
+public interface MessageListener {
+
+    void onMessage(ChatMessage message);
+
+    /**
+     * Called once the messages of one read have been delivered; the place to flush buffered output.
+     */
+    default void onBatchEnd() {
+    }
+
+    /**
+     * @param cause the error that closed the connection, or null if the server or {@link ChatClient#close()} did
+     */
+    default void onDisconnected(IOException cause) {
+    }
+}
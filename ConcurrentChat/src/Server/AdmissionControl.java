@@ -0,0 +1,294 @@
+package Server;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * Decides at accept time whether a connection is served, and how fast its lines are taken afterwards.
+ * <p>
+ * A connection is turned away if its address is banned, if the server already has {@code maxConnections}
+ * sessions, or if its address already has {@code maxConnectionsPerAddress}. The checks are a set lookup and
+ * two counter updates, made on the accepting thread before anything is allocated for the session. Admitted
+ * connections get a {@link Ticket} holding their message rate limits: one bucket per connection and,
+ * if configured, one shared by every connection from the same address.
+ */
+public class AdmissionControl {
+
+    private static final Pattern IPV4 = Pattern.compile("\\d{1,3}(\\.\\d{1,3}){3}");
+
+    private final int maxConnections;
+    private final int maxConnectionsPerAddress;
+    private final double messageRate;
+    private final int messageBurst;
+    private final double addressMessageRate;
+    private final int addressMessageBurst;
+    private final Path banFile;
+    private final ServerMetrics metrics;
+    private final Logger logger;
+    private final Set<InetAddress> banned = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger connections = new AtomicInteger();
+    private final ConcurrentHashMap<InetAddress, AddressState> addresses = new ConcurrentHashMap<>();
+
+    public AdmissionControl(ServerConfig config, ServerMetrics metrics, Logger logger) {
+        this.maxConnections = config.getInt("maxConnections", 10_000);
+        this.maxConnectionsPerAddress = config.getInt("maxConnectionsPerAddress", 0);
+        this.messageRate = Double.parseDouble(config.getString("messageRate", "50"));
+        this.messageBurst = config.getInt("messageBurst", (int) Math.max(1, messageRate * 2));
+        this.addressMessageRate = Double.parseDouble(config.getString("addressMessageRate", "0"));
+        this.addressMessageBurst = config.getInt("addressMessageBurst", (int) Math.max(1, addressMessageRate * 2));
+        String banFileName = config.getString("banFile", "logs/bans.txt");
+        this.banFile = banFileName.isEmpty() ? null : Path.of(banFileName);
+        this.metrics = metrics;
+        this.logger = logger;
+        loadBans();
+    }
+
+    /**
+     * Counts the connection against the limits. A rejected ticket holds nothing and need not be released.
+     */
+    public Ticket admit(InetAddress address) {
+        if (address != null && banned.contains(address)) {
+            metrics.recordRejectedBanned();
+            return Ticket.BANNED;
+        }
+        if (maxConnections > 0) {
+            int current;
+            do {
+                current = connections.get();
+                if (current >= maxConnections) {
+                    metrics.recordRejectedFull();
+                    return Ticket.FULL;
+                }
+            } while (!connections.compareAndSet(current, current + 1));
+        } else {
+            connections.incrementAndGet();
+        }
+        AddressState state = null;
+        if (address != null) {
+            boolean[] admitted = {false};
+            state = addresses.compute(address, (key, existing) -> {
+                AddressState next = existing != null ? existing : new AddressState(
+                        addressMessageRate > 0 ? new RateLimiter(addressMessageRate, addressMessageBurst) : null);
+                if (maxConnectionsPerAddress <= 0 || next.connections < maxConnectionsPerAddress) {
+                    next.connections++;
+                    admitted[0] = true;
+                }
+                return next;
+            });
+            if (!admitted[0]) {
+                connections.decrementAndGet();
+                metrics.recordRejectedPerAddress();
+                return Ticket.ADDRESS_FULL;
+            }
+        }
+        return new Ticket(this, address, state, messageRate > 0 ? new RateLimiter(messageRate, messageBurst) : null);
+    }
+
+    private void release(Ticket ticket) {
+        connections.decrementAndGet();
+        if (ticket.address != null) {
+            addresses.computeIfPresent(ticket.address, (key, state) -> --state.connections == 0 ? null : state);
+        }
+    }
+
+    /**
+     * Tells a turned away client why, if its socket takes the line right away, and closes it.
+     */
+    public void reject(SocketChannel channel, Ticket ticket) {
+        logger.log(Level.FINE, "Rejected connection from {0}: {1}", new Object[]{channel.socket().getInetAddress(), ticket.rejection});
+        try {
+            channel.configureBlocking(false);
+            channel.write(ByteBuffer.wrap((ticket.rejection + "\n").getBytes(StandardCharsets.UTF_8)));
+        } catch (IOException ignored) {
+            // closing anyway
+        }
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    public int getConnections() {
+        return connections.get();
+    }
+
+    // ---- bans ----
+
+    /**
+     * Reads an IPv4 or IPv6 literal without ever asking DNS.
+     *
+     * @return null if {@code text} is not an address literal
+     */
+    static InetAddress parseAddress(String text) {
+        String literal = text.trim();
+        if (!IPV4.matcher(literal).matches() && !literal.contains(":")) {
+            return null;
+        }
+        try {
+            return InetAddress.getByName(literal);
+        } catch (UnknownHostException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return false if the address was banned already
+     */
+    public boolean ban(InetAddress address) {
+        boolean added = banned.add(address);
+        if (added) {
+            saveBans();
+        }
+        return added;
+    }
+
+    /**
+     * @return false if the address was not banned
+     */
+    public boolean unban(InetAddress address) {
+        boolean removed = banned.remove(address);
+        if (removed) {
+            saveBans();
+        }
+        return removed;
+    }
+
+    public boolean isBanned(InetAddress address) {
+        return address != null && banned.contains(address);
+    }
+
+    public List<InetAddress> bans() {
+        return new ArrayList<>(banned);
+    }
+
+    public String describeLimits() {
+        return "connections=" + connections.get() + "/" + (maxConnections > 0 ? maxConnections : "unlimited")
+                + " perAddress=" + (maxConnectionsPerAddress > 0 ? maxConnectionsPerAddress : "unlimited")
+                + " messageRate=" + (messageRate > 0 ? messageRate + "/s burst " + messageBurst : "unlimited")
+                + " addressMessageRate=" + (addressMessageRate > 0 ? addressMessageRate + "/s burst " + addressMessageBurst : "unlimited")
+                + " addresses=" + addresses.size() + " banned=" + banned.size();
+    }
+
+    private void loadBans() {
+        if (banFile == null || !Files.exists(banFile)) {
+            return;
+        }
+        try {
+            for (String line : Files.readAllLines(banFile, StandardCharsets.UTF_8)) {
+                if (line.isBlank() || line.startsWith("#")) {
+                    continue;
+                }
+                InetAddress address = parseAddress(line);
+                if (address != null) {
+                    banned.add(address);
+                } else {
+                    logger.log(Level.WARNING, "Ignoring invalid address in {0}: {1}", new Object[]{banFile, line});
+                }
+            }
+            logger.log(Level.INFO, "Loaded {0} banned addresses from {1}", new Object[]{banned.size(), banFile});
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Unable to read ban list {0}: {1}", new Object[]{banFile, e.getMessage()});
+        }
+    }
+
+    private synchronized void saveBans() {
+        if (banFile == null) {
+            return;
+        }
+        List<String> lines = new ArrayList<>();
+        for (InetAddress address : banned) {
+            lines.add(address.getHostAddress());
+        }
+        try {
+            if (banFile.getParent() != null) {
+                Files.createDirectories(banFile.getParent());
+            }
+            Files.write(banFile, lines, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Unable to save ban list {0}: {1}", new Object[]{banFile, e.getMessage()});
+        }
+    }
+
+    /**
+     * Connections and the shared message bucket of one remote address. Only touched inside
+     * {@code addresses.compute}, which serializes updates per address.
+     */
+    private static final class AddressState {
+
+        private final RateLimiter messages;
+        private int connections;
+
+        private AddressState(RateLimiter messages) {
+            this.messages = messages;
+        }
+    }
+
+    /**
+     * One admitted connection's share of the limits. Released once when the session ends.
+     */
+    public static final class Ticket {
+
+        static final Ticket BANNED = new Ticket("Connection refused: this address is banned");
+        static final Ticket FULL = new Ticket("Connection refused: the server is full, try again later");
+        static final Ticket ADDRESS_FULL = new Ticket("Connection refused: too many connections from this address");
+
+        private final AdmissionControl owner;
+        private final InetAddress address;
+        private final AddressState state;
+        private final RateLimiter messages;
+        private final String rejection;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Ticket(String rejection) {
+            this(null, null, null, null, rejection);
+        }
+
+        private Ticket(AdmissionControl owner, InetAddress address, AddressState state, RateLimiter messages) {
+            this(owner, address, state, messages, null);
+        }
+
+        private Ticket(AdmissionControl owner, InetAddress address, AddressState state, RateLimiter messages, String rejection) {
+            this.owner = owner;
+            this.address = address;
+            this.state = state;
+            this.messages = messages;
+            this.rejection = rejection;
+        }
+
+        public boolean isAdmitted() {
+            return owner != null;
+        }
+
+        /**
+         * Takes a token from this connection's bucket and its address's bucket.
+         *
+         * @return false if either is empty and the line should be dropped
+         */
+        boolean allowMessage() {
+            long now = System.nanoTime();
+            return (messages == null || messages.tryAcquire(now))
+                    && (state == null || state.messages == null || state.messages.tryAcquire(now));
+        }
+
+        void release() {
+            if (owner != null && released.compareAndSet(false, true)) {
+                owner.release(this);
+            }
+        }
+    }
+}
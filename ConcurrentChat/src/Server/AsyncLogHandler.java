@@ -0,0 +1,177 @@
+package Server;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.ErrorManager;
+import java.util.logging.Formatter;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.SimpleFormatter;
+
+/**
+ * Takes log records off the logging thread: {@link #publish} only puts the record on a bounded lock-free
+ * queue, and a writer thread formats whole batches and writes each batch to the log file, and to the console
+ * while that is switched on, with one write and one flush.
+ * <p>
+ * When the queue is full, records below {@link Level#WARNING} are dropped and counted, and the count is
+ * logged once there is room again; warnings and errors wait for room instead, so they are never lost.
+ * Records are stamped with the logger name as their source, since finding the calling method would mean
+ * walking the stack on the logging thread.
+ */
+public final class AsyncLogHandler extends Handler {
+
+    private static final int BATCH_SIZE = 256;
+
+    private final BoundedMpscQueue<LogRecord> queue;
+    private final Writer file;
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final Thread writer;
+    private final StringBuilder batch = new StringBuilder(16 * 1024);
+    private volatile boolean consoleEnabled;
+    private volatile boolean sleeping;
+    private volatile boolean running = true;
+    private volatile long written;
+
+    /**
+     * @param logFile appended to, or null for console only
+     */
+    public AsyncLogHandler(String logFile, int queueSize, boolean consoleEnabled) throws IOException {
+        this.queue = new BoundedMpscQueue<>(queueSize);
+        this.file = logFile != null
+                ? new BufferedWriter(new OutputStreamWriter(new FileOutputStream(logFile, true), StandardCharsets.UTF_8), 64 * 1024)
+                : null;
+        this.consoleEnabled = consoleEnabled;
+        setFormatter(new SimpleFormatter());
+        this.writer = new Thread(this::writeLoop, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    public void setConsoleEnabled(boolean consoleEnabled) {
+        this.consoleEnabled = consoleEnabled;
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    @Override
+    public void publish(LogRecord record) {
+        if (!running || !isLoggable(record)) {
+            return;
+        }
+        record.setSourceClassName(record.getLoggerName());
+        record.setSourceMethodName(null);
+        if (!queue.offer(record)) {
+            if (record.getLevel().intValue() < Level.WARNING.intValue()) {
+                dropped.incrementAndGet();
+                return;
+            }
+            while (!queue.offer(record)) {
+                if (!writer.isAlive()) {
+                    return;
+                }
+                LockSupport.unpark(writer);
+                LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(50));
+            }
+        }
+        published.incrementAndGet();
+        if (sleeping) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    private void writeLoop() {
+        while (running || !queue.isEmpty()) {
+            if (!writeBatch()) {
+                sleeping = true;
+                if (queue.isEmpty() && running) {
+                    LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(100));
+                }
+                sleeping = false;
+            }
+        }
+        writeBatch();
+    }
+
+    /**
+     * @return false if there was nothing to write
+     */
+    private boolean writeBatch() {
+        Formatter formatter = getFormatter();
+        int count = 0;
+        LogRecord record;
+        while (count < BATCH_SIZE && (record = queue.poll()) != null) {
+            try {
+                batch.append(formatter.format(record));
+            } catch (RuntimeException e) {
+                reportError("Unable to format log record", e, ErrorManager.FORMAT_FAILURE);
+            }
+            count++;
+        }
+        long lost = dropped.getAndSet(0);
+        if (lost > 0) {
+            batch.append(formatter.format(new LogRecord(Level.WARNING, "Log queue full, dropped " + lost + " records")));
+        }
+        if (batch.length() == 0) {
+            return false;
+        }
+        if (file != null) {
+            try {
+                file.append(batch);
+                file.flush();
+            } catch (IOException e) {
+                reportError("Unable to write log file", e, ErrorManager.WRITE_FAILURE);
+            }
+        }
+        if (consoleEnabled) {
+            System.err.print(batch);
+            System.err.flush();
+        }
+        batch.setLength(0);
+        written += count;
+        return true;
+    }
+
+    /**
+     * Waits until everything published so far has been written.
+     */
+    @Override
+    public void flush() {
+        long target = published.get();
+        while (written < target && writer.isAlive()) {
+            LockSupport.unpark(writer);
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+    }
+
+    /**
+     * Writes what is queued, then stops the writer and closes the file.
+     */
+    @Override
+    public void close() {
+        running = false;
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (file != null) {
+            try {
+                file.close();
+            } catch (IOException e) {
+                reportError("Unable to close log file", e, ErrorManager.CLOSE_FAILURE);
+            }
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package Server;
+
+import utils.BinaryProtocol;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Consumer;
+
+/**
+ * Splits a {@link BinaryProtocol} byte stream into frames and hands the text of every {@code INPUT} frame
+ * on as lines. A frame holding line breaks is split the way {@link LineFramer} splits a stream, so no line
+ * handed on contains one. Other frame types from a client are skipped. Like {@link LineFramer}, only an
+ * unfinished frame is kept between reads.
+ */
+public class BinaryFramer {
+
+    private final int maxFrameLength;
+    private int length = -1;
+    private int lengthShift;
+    private int partialLength;
+    private byte[] body;
+    private int bodyFilled;
+
+    public BinaryFramer(int maxLineLength) {
+        this.maxFrameLength = maxLineLength + 1;
+    }
+
+    /**
+     * @return false if a frame is longer than the maximum line length or its length is malformed
+     */
+    public boolean feed(ByteBuffer buffer, Consumer<String> lineConsumer) {
+        while (buffer.hasRemaining()) {
+            if (length == -1) {
+                int b = buffer.get();
+                partialLength |= (b & 0x7F) << lengthShift;
+                lengthShift += 7;
+                if ((b & 0x80) != 0) {
+                    if (lengthShift >= 35) {
+                        return false;
+                    }
+                    continue;
+                }
+                length = partialLength;
+                partialLength = 0;
+                lengthShift = 0;
+                if (length <= 0 || length > maxFrameLength) {
+                    return false;
+                }
+                body = new byte[length];
+                bodyFilled = 0;
+            }
+            int take = Math.min(buffer.remaining(), length - bodyFilled);
+            buffer.get(body, bodyFilled, take);
+            bodyFilled += take;
+            if (bodyFilled == length) {
+                byte[] complete = body;
+                body = null;
+                length = -1;
+                if (complete[0] == BinaryProtocol.INPUT) {
+                    acceptLines(complete, lineConsumer);
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Hands on each {@code \n}-terminated piece of the frame text as a line, without a trailing {@code \r},
+     * and the rest as the last line unless it is empty.
+     */
+    private static void acceptLines(byte[] frame, Consumer<String> lineConsumer) {
+        int start = 1;
+        for (int i = 1; i <= frame.length; i++) {
+            if (i < frame.length && frame[i] != '\n') {
+                continue;
+            }
+            if (i == frame.length && start == i && start > 1) {
+                break;
+            }
+            int end = i > start && frame[i - 1] == '\r' ? i - 1 : i;
+            lineConsumer.accept(new String(frame, start, end - start, StandardCharsets.UTF_8));
+            start = i + 1;
+        }
+    }
+}
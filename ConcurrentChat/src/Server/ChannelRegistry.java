@@ -0,0 +1,145 @@
+package Server;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * The open channels, keyed by normalized name. A channel exists while it has members: the first join opens
+ * it together with its journal under {@code directory/<name>}, the last leave closes it.
+ * <p>
+ * The map holds a future per channel so that opening and closing, which read and write files, happen
+ * outside any map operation. The first joiner puts an unfinished future in and opens the journal while
+ * later joiners wait on it. The last leaver retires the channel, which then turns joins away, closes it and
+ * only then takes it out of the map. A join that hits a retired channel waits for that and opens it afresh,
+ * so one history is never open twice.
+ */
+public class ChannelRegistry {
+
+    private static final Pattern VALID_NAME = Pattern.compile("[A-Za-z0-9_-]{1,32}");
+
+    private final ConcurrentHashMap<String, CompletableFuture<ChatChannel>> channels = new ConcurrentHashMap<>();
+    private final Path directory;
+    private final JournalSettings settings;
+    private final JournalWriter writer;
+    private final Logger logger;
+
+    public ChannelRegistry(Path directory, JournalSettings settings, JournalWriter writer, Logger logger) {
+        this.directory = directory;
+        this.settings = settings;
+        this.writer = writer;
+        this.logger = logger;
+    }
+
+    /**
+     * Strips a leading {@code #} and lower-cases the name.
+     *
+     * @return the channel key, or null if the name is not allowed
+     */
+    public static String normalize(String name) {
+        if (name == null) {
+            return null;
+        }
+        String trimmed = name.trim();
+        if (trimmed.startsWith("#")) {
+            trimmed = trimmed.substring(1);
+        }
+        return VALID_NAME.matcher(trimmed).matches() ? ClientRegistry.normalize(trimmed) : null;
+    }
+
+    /**
+     * Adds the client to the channel, opening the channel if needed.
+     *
+     * @return the channel, or null if its history could not be opened
+     */
+    public ChatChannel join(String key, ClientHandler clientHandler) {
+        while (true) {
+            CompletableFuture<ChatChannel> existing = channels.get(key);
+            ChatChannel channel;
+            if (existing != null) {
+                channel = existing.join();
+            } else {
+                CompletableFuture<ChatChannel> opening = new CompletableFuture<>();
+                existing = channels.putIfAbsent(key, opening);
+                channel = existing != null ? existing.join() : open(key, opening);
+            }
+            if (channel == null) {
+                return null;
+            }
+            if (channel.add(clientHandler) || !channel.isRetired()) {
+                return channel;
+            }
+            channel.awaitClosed();
+        }
+    }
+
+    /**
+     * Removes the client from the channel and closes the channel if it was the last member.
+     *
+     * @return false if the client was not in the channel
+     */
+    public boolean leave(ChatChannel channel, ClientHandler clientHandler) {
+        boolean removed = channel.remove(clientHandler);
+        if (removed && channel.retireIfEmpty()) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Unable to close channel #{0}: {1}", new Object[]{channel.getName(), e.getMessage()});
+            } finally {
+                channels.computeIfPresent(channel.getName(), (name, current) -> current.getNow(null) == channel ? null : current);
+                channel.markClosed();
+            }
+        }
+        return removed;
+    }
+
+    public ChatChannel find(String key) {
+        CompletableFuture<ChatChannel> channel = key != null ? channels.get(key) : null;
+        return channel != null ? channel.getNow(null) : null;
+    }
+
+    public int size() {
+        return channels.size();
+    }
+
+    /**
+     * The open channels sorted by name.
+     */
+    public List<ChatChannel> list() {
+        List<ChatChannel> list = new ArrayList<>();
+        for (CompletableFuture<ChatChannel> channel : channels.values()) {
+            ChatChannel open = channel.getNow(null);
+            if (open != null && !open.isRetired()) {
+                list.add(open);
+            }
+        }
+        list.sort(Comparator.comparing(ChatChannel::getName));
+        return list;
+    }
+
+    /**
+     * Opens the channel whose unfinished future this thread put in the map, and completes it. If the history
+     * cannot be opened the future is taken out again and completed with null, failing the joins waiting on it.
+     */
+    private ChatChannel open(String key, CompletableFuture<ChatChannel> opening) {
+        ChatChannel channel = null;
+        try {
+            channel = new ChatChannel(key, MessageJournal.open(directory.resolve(key), settings, writer, logger));
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Unable to open channel #{0}: {1}", new Object[]{key, e.getMessage()});
+        } finally {
+            if (channel == null) {
+                channels.remove(key, opening);
+            }
+            opening.complete(channel);
+        }
+        return channel;
+    }
+}
@@ -0,0 +1,164 @@
+package Server;
+
+import utils.ConsoleColor;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A named room. Posts are encoded once and handed only to the room's members, so a message costs work
+ * proportional to the room rather than to the whole server. Members are kept in a copy-on-write array like
+ * {@link ClientRegistry}; history goes to the room's own {@link MessageJournal}.
+ */
+public class ChatChannel implements Closeable {
+
+    private static final ClientHandler[] EMPTY = new ClientHandler[0];
+
+    private final String name;
+    private final MessageJournal journal;
+    private final ReentrantLock membersLock = new ReentrantLock();
+    private volatile ClientHandler[] members = EMPTY;
+    private volatile boolean retired;
+    private final CompletableFuture<Void> closed = new CompletableFuture<>();
+
+    ChatChannel(String name, MessageJournal journal) {
+        this.name = name;
+        this.journal = journal;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public MessageJournal getJournal() {
+        return journal;
+    }
+
+    /**
+     * @return false if the client was already a member or the channel has been retired
+     */
+    boolean add(ClientHandler clientHandler) {
+        membersLock.lock();
+        try {
+            if (retired) {
+                return false;
+            }
+            ClientHandler[] current = members;
+            for (ClientHandler member : current) {
+                if (member == clientHandler) {
+                    return false;
+                }
+            }
+            ClientHandler[] next = Arrays.copyOf(current, current.length + 1);
+            next[current.length] = clientHandler;
+            members = next;
+            return true;
+        } finally {
+            membersLock.unlock();
+        }
+    }
+
+    /**
+     * @return false if the client was not a member
+     */
+    boolean remove(ClientHandler clientHandler) {
+        membersLock.lock();
+        try {
+            ClientHandler[] current = members;
+            for (int i = 0; i < current.length; i++) {
+                if (current[i] == clientHandler) {
+                    ClientHandler[] next = current.length == 1 ? EMPTY : new ClientHandler[current.length - 1];
+                    System.arraycopy(current, 0, next, 0, i);
+                    System.arraycopy(current, i + 1, next, i, current.length - i - 1);
+                    members = next;
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            membersLock.unlock();
+        }
+    }
+
+    /**
+     * Retires the channel if it has no members left, after which {@link #add} turns everyone away.
+     *
+     * @return true if it was retired by this call, and the caller has to close it
+     */
+    boolean retireIfEmpty() {
+        membersLock.lock();
+        try {
+            if (retired || members.length > 0) {
+                return false;
+            }
+            retired = true;
+            return true;
+        } finally {
+            membersLock.unlock();
+        }
+    }
+
+    boolean isRetired() {
+        return retired;
+    }
+
+    /**
+     * Called by the registry once a retired channel is closed and gone from it.
+     */
+    void markClosed() {
+        closed.complete(null);
+    }
+
+    /**
+     * Waits until a retired channel is closed and gone, so its history can be opened again.
+     */
+    void awaitClosed() {
+        closed.join();
+    }
+
+    /**
+     * The members right now. The array is shared and must not be modified.
+     */
+    public ClientHandler[] members() {
+        return members;
+    }
+
+    public int size() {
+        return members.length;
+    }
+
+    public boolean isEmpty() {
+        return members.length == 0;
+    }
+
+    /**
+     * Sends a member's message to the other members and records it in the room history.
+     */
+    public void post(String message, ClientHandler sender) {
+        deliver(Frame.channel(sender, name, message), sender);
+        journal.append(sender.getClientSimpleName() + ": " + message);
+    }
+
+    /**
+     * A notice to the other members that is not kept in the history.
+     */
+    public void notice(String message, ClientHandler excluded) {
+        deliver(Frame.system(ConsoleColor.ADMIN, "#" + name + " " + message), excluded);
+    }
+
+    private void deliver(Frame frame, ClientHandler excluded) {
+        for (ClientHandler member : members) {
+            if (member != excluded) {
+                member.sendFrame(frame);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        journal.close();
+    }
+}
@@ -0,0 +1,46 @@
+package Server;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Transport behind a {@link ClientHandler}. The blocking server uses {@link SocketConnection},
+ * the selector based server uses {@link NioConnection}.
+ */
+public interface ClientConnection {
+
+    /**
+     * Starts writing whatever is queued in {@code outbound}. Never blocks the caller on the socket.
+     */
+    void signalWrite(OutboundQueue outbound);
+
+    /**
+     * Writes what is already queued, waiting at most {@code timeoutMillis} where the transport allows it,
+     * then closes the connection.
+     */
+    void flushAndClose(OutboundQueue outbound, long timeoutMillis) throws IOException;
+
+    /**
+     * Starts writing what is queued and waits until all of it is written or {@code deadlineNanos} passes.
+     * Blocks, so never for the reactor thread.
+     *
+     * @return true if nothing was left unwritten
+     */
+    default boolean awaitFlushed(OutboundQueue outbound, long deadlineNanos) {
+        signalWrite(outbound);
+        while (!outbound.isEmpty() && System.nanoTime() < deadlineNanos) {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(5));
+        }
+        return outbound.isEmpty();
+    }
+
+    void close() throws IOException;
+
+    boolean isClosed();
+
+    InetAddress getInetAddress();
+
+    int getPort();
+}
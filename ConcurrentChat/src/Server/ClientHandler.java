@@ -2,106 +2,639 @@ package Server;
 
 import utils.ConsoleColor;
 
-import java.io.*;
+import java.io.IOException;
 import java.net.InetAddress;
-import java.net.Socket;
-import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class ClientHandler implements Runnable {
 
-    private final Socket clientSocket;
+    private static final AtomicInteger SENDER_IDS = new AtomicInteger();
+
+    private final ClientConnection connection;
     private final ConcurrentServer server;
     private  ConsoleColor color;
-    private String clientName;
+    private volatile String clientName;
+    private volatile boolean nameCheckPending;
     private String coloredName;
+    private final OutboundQueue outbound;
+    private final AtomicBoolean disconnected = new AtomicBoolean();
+    private final int senderId = SENDER_IDS.incrementAndGet();
+    private volatile Frame introFrame;
+    private final ConcurrentHashMap<String, ChatChannel> joinedChannels = new ConcurrentHashMap<>();
+    private final ServerMetrics metrics;
+    private final long connectedNanos = System.nanoTime();
+    private final AdmissionControl.Ticket admission;
+    private boolean throttled;
+    private volatile long lastReadNanos = connectedNanos;
+    private long pingedForRead = Long.MIN_VALUE;
+    private volatile boolean heartbeats;
+    private volatile TimerWheel.Timeout timeout;
+    private volatile String resumeToken;
+    private volatile long ownSequence = -1;
+    private volatile long firstLiveSequence = -1;
+    private volatile long replayedBelow = -1;
+    private RecipientList lastRecipients;
 
     private final Logger logger;
 
-    public ClientHandler(Socket clientSocket, ConcurrentServer server, Logger logger) {
-        this.clientSocket = clientSocket;
+    public ClientHandler(ClientConnection connection, ConcurrentServer server, Logger logger) {
+        this(connection, server, logger, null);
+    }
+
+    /**
+     * @param admission the connection's share of the admission limits, released on disconnect; null for none
+     */
+    public ClientHandler(ClientConnection connection, ConcurrentServer server, Logger logger, AdmissionControl.Ticket admission) {
+        this.connection = connection;
+        this.admission = admission;
         this.server = server;
         this.logger = logger;
         this.color = ConsoleColor.getRandomColor();
+        this.outbound = server.createOutboundQueue();
+        this.metrics = server.getMetrics();
+        metrics.recordConnectionOpened();
     }
 
     public ConsoleColor getColor() {
         return color;
     }
 
+    /**
+     * Blocking modes: owns the calling thread for the whole session.
+     */
     @Override
     public void run() {
-        logger.log(Level.INFO, Thread.currentThread().getName() + " ready and running");
+        logger.log(Level.INFO, "{0} ready and running", Thread.currentThread().getName());
         try {
-            sendMessageSingleLine(color.ADMIN.getCode() + "Type your name here:" + ConsoleColor.DEFAULT.getCode());
-
-            BufferedReader reader = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-            String inputName;
-            while (true) {
-                inputName = reader.readLine();
-                if (!server.checkIfNameExists(inputName)) {
-                    clientName = inputName;
-                    sendMessageSingleLine(ConsoleColor.ADMIN.getCode() + "Welcome " + this.getColor().getCode() + clientName + ConsoleColor.DEFAULT.getCode());
-                    sendMessage(server.readLastEntriesFromJournal(10));
-                    break;
-                } else {
-                    sendMessageSingleLine(ConsoleColor.ERROR_WARNING.getCode()+ "Enter another name -- already exists/ not allowed" + ConsoleColor.DEFAULT.getCode());
-                }
-            }
+            onConnect();
 
-            logger.log(Level.INFO, clientName + " name entered for " + clientSocket.getInetAddress() + " PORT:" + getClientPort());
-            coloredName = color.getCode() + clientName + ConsoleColor.DEFAULT.getCode();
-
-            String clientMessage;
-            while (!clientSocket.isClosed()) {
-                try {
-                    clientMessage = reader.readLine();
-                    if (clientMessage == null || clientMessage.equals("/exit")) {
-                        sendMessageSingleLine(ConsoleColor.ERROR_WARNING.getCode() + "Connection closed... reason: client /exit" + ConsoleColor.DEFAULT.getCode());
-                        logger.log(Level.INFO, clientName + " left the server");
-                        shutdown();
-                        break;
-                    }
-
-                    if (clientMessage.startsWith("@")) {
-                        int colonIndex = clientMessage.indexOf(':');
-                        if (colonIndex != -1) {
-                            String recipientNames = clientMessage.substring(1, colonIndex).trim();
-                            String message = clientMessage.substring(colonIndex + 1).trim();
-
-                            String[] recipientNameArray = recipientNames.split("\\s*,\\s*");
-                            for (String recipientName : recipientNameArray) {
-                                ClientHandler recipient = server.findClientHandlerByName(recipientName);
-                                if (recipient != null) {
-                                    server.directMessageToRecipient(message,this.getClientSimpleName(), recipient);
-                                } else {
-                                    sendMessageSingleLine(ConsoleColor.ERROR_WARNING.getCode() + "" + ConsoleColor.DEFAULT.getCode());
-                                    logger.log(Level.INFO, "User not found: " + recipientName);
-                                }
-                            }
-                        } else {
-                            sendMessageSingleLine(ConsoleColor.ERROR_WARNING.getCode() + "Invalid whisper format. Please use: '@username/user names' + ':' + 'message'" + ConsoleColor.DEFAULT.getCode());
-                        }
-                        continue;
-                    }
-
-                    server.broadcastMessage(clientMessage, this);
-
-                } catch (IOException e) {
-                    break;
-                }
+            if (!((SocketConnection) connection).readLines(this::onLine, this::onBinaryNegotiated)) {
+                logger.log(Level.WARNING, "Line too long from {0}, closing", getClientSimpleNameIpAndPORT());
+            } else if (!connection.isClosed()) {
+                onEndOfStream();
+            }
+        } catch (IOException exception) {
+            if (!connection.isClosed()) {
+                logger.log(Level.FINE, "Connection error: {0}", exception.getMessage());
             }
-        }catch (IOException exception){
-            exception.printStackTrace();
         } finally {
+            onDisconnect();
+        }
+    }
+
+    public void onConnect() {
+        sendSystem(ConsoleColor.ADMIN, "Type your name here:");
+        if (server.getSessionTimeouts().isEnabled()) {
+            armTimeout(System.nanoTime());
+        }
+    }
+
+    public void onLine(String line) {
+        if (connection.isClosed()) {
+            return;
+        }
+        metrics.recordMessageIn();
+        lastReadNanos = System.nanoTime();
+        if (line.indexOf('\r') >= 0) {
+            // the framers end lines at \n only; a stray \r would let a message overwrite what a terminal shows
+            line = line.replace('\r', ' ');
+        }
+        if (line.equals("/pong")) {
+            enableHeartbeats();
+            return;
+        }
+        if (admission != null && !admission.allowMessage()) {
+            onThrottled();
+            return;
+        }
+        throttled = false;
+        if (line.equals("/ping")) {
+            enableHeartbeats();
+            sendFrame(Frame.PONG);
+            return;
+        }
+        try {
+            if (clientName == null) {
+                handleNameInput(line);
+            } else {
+                handleChatInput(line);
+            }
+        } catch (IOException e) {
+            onDisconnect();
+        }
+    }
+
+    /**
+     * The client has shown it takes part in heartbeats: it asked for binary frames, or sent {@code /ping} or
+     * {@code /pong}. Only such sessions are pinged and closed when idle, so line clients that know nothing of
+     * heartbeats, such as {@code nc}, never get a stray {@code /ping} and may just read.
+     */
+    private void enableHeartbeats() {
+        if (heartbeats) {
+            return;
+        }
+        heartbeats = true;
+        SessionTimeouts timeouts = server.getSessionTimeouts();
+        if (timeouts.pingNanos > 0 || timeouts.idleNanos > 0) {
+            // on the wheel thread, where a timeout that is firing has already re-armed or decided not to
+            server.getTimers().schedule(this::rearmForHeartbeats, 0);
+        }
+    }
+
+    /**
+     * Re-arms the session's timeout so it covers the ping and idle deadlines too, replacing a pending one
+     * armed for the name deadline only. A cancelled one means the session is gone.
+     */
+    private void rearmForHeartbeats() {
+        TimerWheel.Timeout current = timeout;
+        if (current == null || current.isExpired() || current.cancel()) {
+            armTimeout(System.nanoTime());
+        }
+    }
+
+    /**
+     * Arms the session's single timeout for the earliest of its name deadline, its next ping and its idle
+     * deadline, the last two only once the client takes part in heartbeats. Reads only record the time; the
+     * timeout looks at it when it fires and re-arms itself, so traffic never touches the timer wheel.
+     */
+    private void armTimeout(long nowNanos) {
+        SessionTimeouts timeouts = server.getSessionTimeouts();
+        long lastRead = lastReadNanos;
+        long next = Long.MAX_VALUE;
+        if (clientName == null && timeouts.handshakeNanos > 0) {
+            next = Math.min(next, connectedNanos + timeouts.handshakeNanos);
+        }
+        if (heartbeats && timeouts.idleNanos > 0) {
+            next = Math.min(next, lastRead + timeouts.idleNanos);
+        }
+        if (heartbeats && timeouts.pingNanos > 0 && pingedForRead != lastRead) {
+            next = Math.min(next, lastRead + timeouts.pingNanos);
+        }
+        if (next == Long.MAX_VALUE || disconnected.get()) {
+            return;
+        }
+        timeout = server.getTimers().schedule(this::onTimeout, Math.max(0, next - nowNanos + 999_999) / 1_000_000);
+    }
+
+    /**
+     * Runs on the timer wheel thread, so it only queues frames that fit and hands the closing off.
+     */
+    private void onTimeout() {
+        if (disconnected.get()) {
+            return;
+        }
+        if (connection.isClosed()) {
+            // closed without a disconnect, e.g. a kicked nio session that is never read again
+            onDisconnect();
+            return;
+        }
+        SessionTimeouts timeouts = server.getSessionTimeouts();
+        long now = System.nanoTime();
+        long lastRead = lastReadNanos;
+        if (clientName == null && !nameCheckPending && timeouts.handshakeNanos > 0 && now - connectedNanos >= timeouts.handshakeNanos) {
+            metrics.recordExpiredHandshake();
+            expire("no name entered in time");
+            return;
+        }
+        if (heartbeats && timeouts.idleNanos > 0 && now - lastRead >= timeouts.idleNanos) {
+            metrics.recordExpiredIdle();
+            expire("idle timeout");
+            return;
+        }
+        if (heartbeats && timeouts.pingNanos > 0 && pingedForRead != lastRead && now - lastRead >= timeouts.pingNanos) {
+            pingedForRead = lastRead;
+            // a client whose queue is full is not reading; the idle timeout will reclaim it
+            if (outbound.offerNow(Frame.PING)) {
+                metrics.recordPingSent();
+                connection.signalWrite(outbound);
+            }
+        }
+        armTimeout(now);
+    }
+
+    private void expire(String reason) {
+        logger.log(Level.INFO, "Closing {0}: {1}", new Object[]{getClientSimpleNameIpAndPORT(), reason});
+        if (outbound.offerNow(Frame.system(ConsoleColor.ERROR_WARNING, "Connection closed... reason: " + reason))) {
+            connection.signalWrite(outbound);
+        }
+        Thread.ofVirtual().name("expire-" + senderId).start(() -> {
             try {
-                clientSocket.close();
-                server.removeClient(this);
+                connection.flushAndClose(outbound, 1000);
             } catch (IOException e) {
-                e.printStackTrace();
+                logger.log(Level.FINE, "Error closing expired session: {0}", e.getMessage());
+            } finally {
+                onDisconnect();
+            }
+        });
+    }
+
+    /**
+     * Drops a line over the rate limit. The client hears about it once per run of dropped lines.
+     */
+    private void onThrottled() {
+        metrics.recordThrottled();
+        if (!throttled) {
+            throttled = true;
+            sendSystem(ConsoleColor.ERROR_WARNING, "Slow down: messages over the rate limit are dropped");
+            logger.log(Level.INFO, "Throttling {0}", getClientSimpleNameIpAndPORT());
+        }
+    }
+
+    /**
+     * The client asked for the binary protocol. Frames queued so far still go out as text.
+     */
+    public void onBinaryNegotiated() {
+        sendFrame(Frame.PROTOCOL_SWITCH);
+        enableHeartbeats();
+    }
+
+    public void onEndOfStream() {
+        if (clientName != null) {
+            logger.log(Level.INFO, "{0} left the server", clientName);
+        }
+        onDisconnect();
+    }
+
+    public void onDisconnect() {
+        if (!disconnected.compareAndSet(false, true)) {
+            return;
+        }
+        metrics.recordConnectionClosed();
+        String token = resumeToken;
+        String name = clientName;
+        if (token != null && name != null) {
+            server.getResumption().park(token, this, name, color, Math.max(outbound.getTakenSequence(), ownSequence));
+        }
+        if (admission != null) {
+            admission.release();
+        }
+        TimerWheel.Timeout current = timeout;
+        if (current != null) {
+            current.cancel();
+        }
+        outbound.clear();
+        try {
+            connection.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        leaveAllChannels();
+        server.removeClient(this);
+    }
+
+    /**
+     * The name check may need the other cluster nodes, so it completes asynchronously; lines that arrive
+     * meanwhile are turned away.
+     */
+    private void handleNameInput(String inputName) throws IOException {
+        if (nameCheckPending) {
+            sendSystem(ConsoleColor.ERROR_WARNING, "Still checking your name, please wait");
+            return;
+        }
+        if (clientName != null) {
+            handleChatInput(inputName);
+            return;
+        }
+        if (inputName.startsWith(SessionResumption.COMMAND)) {
+            resumeSession(inputName.substring(SessionResumption.COMMAND.length()).trim());
+            return;
+        }
+        nameCheckPending = true;
+        server.claimName(inputName, this).thenAccept(granted -> {
+            if (granted && !disconnected.get()) {
+                takeName(inputName);
+                metrics.recordHandshake(System.nanoTime() - connectedNanos);
+                sendMessageSingleLine(ConsoleColor.ADMIN.getCode() + "Welcome " + this.getColor().getCode() + clientName + ConsoleColor.DEFAULT.getCode());
+                long seen = server.getJournal().getAppendSequence() - 1;
+                sendFrame(server.joinReplayFrame());
+                issueResumeToken(seen);
+
+                logger.log(Level.INFO, "{0} name entered for {1} PORT:{2,number,#}", new Object[]{clientName, connection.getInetAddress(), getClientPort()});
+            } else if (!granted) {
+                sendSystem(ConsoleColor.ERROR_WARNING, "Enter another name -- already exists/ not allowed");
+            }
+            nameCheckPending = false;
+        });
+    }
+
+    private void takeName(String name) {
+        clientName = name;
+        coloredName = color.getCode() + clientName + ConsoleColor.DEFAULT.getCode();
+        introFrame = Frame.user(senderId, color, clientName);
+    }
+
+    /**
+     * {@code /resume <token> [lastSeq]} instead of a name: takes back the name and colour of a dropped
+     * session and sends the history entries it missed, after {@code lastSeq} if the client gives it, else
+     * after the last one the old connection's writer took.
+     */
+    private void resumeSession(String arguments) {
+        SessionResumption resumption = server.getResumption();
+        String[] parts = arguments.split("\\s+");
+        long lastSeq = -1;
+        if (parts.length == 2) {
+            try {
+                lastSeq = Long.parseLong(parts[1]);
+            } catch (NumberFormatException e) {
+                parts = new String[0];
+            }
+        }
+        if (parts.length < 1 || parts.length > 2 || parts[0].isEmpty() || lastSeq < -1) {
+            sendSystem(ConsoleColor.ERROR_WARNING, "Usage: /resume <token> [lastSeq]");
+            return;
+        }
+        SessionResumption.Session session = resumption.isEnabled() ? resumption.claim(parts[0]) : null;
+        if (session == null) {
+            sendSystem(ConsoleColor.ERROR_WARNING, "Unknown or expired resume token, enter your name");
+            return;
+        }
+        String name = session.getName();
+        long from = (lastSeq >= 0 ? lastSeq : session.getSeenSequence()) + 1;
+        nameCheckPending = true;
+        server.claimName(name, this).thenAccept(granted -> {
+            if (granted && !disconnected.get()) {
+                color = session.getColor();
+                completeResume(name, from);
+            } else if (!granted) {
+                sendSystem(ConsoleColor.ERROR_WARNING, "Unable to resume, " + name + " is taken -- enter another name");
+            }
+            nameCheckPending = false;
+        });
+    }
+
+    /**
+     * Replays the missed entries as one frame. It ends where this connection's live broadcasts begin, and
+     * broadcasts of entries it already covers are skipped, so nothing is sent twice or left out.
+     */
+    private void completeResume(String name, long from) {
+        MessageJournal journal = server.getJournal();
+        long end = journal.getAppendSequence();
+        long firstLive = firstLiveSequence;
+        if (firstLive >= 0 && firstLive < end) {
+            end = firstLive;
+        }
+        replayedBelow = end;
+        long start = Math.max(from, end - server.getResumption().getMaxReplay());
+        takeName(name);
+        sendMessageSingleLine(ConsoleColor.ADMIN.getCode() + "Welcome back " + color.getCode() + name + ConsoleColor.DEFAULT.getCode());
+        if (start > from) {
+            sendSystem(ConsoleColor.ADMIN, (start - from) + " older missed lines not replayed, use /history");
+        }
+        Frame replay = start < end ? journal.replayFrame(start, end) : null;
+        long replayed = Math.max(0, end - Math.max(start, journal.getFirstSequence()));
+        sendSystem(ConsoleColor.ADMIN, replay != null ? "Missed while away: " + replayed + " lines" : "Nothing missed while away");
+        if (replay != null) {
+            sendFrame(replay);
+        }
+        metrics.recordResume(replay != null ? replayed : 0);
+        issueResumeToken(end - 1);
+        logger.log(Level.INFO, "{0} resumed from {1} PORT:{2,number,#}, {3} entries replayed",
+                new Object[]{name, connection.getInetAddress(), getClientPort(), replay != null ? replayed : 0});
+    }
+
+    private void issueResumeToken(long seenSequence) {
+        SessionResumption resumption = server.getResumption();
+        String token = resumption.issue(this, seenSequence);
+        if (token == null) {
+            return;
+        }
+        resumeToken = token;
+        if (disconnected.get()) {
+            // gone before the token was set, so onDisconnect could not park it
+            resumption.forget(token);
+            return;
+        }
+        sendSystem(ConsoleColor.ADMIN, "Resume token: " + token + " -- after a dropped connection, send /resume " + token + " instead of your name");
+    }
+
+    /**
+     * Sequence number of a broadcast this client sent; it is not sent back, but a resumed session has seen it.
+     */
+    void noteOwnEntry(long sequence) {
+        ownSequence = sequence;
+    }
+
+    private void handleChatInput(String clientMessage) throws IOException {
+        if (clientMessage.equals("/exit")) {
+            sendSystem(ConsoleColor.ERROR_WARNING, "Connection closed... reason: client /exit");
+            logger.log(Level.INFO, "{0} left the server", clientName);
+            shutdown();
+            onDisconnect();
+            return;
+        }
+
+        if (clientMessage.startsWith(SessionResumption.COMMAND)) {
+            sendSystem(ConsoleColor.ERROR_WARNING, "Already in a session, /resume only works instead of a name");
+            return;
+        }
+        if (clientMessage.startsWith("/join ")) {
+            joinChannel(clientMessage.substring(6));
+            return;
+        }
+        if (clientMessage.startsWith("/leave ")) {
+            leaveChannel(clientMessage.substring(7));
+            return;
+        }
+        if (clientMessage.equals("/channels")) {
+            listChannels();
+            return;
+        }
+        if (clientMessage.startsWith("/history ")) {
+            sendHistory(clientMessage.substring(9).trim());
+            return;
+        }
+        if (clientMessage.equals("/search") || clientMessage.startsWith("/search ")) {
+            searchHistory(clientMessage.substring(7).trim());
+            return;
+        }
+        if (clientMessage.startsWith("#")) {
+            postToChannel(clientMessage);
+            return;
+        }
+
+        if (clientMessage.startsWith("@")) {
+            int colonIndex = clientMessage.indexOf(':');
+            RecipientList recipients = colonIndex > 1 ? RecipientList.parse(clientMessage, colonIndex, lastRecipients) : null;
+            if (recipients == null || recipients.isEmpty()) {
+                sendSystem(ConsoleColor.ERROR_WARNING, "Invalid whisper format. Please use: '@name, name, @@group: message'");
+                return;
             }
+            lastRecipients = recipients;
+            List<String> missing = server.whisper(clientMessage.substring(colonIndex + 1).trim(), this, recipients);
+            if (!missing.isEmpty()) {
+                String names = String.join(", ", missing);
+                sendSystem(ConsoleColor.ERROR_WARNING, "Not found: " + names);
+                logger.log(Level.INFO, "Whisper recipients not found: {0}", names);
+            }
+            return;
+        }
+
+        server.broadcastMessage(clientMessage, this);
+    }
+
+    private void joinChannel(String channelName) {
+        String key = ChannelRegistry.normalize(channelName);
+        if (key == null) {
+            sendSystem(ConsoleColor.ERROR_WARNING, "Invalid channel name. Use 1-32 letters, digits, '-' or '_'");
+            return;
+        }
+        if (joinedChannels.containsKey(key)) {
+            sendSystem(ConsoleColor.ERROR_WARNING, "Already in #" + key);
+            return;
+        }
+        ChatChannel channel = server.getChannels().join(key, this);
+        if (channel == null) {
+            sendSystem(ConsoleColor.ERROR_WARNING, "Unable to join #" + key);
+            return;
+        }
+        joinedChannels.put(key, channel);
+        if (disconnected.get()) {
+            leaveAllChannels();
+            return;
+        }
+        sendSystem(ConsoleColor.ADMIN, "Joined #" + key + " (" + channel.size() + " members)");
+        sendFrame(channel.getJournal().readLastEntriesFrame(server.getReplayDepth()));
+        channel.notice(clientName + " joined", this);
+        logger.log(Level.INFO, "{0} joined #{1}", new Object[]{clientName, key});
+    }
+
+    private void leaveChannel(String channelName) {
+        String key = ChannelRegistry.normalize(channelName);
+        ChatChannel channel = key != null ? joinedChannels.remove(key) : null;
+        if (channel == null) {
+            sendSystem(ConsoleColor.ERROR_WARNING, "Not in channel " + channelName.trim());
+            return;
+        }
+        server.getChannels().leave(channel, this);
+        channel.notice(clientName + " left", this);
+        sendSystem(ConsoleColor.ADMIN, "Left #" + key);
+    }
+
+    private void leaveAllChannels() {
+        for (ChatChannel channel : joinedChannels.values()) {
+            joinedChannels.remove(channel.getName());
+            server.getChannels().leave(channel, this);
+            channel.notice(getClientSimpleName() + " left", this);
+        }
+    }
+
+    private void listChannels() {
+        List<ChatChannel> open = server.getChannels().list();
+        StringBuilder list = new StringBuilder("Channels (").append(open.size()).append("):");
+        for (ChatChannel channel : open) {
+            list.append(joinedChannels.containsKey(channel.getName()) ? "\n * #" : "\n   #")
+                    .append(channel.getName()).append(" (").append(channel.size()).append(')');
         }
+        sendSystem(ConsoleColor.ADMIN, list.toString());
+    }
+
+    /**
+     * {@code /history N} or {@code /history since <time>}: queues the range as one export that the writer
+     * sends from the journal files, after whatever is already queued for this client.
+     */
+    private void sendHistory(String arguments) {
+        MessageJournal journal = server.getJournal();
+        HistoryExport export;
+        if (arguments.startsWith("since ")) {
+            long since = TimestampCache.parseSince(arguments.substring(6), System.currentTimeMillis());
+            if (since < 0) {
+                sendSystem(ConsoleColor.ERROR_WARNING, "Invalid time. Use e.g. 15m, 2h, 1d, 14:30, 2024-05-01 or 2024-05-01 14:30");
+                return;
+            }
+            export = journal.exportSince(since);
+        } else {
+            long count;
+            try {
+                count = Long.parseLong(arguments);
+            } catch (NumberFormatException e) {
+                count = 0;
+            }
+            if (count <= 0) {
+                sendSystem(ConsoleColor.ERROR_WARNING, "Usage: /history N or /history since <time>");
+                return;
+            }
+            export = journal.exportLast(count);
+        }
+        if (export.isEmpty()) {
+            export.release();
+            sendSystem(ConsoleColor.ADMIN, "No history in that range");
+            return;
+        }
+        logger.log(Level.INFO, "Sending {0} history entries ({1} bytes) to {2}",
+                new Object[]{export.getEntryCount(), export.length(), clientName});
+        sendFrame(Frame.export(export));
+    }
+
+    /**
+     * {@code /search [from:<time>] [to:<time>] [user:<name>] [limit:<n>] [words...]}: a count, then the
+     * matching entries sent from the journal files like {@code /history}.
+     */
+    private void searchHistory(String arguments) {
+        MessageJournal journal = server.getJournal();
+        if (arguments.isEmpty()) {
+            sendSystem(ConsoleColor.ERROR_WARNING, SearchQuery.USAGE);
+            return;
+        }
+        if (!journal.isSearchable()) {
+            sendSystem(ConsoleColor.ERROR_WARNING, "History search is disabled on this server");
+            return;
+        }
+        SearchQuery query;
+        try {
+            query = SearchQuery.parse(arguments, System.currentTimeMillis());
+        } catch (IllegalArgumentException e) {
+            sendSystem(ConsoleColor.ERROR_WARNING, e.getMessage());
+            return;
+        }
+        long start = System.nanoTime();
+        HistoryExport export = journal.exportEntries(journal.search(query));
+        long micros = (System.nanoTime() - start) / 1000;
+        sendSystem(ConsoleColor.ADMIN, export.getEntryCount() + " matches (" + micros / 1000.0 + " ms)");
+        logger.log(Level.INFO, "{0} searched [{1}]: {2} matches in {3} us",
+                new Object[]{clientName, query, export.getEntryCount(), micros});
+        if (export.isEmpty()) {
+            export.release();
+        } else {
+            sendFrame(Frame.export(export));
+        }
+    }
+
+    /**
+     * {@code #room: message}. Membership is checked against this client's own channels, so posting never
+     * touches the shared channel map.
+     */
+    private void postToChannel(String clientMessage) {
+        int colonIndex = clientMessage.indexOf(':');
+        String key = colonIndex != -1 ? ChannelRegistry.normalize(clientMessage.substring(0, colonIndex)) : null;
+        if (key == null) {
+            sendSystem(ConsoleColor.ERROR_WARNING, "Invalid channel format. Please use: '#channel: message'");
+            return;
+        }
+        ChatChannel channel = joinedChannels.get(key);
+        if (channel == null) {
+            sendSystem(ConsoleColor.ERROR_WARNING, "Not in #" + key + ", use /join #" + key);
+            return;
+        }
+        channel.post(clientMessage.substring(colonIndex + 1).trim(), this);
+    }
+
+    /**
+     * Stands for this client in binary frames; never reused while the server runs.
+     */
+    public int getSenderId() {
+        return senderId;
+    }
+
+    /**
+     * Tells binary clients this client's name and colour; null until the client has a name.
+     */
+    public Frame getIntroFrame() {
+        return introFrame;
     }
 
     public String getClientNameColored() {
@@ -116,39 +649,92 @@ public class ClientHandler implements Runnable {
         return  getClientSimpleName() + getClientAddress() + getClientPort();
     }
 
-    public void sendMessage(String message) throws IOException {
-        OutputStream outputStream = clientSocket.getOutputStream();
-        outputStream.write((message + "\n").getBytes(StandardCharsets.UTF_8));
-        outputStream.flush();
+    public void sendMessage(String message) {
+        sendFrame(Frame.ofLine(message));
     }
 
-    public void sendMessageSingleLine(String message) throws IOException {
-        OutputStream outputStream = clientSocket.getOutputStream();
-        outputStream.write((message + "\n").getBytes(StandardCharsets.UTF_8));
-        outputStream.flush();
+    public void sendMessageSingleLine(String message) {
+        sendFrame(Frame.ofLine(message));
+    }
+
+    /**
+     * A notice from the server: coloured text for line clients, a colour byte and the text for binary ones.
+     */
+    public void sendSystem(ConsoleColor color, String text) {
+        sendFrame(Frame.system(color, text));
     }
 
     public void sendMessageToRecipient(String message, ClientHandler recipient) {
-        try {
-            recipient.sendMessage(message);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+        recipient.sendMessage(message);
+    }
+
+    /**
+     * Queues a frame for this client without touching its socket, so a slow reader never stalls the sender.
+     */
+    public void sendFrame(Frame frame) {
+        if (disconnected.get()) {
+            return;
+        }
+        long sequence = frame.getSequence();
+        if (sequence >= 0) {
+            if (sequence < replayedBelow) {
+                return;
+            }
+            if (firstLiveSequence < 0) {
+                firstLiveSequence = sequence;
+            }
+        }
+        if (!outbound.offer(frame)) {
+            logger.log(Level.WARNING, "Outbound queue full, disconnecting slow client {0}", getClientSimpleNameIpAndPORT());
+            onDisconnect();
+            return;
         }
+        connection.signalWrite(outbound);
+    }
+
+    public OutboundQueue getOutboundQueue() {
+        return outbound;
     }
 
     public String getClientAddress() {
-        InetAddress address = clientSocket.getInetAddress();
+        InetAddress address = connection.getInetAddress();
         return address != null ? address.getHostAddress() : null;
     }
 
     public int getClientPort() {
-        int port = clientSocket.getPort();
+        int port = connection.getPort();
         return port != 0 ? port : -1;
     }
 
+    /**
+     * Server shutdown: waits until what is queued has been written or {@code deadlineNanos} passes, then
+     * closes and disconnects. Blocks the caller.
+     *
+     * @return true if everything queued went out
+     */
+    boolean drainAndClose(long deadlineNanos) {
+        boolean drained = connection.awaitFlushed(outbound, deadlineNanos);
+        try {
+            connection.close();
+        } catch (IOException e) {
+            logger.log(Level.FINE, "Error closing {0}: {1}", new Object[]{getClientSimpleNameIpAndPORT(), e.getMessage()});
+        }
+        onDisconnect();
+        return drained;
+    }
+
+    public InetAddress getInetAddress() {
+        return connection.getInetAddress();
+    }
+
     public boolean shutdown() throws IOException {
+        leaveAllChannels();
         clientName = null;
-        clientSocket.close();
-        return clientSocket.isClosed();
+        String token = resumeToken;
+        if (token != null) {
+            server.getResumption().forget(token);
+        }
+        connection.flushAndClose(outbound, 1000);
+        return connection.isClosed();
     }
 }
@@ -0,0 +1,150 @@
+package Server;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Thread-safe set of connected clients with a case-insensitive name index.
+ * <p>
+ * Broadcasts iterate an immutable array snapshot that is replaced on every join and leave, so
+ * iteration needs no lock and allocates nothing. Name lookups and reservations go through a
+ * concurrent map keyed by the normalized name.
+ */
+public class ClientRegistry {
+
+    private static final ClientHandler[] EMPTY = new ClientHandler[0];
+
+    private final ConcurrentHashMap<String, ClientHandler> handlersByName = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<ClientHandler, String> namesByHandler = new ConcurrentHashMap<>();
+    private final ReentrantLock snapshotLock = new ReentrantLock();
+    private volatile ClientHandler[] snapshot = EMPTY;
+
+    public static String normalize(String name) {
+        return name.trim().toLowerCase(Locale.ROOT);
+    }
+
+    public void add(ClientHandler clientHandler) {
+        snapshotLock.lock();
+        try {
+            ClientHandler[] current = snapshot;
+            ClientHandler[] next = Arrays.copyOf(current, current.length + 1);
+            next[current.length] = clientHandler;
+            snapshot = next;
+        } finally {
+            snapshotLock.unlock();
+        }
+    }
+
+    /**
+     * Removes the client and releases its name.
+     *
+     * @return false if the client was not registered
+     */
+    public boolean remove(ClientHandler clientHandler) {
+        String name = namesByHandler.remove(clientHandler);
+        if (name != null) {
+            handlersByName.remove(name, clientHandler);
+        }
+        snapshotLock.lock();
+        try {
+            ClientHandler[] current = snapshot;
+            for (int i = 0; i < current.length; i++) {
+                if (current[i] == clientHandler) {
+                    ClientHandler[] next = new ClientHandler[current.length - 1];
+                    System.arraycopy(current, 0, next, 0, i);
+                    System.arraycopy(current, i + 1, next, i, current.length - i - 1);
+                    snapshot = next;
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            snapshotLock.unlock();
+        }
+    }
+
+    /**
+     * Atomically claims {@code name} for {@code clientHandler}. Blank names and names holding control
+     * characters such as line breaks are never granted.
+     * <p>
+     * Both maps are updated inside the compute for the client's own entry, which {@link #remove} also has to
+     * go through, so a concurrent remove either runs first or finds the new name and frees it.
+     *
+     * @return false if the name is taken or not allowed
+     */
+    public boolean reserveName(String name, ClientHandler clientHandler) {
+        if (name == null || name.isBlank() || name.chars().anyMatch(Character::isISOControl)) {
+            return false;
+        }
+        String key = normalize(name);
+        boolean[] claimed = {false};
+        namesByHandler.compute(clientHandler, (handler, previous) -> {
+            if (handlersByName.putIfAbsent(key, handler) != null) {
+                return previous;
+            }
+            if (previous != null) {
+                handlersByName.remove(previous, handler);
+            }
+            claimed[0] = true;
+            return key;
+        });
+        return claimed[0];
+    }
+
+    /**
+     * Gives up a name reserved by {@code clientHandler}, e.g. when another node turned out to have it.
+     */
+    public void releaseName(String name, ClientHandler clientHandler) {
+        String key = normalize(name);
+        namesByHandler.computeIfPresent(clientHandler, (handler, current) -> {
+            if (!current.equals(key)) {
+                return current;
+            }
+            handlersByName.remove(key, handler);
+            return null;
+        });
+    }
+
+    /**
+     * The normalized name held by the client, or null if it has none.
+     */
+    public String nameOf(ClientHandler clientHandler) {
+        return namesByHandler.get(clientHandler);
+    }
+
+    /**
+     * Normalized names currently reserved. A live view.
+     */
+    public Set<String> names() {
+        return handlersByName.keySet();
+    }
+
+    public boolean isNameTaken(String name) {
+        return name != null && handlersByName.containsKey(normalize(name));
+    }
+
+    public ClientHandler findByName(String name) {
+        return name != null ? handlersByName.get(normalize(name)) : null;
+    }
+
+    /**
+     * Lookup by a name already normalized, e.g. by {@link RecipientList}; allocates nothing.
+     */
+    public ClientHandler findByKey(String key) {
+        return handlersByName.get(key);
+    }
+
+    /**
+     * The clients connected right now, including those still choosing a name. The array is shared and must not be modified.
+     */
+    public ClientHandler[] snapshot() {
+        return snapshot;
+    }
+
+    public int size() {
+        return snapshot.length;
+    }
+}
@@ -0,0 +1,202 @@
+package Server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Makes several server nodes one chat. Broadcasts and admin kicks are passed to every peer, whispers go to
+ * the node the recipient is on, and names are unique across the cluster.
+ * <p>
+ * A node claims a name by reserving it locally and asking every reachable peer; it gets the name once they
+ * all grant it. A peer denies a name that is in use on it or owned by a third node. Two nodes claiming the
+ * same name at once deny each other, so both clients have to pick again, but never end up with the same
+ * name. Every node remembers which peer owns each remote name, learns the names already in use when a link
+ * comes up, and forgets a peer's names when it goes down.
+ */
+public class Cluster implements ClusterTransport.Listener, Closeable {
+
+    private final ConcurrentServer server;
+    private final ClusterTransport transport;
+    private final String nodeId;
+    private final long claimTimeoutMillis;
+    private final Logger logger;
+    private final ConcurrentHashMap<String, String> remoteNames = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, PendingClaim> pendingClaims = new ConcurrentHashMap<>();
+    private final AtomicLong claimIds = new AtomicLong();
+
+    public Cluster(ConcurrentServer server, ClusterTransport transport, long claimTimeoutMillis, Logger logger) {
+        this.server = server;
+        this.transport = transport;
+        this.nodeId = transport.getNodeId();
+        this.claimTimeoutMillis = claimTimeoutMillis;
+        this.logger = logger;
+    }
+
+    public void start() {
+        transport.start(this);
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    public Set<String> peers() {
+        return transport.peers();
+    }
+
+    public void publishBroadcast(String line, String historyEntry) {
+        transport.sendToAll(new ClusterMessage(ClusterMessage.Type.BROADCAST, nodeId, line, historyEntry));
+    }
+
+    /**
+     * Sends a whisper line to the node the recipient is on.
+     *
+     * @return false if no peer has a client with that name
+     */
+    public boolean routeWhisper(String recipientKey, String line) {
+        String owner = remoteNames.get(recipientKey);
+        return owner != null && transport.sendTo(owner, new ClusterMessage(ClusterMessage.Type.WHISPER, nodeId, recipientKey, line));
+    }
+
+    public void forwardKick(String kickArgument) {
+        transport.sendToAll(new ClusterMessage(ClusterMessage.Type.KICK, nodeId, kickArgument));
+    }
+
+    public boolean isNameTakenRemotely(String key) {
+        return remoteNames.containsKey(key);
+    }
+
+    /**
+     * Asks every reachable peer for a name already reserved on this node. Completes with false if a peer
+     * denies it or not every peer answers within the claim timeout.
+     */
+    public CompletableFuture<Boolean> claim(String key) {
+        if (remoteNames.containsKey(key)) {
+            return CompletableFuture.completedFuture(false);
+        }
+        Set<String> peers = transport.peers();
+        if (peers.isEmpty()) {
+            return CompletableFuture.completedFuture(true);
+        }
+        String claimId = nodeId + "/" + claimIds.incrementAndGet();
+        PendingClaim claim = new PendingClaim(peers);
+        pendingClaims.put(claimId, claim);
+        transport.sendToAll(new ClusterMessage(ClusterMessage.Type.CLAIM, nodeId, key, claimId));
+        return claim.result.completeOnTimeout(false, claimTimeoutMillis, TimeUnit.MILLISECONDS)
+                .whenComplete((granted, error) -> {
+                    pendingClaims.remove(claimId);
+                    if (!granted) {
+                        release(key);
+                    }
+                });
+    }
+
+    /**
+     * Tells the peers a name on this node is free again.
+     */
+    public void release(String key) {
+        transport.sendToAll(new ClusterMessage(ClusterMessage.Type.RELEASE, nodeId, key));
+    }
+
+    @Override
+    public void onMessage(ClusterMessage message) {
+        String origin = message.getOrigin();
+        switch (message.getType()) {
+            case BROADCAST:
+                server.deliverRemoteBroadcast(message.field(0), message.field(1));
+                break;
+            case WHISPER:
+                server.deliverRemoteWhisper(message.field(0), message.field(1));
+                break;
+            case KICK:
+                try {
+                    server.kickLocalClient(message.field(0));
+                } catch (RuntimeException e) {
+                    logger.log(Level.WARNING, "Kick from {0} failed: {1}", new Object[]{origin, e.getMessage()});
+                }
+                break;
+            case CLAIM:
+                answerClaim(origin, message.field(0), message.field(1));
+                break;
+            case GRANT: {
+                PendingClaim claim = pendingClaims.get(message.field(1));
+                if (claim != null) {
+                    claim.granted(origin);
+                }
+                break;
+            }
+            case DENY: {
+                PendingClaim claim = pendingClaims.get(message.field(1));
+                if (claim != null) {
+                    claim.result.complete(false);
+                }
+                break;
+            }
+            case ANNOUNCE:
+                remoteNames.put(message.field(0), origin);
+                break;
+            case RELEASE:
+                remoteNames.remove(message.field(0), origin);
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Records the claimant as owner first and checks local names second; {@link ConcurrentServer#claimName}
+     * reserves locally first and checks remote names second, so of two racing claims at least one side sees the other.
+     */
+    private void answerClaim(String origin, String key, String claimId) {
+        String owner = remoteNames.putIfAbsent(key, origin);
+        boolean granted = (owner == null || owner.equals(origin)) && !server.isNameTakenLocally(key);
+        if (!granted && owner == null) {
+            remoteNames.remove(key, origin);
+        }
+        ClusterMessage.Type answer = granted ? ClusterMessage.Type.GRANT : ClusterMessage.Type.DENY;
+        transport.sendTo(origin, new ClusterMessage(answer, nodeId, key, claimId));
+    }
+
+    @Override
+    public void onPeerUp(String peerId) {
+        for (String key : server.localNames()) {
+            transport.sendTo(peerId, new ClusterMessage(ClusterMessage.Type.ANNOUNCE, nodeId, key));
+        }
+    }
+
+    @Override
+    public void onPeerDown(String peerId) {
+        remoteNames.values().removeIf(peerId::equals);
+        for (PendingClaim claim : pendingClaims.values()) {
+            claim.granted(peerId);
+        }
+        logger.log(Level.INFO, "Cluster peer {0} down, its names are free", peerId);
+    }
+
+    @Override
+    public void close() throws IOException {
+        transport.close();
+    }
+
+    private static final class PendingClaim {
+        private final Set<String> waitingFor = ConcurrentHashMap.newKeySet();
+        private final CompletableFuture<Boolean> result = new CompletableFuture<>();
+
+        private PendingClaim(Set<String> peers) {
+            waitingFor.addAll(peers);
+        }
+
+        private void granted(String peerId) {
+            if (waitingFor.remove(peerId) && waitingFor.isEmpty()) {
+                result.complete(true);
+            }
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package Server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A message between cluster nodes: a type, the id of the node it comes from and a few string fields whose
+ * meaning depends on the type.
+ * <p>
+ * On the wire it is {@code int length, byte type, then origin and each field as int length + UTF-8}. It is
+ * encoded once with {@link #encode()} and the same bytes are sent to every peer.
+ */
+public final class ClusterMessage {
+
+    public enum Type {
+        /** First message on a link: origin only. */
+        HELLO,
+        /** line, history entry */
+        BROADCAST,
+        /** recipient key, line */
+        WHISPER,
+        /** kick argument as typed on the console */
+        KICK,
+        /** name key, claim id */
+        CLAIM,
+        /** name key, claim id */
+        GRANT,
+        /** name key, claim id */
+        DENY,
+        /** name key: a name already in use on the origin node */
+        ANNOUNCE,
+        /** name key */
+        RELEASE
+    }
+
+    private static final Type[] TYPES = Type.values();
+
+    private final Type type;
+    private final String origin;
+    private final String[] fields;
+
+    public ClusterMessage(Type type, String origin, String... fields) {
+        this.type = type;
+        this.origin = origin;
+        this.fields = fields;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public String getOrigin() {
+        return origin;
+    }
+
+    public String field(int index) {
+        return fields[index];
+    }
+
+    /**
+     * The length-prefixed wire form.
+     */
+    public byte[] encode() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(0);
+            out.writeByte(type.ordinal());
+            writeString(out, origin);
+            out.writeByte(fields.length);
+            for (String field : fields) {
+                writeString(out, field);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        byte[] encoded = bytes.toByteArray();
+        int length = encoded.length - Integer.BYTES;
+        encoded[0] = (byte) (length >>> 24);
+        encoded[1] = (byte) (length >>> 16);
+        encoded[2] = (byte) (length >>> 8);
+        encoded[3] = (byte) length;
+        return encoded;
+    }
+
+    /**
+     * Reads one message, blocking until it is complete.
+     *
+     * @param maxLength longest frame accepted, anything longer is treated as a broken stream
+     */
+    public static ClusterMessage read(DataInputStream in, int maxLength) throws IOException {
+        int length = in.readInt();
+        if (length <= 0 || length > maxLength) {
+            throw new IOException("Invalid cluster frame length " + length);
+        }
+        int typeIndex = in.readUnsignedByte();
+        if (typeIndex >= TYPES.length) {
+            throw new IOException("Unknown cluster message type " + typeIndex);
+        }
+        String origin = readString(in, maxLength);
+        String[] fields = new String[in.readUnsignedByte()];
+        for (int i = 0; i < fields.length; i++) {
+            fields[i] = readString(in, maxLength);
+        }
+        return new ClusterMessage(TYPES[typeIndex], origin, fields);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in, int maxLength) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > maxLength) {
+            throw new IOException("Invalid cluster string length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public String toString() {
+        return type + " from " + origin;
+    }
+}
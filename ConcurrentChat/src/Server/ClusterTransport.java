@@ -0,0 +1,41 @@
+package Server;
+
+import java.io.Closeable;
+import java.util.Set;
+
+/**
+ * How cluster nodes reach each other. Sends never block the caller; a message for a peer that is not
+ * reachable right now is dropped.
+ */
+public interface ClusterTransport extends Closeable {
+
+    interface Listener {
+        void onMessage(ClusterMessage message);
+
+        /**
+         * A link to the peer came up; messages sent from now on reach it.
+         */
+        void onPeerUp(String nodeId);
+
+        /**
+         * The peer went away; nothing more will arrive from it until it is up again.
+         */
+        void onPeerDown(String nodeId);
+    }
+
+    String getNodeId();
+
+    void start(Listener listener);
+
+    /**
+     * Ids of the peers that messages can be sent to right now.
+     */
+    Set<String> peers();
+
+    void sendToAll(ClusterMessage message);
+
+    /**
+     * @return false if the peer is not reachable
+     */
+    boolean sendTo(String nodeId, ClusterMessage message);
+}
@@ -0,0 +1,355 @@
+package Server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The log of a sealed {@link JournalSegment}, stored as blocks of {@code blockSize} bytes each deflated on its
+ * own, followed by a block index. A read at a position of the original log inflates only the block holding
+ * it, up to where the read ends, and the block is kept, so a sequential reader inflates every byte once.
+ * <p>
+ * Readers share a few cached blocks, each with its own lock and inflater, so readers in different blocks
+ * inflate at the same time and only readers of the same block take turns. The file is read positionally.
+ * <p>
+ * Layout: the blocks; the file offset of every block and of the end of the last one, as longs; then
+ * {@code int blockSize, long size, int blockCount, int MAGIC}. Blocks carry the zlib checksum.
+ */
+final class CompressedLog implements Closeable {
+
+    static final String SUFFIX = ".logz";
+    private static final int MAGIC = 0x43484c5a;
+    private static final int TRAILER_BYTES = Integer.BYTES * 3 + Long.BYTES;
+    private static final int MIN_INFLATE = 4 * 1024;
+    // enough for a few readers at once, each crossing a block boundary now and then
+    private static final int CACHED_BLOCKS = 4;
+
+    private final Path path;
+    private final FileChannel channel;
+    private final int blockSize;
+    private final long size;
+    private final long[] offsets;
+    private final Block[] cache = new Block[CACHED_BLOCKS];
+    private volatile int nextVictim;
+
+    private CompressedLog(Path path, FileChannel channel, int blockSize, long size, long[] offsets) {
+        this.path = path;
+        this.channel = channel;
+        this.blockSize = blockSize;
+        this.size = size;
+        this.offsets = offsets;
+        for (int i = 0; i < cache.length; i++) {
+            cache[i] = new Block();
+        }
+    }
+
+    /**
+     * Compresses the first {@code size} bytes of {@code source} into {@code target} and forces it to disk.
+     *
+     * @param cancelled checked before every block
+     * @return the size of the compressed file, or -1 if cancelled
+     */
+    static long write(FileChannel source, long size, Path target, int blockSize, int level, BooleanSupplier cancelled)
+            throws IOException {
+        long blockCount = (size + blockSize - 1) / blockSize;
+        if (blockCount > Integer.MAX_VALUE - 1) {
+            throw new IOException("Too many blocks for " + target);
+        }
+        long[] offsets = new long[(int) blockCount + 1];
+        ByteBuffer input = ByteBuffer.allocate(blockSize);
+        byte[] output = new byte[blockSize + blockSize / 16 + 64];
+        Deflater deflater = new Deflater(level);
+        try (FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            long offset = 0;
+            for (int i = 0; i < blockCount; i++) {
+                if (cancelled.getAsBoolean()) {
+                    return -1;
+                }
+                offsets[i] = offset;
+                long position = (long) i * blockSize;
+                input.clear();
+                input.limit((int) Math.min(blockSize, size - position));
+                while (input.hasRemaining()) {
+                    if (source.read(input, position + input.position()) < 0) {
+                        throw new IOException("Log ended before " + size + " bytes");
+                    }
+                }
+                deflater.reset();
+                deflater.setInput(input.array(), 0, input.limit());
+                deflater.finish();
+                while (!deflater.finished()) {
+                    int length = deflater.deflate(output);
+                    offset += writeFully(out, ByteBuffer.wrap(output, 0, length), offset);
+                }
+            }
+            offsets[(int) blockCount] = offset;
+            ByteBuffer index = ByteBuffer.allocate(offsets.length * Long.BYTES + TRAILER_BYTES);
+            for (long blockOffset : offsets) {
+                index.putLong(blockOffset);
+            }
+            index.putInt(blockSize).putLong(size).putInt((int) blockCount).putInt(MAGIC).flip();
+            offset += writeFully(out, index, offset);
+            out.force(true);
+            return offset;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static int writeFully(FileChannel out, ByteBuffer buffer, long position) throws IOException {
+        int length = buffer.remaining();
+        while (buffer.hasRemaining()) {
+            position += out.write(buffer, position);
+        }
+        return length;
+    }
+
+    static CompressedLog open(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            long fileSize = channel.size();
+            if (fileSize < TRAILER_BYTES + Long.BYTES) {
+                throw new IOException("Compressed history segment too short: " + path);
+            }
+            ByteBuffer trailer = readFully(channel, fileSize - TRAILER_BYTES, TRAILER_BYTES);
+            int blockSize = trailer.getInt();
+            long size = trailer.getLong();
+            int blockCount = trailer.getInt();
+            long indexBytes = (blockCount + 1L) * Long.BYTES;
+            if (trailer.getInt() != MAGIC || blockSize <= 0 || blockCount < 0 || size < 0
+                    || (size + blockSize - 1) / blockSize != blockCount || indexBytes > fileSize - TRAILER_BYTES) {
+                throw new IOException("Not a compressed history segment: " + path);
+            }
+            ByteBuffer index = readFully(channel, fileSize - TRAILER_BYTES - indexBytes, (int) indexBytes);
+            long[] offsets = new long[blockCount + 1];
+            for (int i = 0; i <= blockCount; i++) {
+                offsets[i] = index.getLong();
+                if (i > 0 && offsets[i] < offsets[i - 1]) {
+                    throw new IOException("Corrupt block index in " + path);
+                }
+            }
+            if (offsets[blockCount] != fileSize - TRAILER_BYTES - indexBytes) {
+                throw new IOException("Corrupt block index in " + path);
+            }
+            return new CompressedLog(path, channel, blockSize, size, offsets);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private static ByteBuffer readFully(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+        }
+        return buffer.flip();
+    }
+
+    Path getPath() {
+        return path;
+    }
+
+    /**
+     * Size of the original log.
+     */
+    long getSize() {
+        return size;
+    }
+
+    long getCompressedSize() {
+        return offsets[offsets.length - 1] + (long) offsets.length * Long.BYTES + TRAILER_BYTES;
+    }
+
+    /**
+     * Reads original log bytes from {@code position}, as {@link FileChannel#read(ByteBuffer, long)} does.
+     *
+     * @return the number of bytes read, or -1 at the end of the log
+     */
+    int read(ByteBuffer buffer, long position) throws IOException {
+        if (position >= size) {
+            return -1;
+        }
+        int read = 0;
+        while (buffer.hasRemaining() && position < size) {
+            Block block = inflate(position, buffer.remaining());
+            try {
+                int offset = (int) (position - block.index * blockSize);
+                int length = Math.min(buffer.remaining(), block.length - offset);
+                buffer.put(block.bytes, offset, length);
+                position += length;
+                read += length;
+            } finally {
+                block.lock.unlock();
+            }
+        }
+        return read;
+    }
+
+    /**
+     * Writes original log bytes from {@code position} to {@code target}, at most to the end of one block.
+     *
+     * @return the number of bytes written, which may be 0 for a non-blocking target
+     */
+    long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        if (position >= size || count <= 0) {
+            return 0;
+        }
+        ByteBuffer chunk = ByteBuffer.allocate((int) Math.min(count, blockSize - position % blockSize));
+        read(chunk, position);
+        return target.write(chunk.flip());
+    }
+
+    /**
+     * Finds or loads the block holding {@code position} and inflates it at least {@code wanted} bytes past
+     * the position, or to its end. A block is inflated from its start but no further than a reader has asked
+     * for, so a probe near the start of a block costs a fraction of inflating all of it.
+     *
+     * @return the block, locked by the caller, who has to unlock it
+     */
+    private Block inflate(long position, int wanted) throws IOException {
+        long index = position / blockSize;
+        Block block = lockCached(index);
+        if (block == null) {
+            block = lockVictim();
+            try {
+                if (!channel.isOpen()) {
+                    throw new ClosedChannelException();
+                }
+                load(block, index);
+            } catch (IOException | RuntimeException e) {
+                block.lock.unlock();
+                throw e;
+            }
+        }
+        int target = (int) Math.min(block.end, position - index * blockSize + Math.max(wanted, MIN_INFLATE));
+        try {
+            block.inflateTo(target);
+        } catch (IOException e) {
+            block.index = -1;
+            block.lock.unlock();
+            throw new IOException("Corrupt block " + index + " in " + path + ": " + e.getMessage());
+        }
+        return block;
+    }
+
+    /**
+     * @return the cached block holding {@code index}, locked, or null if none does
+     */
+    private Block lockCached(long index) {
+        for (Block block : cache) {
+            if (block.index == index) {
+                block.lock.lock();
+                if (block.index == index) {
+                    return block;
+                }
+                block.lock.unlock();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Locks a block to load another into, taking the first one free in turn and waiting only if all are busy.
+     */
+    private Block lockVictim() {
+        int start = nextVictim;
+        for (int i = 0; i < cache.length; i++) {
+            Block block = cache[(start + i) % cache.length];
+            if (block.lock.tryLock()) {
+                nextVictim = (start + i + 1) % cache.length;
+                return block;
+            }
+        }
+        Block block = cache[start % cache.length];
+        block.lock.lock();
+        nextVictim = (start + 1) % cache.length;
+        return block;
+    }
+
+    private void load(Block block, long index) throws IOException {
+        block.index = -1;
+        if (block.bytes == null) {
+            block.bytes = new byte[blockSize];
+            block.inflater = new Inflater();
+        }
+        int length = (int) (offsets[(int) index + 1] - offsets[(int) index]);
+        // the inflater reads its input in place, so each block keeps its own compressed bytes
+        if (block.input.length < length) {
+            block.input = new byte[length];
+        }
+        ByteBuffer input = ByteBuffer.wrap(block.input, 0, length);
+        while (input.hasRemaining()) {
+            if (channel.read(input, offsets[(int) index] + input.position()) < 0) {
+                throw new IOException("Compressed history segment ended early: " + path);
+            }
+        }
+        block.inflater.reset();
+        block.inflater.setInput(block.input, 0, length);
+        block.index = index;
+        block.length = 0;
+        block.end = (int) Math.min(blockSize, size - index * blockSize);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+        for (Block block : cache) {
+            block.lock.lock();
+            try {
+                block.index = -1;
+                if (block.inflater != null) {
+                    block.inflater.end();
+                }
+            } finally {
+                block.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * One cached block being inflated: its bytes so far, and the inflater positioned after them. The buffers
+     * are allocated on first use. Everything but {@code index}, which lookups read without the lock, is only
+     * touched while holding {@code lock}.
+     */
+    private static final class Block {
+        private final ReentrantLock lock = new ReentrantLock();
+        private byte[] bytes;
+        private Inflater inflater;
+        private byte[] input = new byte[0];
+        private volatile long index = -1;
+        private int length;
+        private int end;
+
+        private void inflateTo(int target) throws IOException {
+            try {
+                while (length < target) {
+                    int count = inflater.inflate(bytes, length, target - length);
+                    if (count == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                        throw new IOException("ends early");
+                    }
+                    length += count;
+                }
+                // one more call reads the checksum at the end of the block
+                if (length == end && !inflater.finished() && (inflater.inflate(bytes, 0, 0) != 0 || !inflater.finished())) {
+                    throw new IOException("checksum not reached");
+                }
+            } catch (DataFormatException e) {
+                throw new IOException(e.getMessage());
+            }
+        }
+    }
+}
@@ -3,13 +3,21 @@ package Server;
 import utils.ConsoleColor;
 
 import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.FileHandler;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -21,161 +29,535 @@ public class ConcurrentServer {
     private final Logger logger = Logger.getLogger(ConcurrentServer.class.getName());
     private final int PORT;
     private ServerSocket serverSocket;
-    private final List<ClientHandler> clientHandlers = new ArrayList<>();
-    private final ExecutorService executorService = Executors.newFixedThreadPool(10);
-
-    private String messageLogPath;
+    private final ClientRegistry clients = new ClientRegistry();
+    private final ServerConfig config;
+    private final ServerMode mode;
+    private final ExecutorService executorService;
+    private final ExecutorService writerExecutor;
+    private final OutboundMetrics outboundMetrics = new OutboundMetrics();
+    private final ServerMetrics metrics = new ServerMetrics(this::executorQueueDepth, this::journalBacklog);
+    private final int outboundQueueSize;
+    private final OverflowPolicy overflowPolicy;
+    private final long blockTimeoutMillis;
+    private final JournalWriter journalWriter;
+    private final MessageJournal journal;
+    private final ChannelRegistry channels;
+    /** Created by {@link #run()} when {@code clusterPort} is set, so the server is built before the cluster sees it. */
+    private volatile Cluster cluster;
+    private final int replayDepth;
+    private final AdmissionControl admission;
+    private final SessionTimeouts sessionTimeouts;
+    private final SessionResumption resumption;
+    private final WhisperRouter whispers;
+    private final TimerWheel timers = new TimerWheel("session-timers", 100, 512, logger);
+
+    private final AtomicBoolean shuttingDown = new AtomicBoolean();
+    private final CountDownLatch shutdownDone = new CountDownLatch(1);
+    private volatile NioChatServer nioServer;
 
     private boolean consoleLoggingActive = true;
+    private AsyncLogHandler asyncLogHandler;
 
     public static void main(String[] args) {
-        ConcurrentServer concurrentServer = new ConcurrentServer(9001);
+        if (System.getProperty("java.util.logging.manager") == null) {
+            System.setProperty("java.util.logging.manager", ServerLogManager.class.getName());
+        }
+        ServerConfig config = ServerConfig.fromArgs(args);
+        ConcurrentServer concurrentServer = new ConcurrentServer(config.getInt("port", 9001), config);
         concurrentServer.setupLogger();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            concurrentServer.shutdown("server stopping");
+            ServerLogManager.resetAfterShutdown();
+        }, "shutdown-hook"));
         concurrentServer.run();
     }
     public ConcurrentServer(int PORT) {
+        this(PORT, new ServerConfig());
+    }
+    public ConcurrentServer(int PORT, ServerConfig config) {
         this.PORT = PORT;
+        this.config = config;
+        this.mode = config.getEnum("mode", ServerMode.class, ServerMode.POOL);
+        this.executorService = createExecutor(mode);
+        this.writerExecutor = mode == ServerMode.NIO ? null
+                : Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("writer-", 0).factory());
+        this.outboundQueueSize = config.getInt("outboundQueueSize", 1024);
+        OverflowPolicy overflowPolicy = config.getEnum("overflowPolicy", OverflowPolicy.class, OverflowPolicy.DISCONNECT);
+        if (overflowPolicy == OverflowPolicy.BLOCK && mode == ServerMode.NIO) {
+            // a blocked sender would park a reactor thread, possibly the one that has to drain the full queue
+            logger.log(Level.WARNING, "overflowPolicy=block is not supported in nio mode, using disconnect");
+            overflowPolicy = OverflowPolicy.DISCONNECT;
+        }
+        this.overflowPolicy = overflowPolicy;
+        this.blockTimeoutMillis = config.getLong("blockTimeoutMillis", 1000);
+        try {
+            Path journalDir = Path.of(config.getString("journalDir", "logs/chathistory"));
+            MessageJournal.migrateLegacyFile(Path.of("logs/chathistory.log"), journalDir);
+            JournalSettings journalSettings = new JournalSettings(config);
+            this.journalWriter = JournalWriter.start(journalSettings, metrics.getJournalAppendHistogram());
+            this.journal = MessageJournal.open(journalDir, journalSettings, journalWriter, logger);
+            this.channels = new ChannelRegistry(Path.of(config.getString("channelDir", "logs/channels")),
+                    journalSettings.withCacheSize(Math.max(config.getInt("channelHistoryCacheSize", 64), config.getInt("replayDepth", 10))).withoutSearchIndex(),
+                    journalWriter, logger);
+            this.replayDepth = config.getInt("replayDepth", 10);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        this.admission = new AdmissionControl(config, metrics, logger);
+        this.sessionTimeouts = new SessionTimeouts(config);
+        this.resumption = new SessionResumption(config, timers);
+        this.whispers = new WhisperRouter(clients, config, logger);
+    }
+    private void startCluster() {
+        int clusterPort = config.getInt("clusterPort", 0);
+        if (clusterPort <= 0) {
+            return;
+        }
+        String nodeId = config.getString("nodeId", "node-" + PORT);
+        ClusterTransport transport = new TcpClusterTransport(nodeId, clusterPort,
+                TcpClusterTransport.parsePeers(config.getString("clusterPeers", "")), logger);
+        Cluster cluster = new Cluster(this, transport, config.getLong("clusterClaimTimeoutMillis", 1000), logger);
+        this.cluster = cluster;
+        whispers.setCluster(cluster);
+        cluster.start();
+        logger.log(Level.INFO, "###CLUSTER NODE {0} ON PORT {1,number,#}", new Object[]{cluster.getNodeId(), clusterPort});
+    }
+    private ExecutorService createExecutor(ServerMode mode) {
+        switch (mode) {
+            case PLATFORM:
+                return Executors.newThreadPerTaskExecutor(Thread.ofPlatform().name("client-", 0).factory());
+            case VIRTUAL:
+                return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("client-", 0).factory());
+            case NIO:
+                return null;
+            default:
+                return Executors.newFixedThreadPool(config.getInt("poolSize", 10));
+        }
     }
     public void run() {
+        if (config.getBoolean("jmx", false)) {
+            metrics.registerMBean(PORT, logger);
+        }
+        startCluster();
+        if (mode == ServerMode.NIO) {
+            runNio();
+            return;
+        }
         if (!bindServer(PORT)) {
-            logger.log(Level.SEVERE, "Failed to bind server to PORT: " + PORT);
+            logger.log(Level.SEVERE, "Failed to bind server to PORT: {0,number,#}", PORT);
             return;
         }
 
-        logger.log(Level.INFO, "###SERVER START:SERVER ON IP " + serverSocket.getInetAddress().getCanonicalHostName() + serverSocket.getLocalPort());
+        logger.log(Level.INFO, "###SERVER START:SERVER ON IP {0}{1,number,#} MODE {2}", new Object[]{serverSocket.getInetAddress().getCanonicalHostName(), serverSocket.getLocalPort(), mode});
 
-        Thread consoleInputThread = new Thread(new ConsoleInputHandler());
-        consoleInputThread.start();
+        startConsoleInput();
 
-        while (serverSocket.isBound()) {
+        while (!serverSocket.isClosed()) {
             logger.log(Level.INFO, "WAITING FOR CLIENT CONNECTION...");
             acceptClientAndTrack(serverSocket);
             logger.log(Level.INFO, "New client accepted and tracked.");
         }
     }
+    private void runNio() {
+        int reactorCount = config.getInt("reactors", Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors())));
+        NioChatServer nioServer;
+        try {
+            nioServer = new NioChatServer(this, logger, reactorCount, config.getInt("maxLineLength", 64 * 1024),
+                    config.getBoolean("tcpKeepAlive", true), admission);
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, e, () -> "Failed to open selectors: " + e.getMessage());
+            return;
+        }
+        if (!nioServer.bind(PORT, config.getInt("acceptBacklog", 50))) {
+            logger.log(Level.SEVERE, "Failed to bind server to PORT: {0,number,#}", PORT);
+            return;
+        }
+
+        logger.log(Level.INFO, "###SERVER START:NIO MODE ON PORT {0,number,#} WITH {1,number,#} REACTORS", new Object[]{PORT, reactorCount});
+        this.nioServer = nioServer;
+
+        startConsoleInput();
+
+        nioServer.run();
+    }
+    private void startConsoleInput() {
+        if (config.getBoolean("console", true)) {
+            Thread consoleInputThread = new Thread(new ConsoleInputHandler());
+            consoleInputThread.start();
+        }
+    }
     private boolean bindServer(int PORT) {
         try {
-            serverSocket = new ServerSocket(PORT);
+            // opened as a channel so accepted sockets have one for history transfers
+            serverSocket = ServerSocketChannel.open().bind(new InetSocketAddress(PORT), config.getInt("acceptBacklog", 50)).socket();
             return true;
         } catch (IOException e) {
-            logger.log(Level.SEVERE, "Failed to bind server to PORT: " + PORT, e);
+            logger.log(Level.SEVERE, e, () -> "Failed to bind server to PORT: " + PORT);
             return false;
         }
     }
     private void acceptClientAndTrack(ServerSocket serverSocket) {
         try {
             Socket clientSocket = serverSocket.accept();
-            logger.log(Level.INFO, "CLIENT ACCEPTED FROM " + clientSocket.getInetAddress() + ":" + clientSocket.getPort());
+            AdmissionControl.Ticket ticket = admission.admit(clientSocket.getInetAddress());
+            if (!ticket.isAdmitted()) {
+                admission.reject(clientSocket.getChannel(), ticket);
+                return;
+            }
+            // a named line client that never pings is only noticed gone by the OS probing its connection
+            clientSocket.setKeepAlive(config.getBoolean("tcpKeepAlive", true));
+            logger.log(Level.INFO, "CLIENT ACCEPTED FROM {0}:{1,number,#}", new Object[]{clientSocket.getInetAddress(), clientSocket.getPort()});
 
-            ClientHandler clientHandler = new ClientHandler(clientSocket, this, logger);
-            clientHandlers.add(clientHandler);
+            ClientHandler clientHandler = new ClientHandler(new SocketConnection(clientSocket, config.getInt("maxLineLength", 64 * 1024), writerExecutor, metrics), this, logger, ticket);
+            trackClient(clientHandler);
             executorService.execute(clientHandler);
         } catch (IOException e) {
-            logger.log(Level.SEVERE, "Error accepting client connection: " + e.getMessage(), e);
+            if (!serverSocket.isClosed()) {
+                logger.log(Level.SEVERE, e, () -> "Error accepting client connection: " + e.getMessage());
+            }
         }
     }
-    public void broadcastMessage(String message, ClientHandler sender) {
-        String senderName = sender.getClientSimpleName();
-        ConsoleColor senderColor = sender.getColor();
-        String formattedMessage = senderColor.getCode() + senderName + ": " + ConsoleColor.DEFAULT.getCode() + message;
-        System.out.println(formattedMessage);
-        for (ClientHandler clientHandler : clientHandlers) {
-            if (clientHandler != sender) {
+
+    /**
+     * Stops the server in a bounded time. It stops accepting and tells every client why. Each client's queue
+     * then drains for at most {@code shutdownDrainMillis}, and all connections are closed in parallel. Last,
+     * the journals are written and forced to disk. Safe to call more than once and from several threads;
+     * later callers wait for the first to finish.
+     */
+    public void shutdown(String reason) {
+        if (!shuttingDown.compareAndSet(false, true)) {
+            try {
+                shutdownDone.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            logger.log(Level.INFO, "###SERVER SHUTDOWN: {0}", reason);
+            stopAccepting();
+            broadcastServerMessage("Server shutting down: " + reason);
+
+            ClientHandler[] sessions = clients.snapshot();
+            long drainStart = System.nanoTime();
+            int undrained = drainClients(sessions, drainStart + TimeUnit.MILLISECONDS.toNanos(config.getLong("shutdownDrainMillis", 5000)));
+            long drainMillis = (System.nanoTime() - drainStart) / 1_000_000;
+
+            timers.stop();
+            if (nioServer != null) {
+                nioServer.stopReactors();
+            }
+            stopExecutors();
+            if (cluster != null) {
                 try {
-                    clientHandler.sendMessage(formattedMessage);
+                    cluster.close();
                 } catch (IOException e) {
-                    throw new RuntimeException(e);
+                    logger.log(Level.WARNING, "Error leaving the cluster: {0}", e.getMessage());
+                }
+            }
+
+            long journalStart = System.nanoTime();
+            closeJournals();
+            long journalMillis = (System.nanoTime() - journalStart) / 1_000_000;
+
+            logger.log(Level.INFO, "###SERVER STOPPED: {0} clients drained in {1} ms ({2} had output left at the deadline), "
+                            + "journal flushed in {3} ms, total {4} ms",
+                    new Object[]{sessions.length, drainMillis, undrained, journalMillis, (System.nanoTime() - start) / 1_000_000});
+        } finally {
+            if (asyncLogHandler != null) {
+                asyncLogHandler.flush();
+            }
+            shutdownDone.countDown();
+        }
+    }
+    private void stopAccepting() {
+        try {
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
+            if (nioServer != null) {
+                nioServer.stopAccepting();
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Error closing the listening socket: {0}", e.getMessage());
+        }
+    }
+    /**
+     * Drains and closes every session on its own virtual thread, so slow clients wait out the deadline
+     * together rather than one after another.
+     *
+     * @return how many still had output queued at the deadline
+     */
+    private int drainClients(ClientHandler[] sessions, long deadlineNanos) {
+        AtomicInteger undrained = new AtomicInteger();
+        List<Thread> closers = new ArrayList<>(sessions.length);
+        for (ClientHandler clientHandler : sessions) {
+            closers.add(Thread.ofVirtual().name("drain-", 0).start(() -> {
+                if (!clientHandler.drainAndClose(deadlineNanos)) {
+                    undrained.incrementAndGet();
+                }
+            }));
+        }
+        for (Thread closer : closers) {
+            try {
+                closer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        return undrained.get();
+    }
+    private void stopExecutors() {
+        for (ExecutorService executor : new ExecutorService[]{executorService, writerExecutor}) {
+            if (executor == null) {
+                continue;
+            }
+            executor.shutdown();
+            try {
+                if (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+                    executor.shutdownNow();
                 }
+            } catch (InterruptedException e) {
+                executor.shutdownNow();
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+    /**
+     * Closes the channel journals, then the main one, then their writer; each close writes and forces what is
+     * still queued.
+     */
+    private void closeJournals() {
+        for (ChatChannel channel : channels.list()) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Unable to close channel #{0}: {1}", new Object[]{channel.getName(), e.getMessage()});
             }
         }
         try {
-            persistMessageJournal(senderName + ": " + message);
+            journal.close();
         } catch (IOException e) {
-            logger.log(Level.SEVERE, "UNABLE TO LOG MESSAGE " + e.getMessage());
+            logger.log(Level.SEVERE, e, () -> "Unable to flush the chat history: " + e.getMessage());
+        }
+        journalWriter.close();
+    }
+    public boolean isShuttingDown() {
+        return shuttingDown.get();
+    }
+    OutboundQueue createOutboundQueue() {
+        return new OutboundQueue(outboundQueueSize, overflowPolicy, blockTimeoutMillis, outboundMetrics);
+    }
+    public Logger getLogger() {
+        return logger;
+    }
+    public OutboundMetrics getOutboundMetrics() {
+        return outboundMetrics;
+    }
+    SessionTimeouts getSessionTimeouts() {
+        return sessionTimeouts;
+    }
+    /**
+     * The one timer thread behind every session's handshake, ping and idle timeout.
+     */
+    TimerWheel getTimers() {
+        return timers;
+    }
+    SessionResumption getResumption() {
+        return resumption;
+    }
+    public AdmissionControl getAdmission() {
+        return admission;
+    }
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+    private int executorQueueDepth() {
+        return executorService instanceof ThreadPoolExecutor pool ? pool.getQueue().size() : 0;
+    }
+    private long journalBacklog() {
+        return journal != null ? journal.getAppendedCount() - journal.getWrittenCount() : 0;
+    }
+    public void trackClient(ClientHandler clientHandler) {
+        clients.add(clientHandler);
+    }
+    public void broadcastMessage(String message, ClientHandler sender) {
+        String senderName = sender.getClientSimpleName();
+        // the console echo goes through the async log handler, and only when FINE is on
+        logger.log(Level.FINE, "{0}: {1}", new Object[]{senderName, message});
+        String entry = senderName + ": " + message;
+        long sequence = persistMessageJournal(entry);
+        sender.noteOwnEntry(sequence);
+        long fanoutStart = System.nanoTime();
+        deliverToAll(Frame.chat(sender, message).withSequence(sequence), sender);
+        metrics.recordBroadcast(System.nanoTime() - fanoutStart);
+        Cluster current = cluster;
+        if (current != null) {
+            current.publishBroadcast(sender.getColor().getCode() + senderName + ": " + ConsoleColor.DEFAULT.getCode() + message, entry);
+        }
+    }
+
+    /**
+     * A broadcast that started on another node: delivered to every local client and kept in the local history.
+     */
+    void deliverRemoteBroadcast(String formattedMessage, String historyEntry) {
+        deliverToAll(Frame.ofLine(formattedMessage).withSequence(persistMessageJournal(historyEntry)), null);
+    }
+
+    /**
+     * Hands the same encoded frame to every client except {@code excluded}.
+     */
+    public void deliverToAll(Frame frame, ClientHandler excluded) {
+        for (ClientHandler clientHandler : clients.snapshot()) {
+            if (clientHandler != excluded) {
+                clientHandler.sendFrame(frame);
+            }
         }
     }
 
     public void directMessageToRecipient(String message, String senderName, ClientHandler recipientName) {
         ClientHandler recipient = findClientHandlerByName(recipientName.getClientSimpleName());
         if (recipient != null) {
-            try {
-                recipient.sendMessage(ConsoleColor.WHISPER.getCode() + "<whisper>" +senderName + ": " + ConsoleColor.DEFAULT.getCode() +  message);
-            } catch (IOException e) {
-                throw new RuntimeException(e);
-            }
+            recipient.sendMessage(whisperLine(message, senderName));
         } else {
-            logger.log(Level.INFO, "Recipient not found: " + recipientName);
+            logger.log(Level.INFO, "Recipient not found: {0}", recipientName);
         }
     }
 
+    /**
+     * Whispers one message to every name and group in {@code recipients}, encoded once for all of them.
+     *
+     * @return the names and groups nobody matched, as typed
+     */
+    public List<String> whisper(String message, ClientHandler sender, RecipientList recipients) {
+        return whispers.deliver(recipients, Frame.whisper(sender, message), whisperLine(message, sender.getClientSimpleName()), sender);
+    }
+
+    void deliverRemoteWhisper(String recipientKey, String line) {
+        ClientHandler recipient = clients.findByName(recipientKey);
+        if (recipient != null) {
+            recipient.sendMessage(line);
+        }
+    }
+
+    private static String whisperLine(String message, String senderName) {
+        return ConsoleColor.WHISPER.getCode() + "<whisper>" + senderName + ": " + ConsoleColor.DEFAULT.getCode() + message;
+    }
+
     public void directMessage(String message, ClientHandler recipient) {
         String formattedMessage = ConsoleColor.ADMIN.getCode() + "<whisper>ADMIN: " + ConsoleColor.DEFAULT.getCode() +  message;
-        try {
-            recipient.sendMessage(formattedMessage);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
+        recipient.sendMessage(formattedMessage);
     }
     public void broadcastServerMessage(String message) {
         String formattedMessage = ConsoleColor.ADMIN.getCode()  + "ADMIN: " + message + ConsoleColor.DEFAULT.getCode();
 
-        for (ClientHandler clientHandler : clientHandlers) {
-
-                try {
-                    clientHandler.sendMessage(formattedMessage);
-                } catch (IOException e) {
-                    throw new RuntimeException(e);
-                }
-
-        }
-        try {
-            persistMessageJournal("ADMIN: " + message);
-        } catch (IOException e) {
-            logger.log(Level.SEVERE, "UNABLE TO LOG MESSAGE " + e.getMessage());
+        deliverToAll(Frame.system(ConsoleColor.ADMIN, "ADMIN: " + message).withSequence(persistMessageJournal("ADMIN: " + message)), null);
+        if (cluster != null) {
+            cluster.publishBroadcast(formattedMessage, "ADMIN: " + message);
         }
     }
     public boolean removeClient(ClientHandler clientHandler) {
-
-        clientHandlers.remove(clientHandler);
-
+        String name = clients.nameOf(clientHandler);
+        clients.remove(clientHandler);
+        if (name != null && cluster != null) {
+            cluster.release(name);
+        }
         return true;
     }
     public void logConnected(){
-        String allNames = clientHandlers.stream()
+        String allNames = Arrays.stream(clients.snapshot())
                 .map(c ->  "'n/IP/p: " + c.getClientSimpleNameIpAndPORT() + "'\n")
                 .collect(Collectors.joining(""));
-        logger.log(Level.INFO, "Clients connected:\n" + allNames);
+        logger.log(Level.INFO, "Clients connected:\n{0}", allNames);
+    }
+    public void logStats() {
+        logger.log(Level.INFO, () -> metrics.report() + "\noutbound enqueued=" + outboundMetrics.getEnqueued()
+                + " dropped=" + outboundMetrics.getDropped() + " slowDisconnects=" + outboundMetrics.getSlowDisconnects()
+                + "\ntimers pending=" + timers.pending() + " resumable sessions=" + resumption.size());
+    }
+    public void logOutboundQueues() {
+        StringBuilder report = new StringBuilder("Outbound queues: enqueued=").append(outboundMetrics.getEnqueued())
+                .append(" dropped=").append(outboundMetrics.getDropped())
+                .append(" blockTimeouts=").append(outboundMetrics.getBlockTimeouts())
+                .append(" slowDisconnects=").append(outboundMetrics.getSlowDisconnects())
+                .append(" policy=").append(overflowPolicy)
+                .append(" capacity=").append(outboundQueueSize);
+        for (ClientHandler clientHandler : clients.snapshot()) {
+            int depth = clientHandler.getOutboundQueue().depth();
+            if (depth > 0) {
+                report.append("\n'").append(clientHandler.getClientSimpleNameIpAndPORT()).append("' depth=").append(depth);
+            }
+        }
+        logger.log(Level.INFO, report.toString());
     }
 
-    private void setupLogger() {
+    /**
+     * Logs to {@code logFile} and the console. With {@code asyncLogging} (the default) both go through an
+     * {@link AsyncLogHandler}, so client threads and the accept loop never wait for log I/O.
+     */
+    public void setupLogger() {
         try {
 
-            String logFilePath = "logs/server.log";
+            String logFilePath = config.getString("logFile", "logs/server.log");
 
-            File logDir = new File(logFilePath).getParentFile();
+            File logDir = new File(logFilePath).getAbsoluteFile().getParentFile();
             if (!logDir.exists()) {
                 logDir.mkdirs();
             }
+            if (config.getBoolean("asyncLogging", true)) {
+                asyncLogHandler = new AsyncLogHandler(logFilePath, config.getInt("logQueueSize", 8192), consoleLoggingActive);
+                logger.addHandler(asyncLogHandler);
+                logger.setUseParentHandlers(false);
+                return;
+            }
             FileHandler fileHandler = new FileHandler(logFilePath, true);
             SimpleFormatter formatter = new SimpleFormatter();
             fileHandler.setFormatter(formatter);
             logger.addHandler(fileHandler);
             logger.setUseParentHandlers(consoleLoggingActive);
         } catch (IOException e) {
-            logger.log(Level.SEVERE, "Failed to set up logger: " + e.getMessage(), e);
+            logger.log(Level.SEVERE, e, () -> "Failed to set up logger: " + e.getMessage());
+        }
+    }
+    public void toggleConsoleLogging() {
+        consoleLoggingActive = !consoleLoggingActive;
+        if (asyncLogHandler != null) {
+            asyncLogHandler.setConsoleEnabled(consoleLoggingActive);
+        } else {
+            logger.setUseParentHandlers(consoleLoggingActive);
         }
     }
     public void kickClient(String clientName) {
         clientName = clientName.trim();
-        for (ClientHandler clientHandler : clientHandlers) {
+        if (kickLocalClient(clientName)) {
+            return;
+        }
+        if (cluster != null) {
+            logger.log(Level.INFO, "Client ''{0}'' not on this node, asking the cluster", clientName);
+            cluster.forwardKick(clientName);
+        } else {
+            logger.log(Level.WARNING, "Client ''{0}'' not found.", clientName);
+        }
+    }
+
+    /**
+     * @return false if no client on this node matches
+     */
+    boolean kickLocalClient(String clientName) {
+        for (ClientHandler clientHandler : clients.snapshot()) {
             if (clientHandler.getClientSimpleNameIpAndPORT().equalsIgnoreCase(clientName)) {
 
                 try {
 
-                    logger.log(Level.INFO, "Kicking client: " + clientHandler.getClientSimpleName());
-                    logger.log(Level.INFO, "Untracking client: " + clientHandler.getClientSimpleName());
-                    clientHandler.sendMessageSingleLine(ConsoleColor.ERROR_WARNING.getCode() + "Connection closed... reason: KICKED" + ConsoleColor.DEFAULT.getCode());
-                    if (clientHandler.shutdown() && removeClient(clientHandler)){
+                    logger.log(Level.INFO, "Kicking client: {0}", clientHandler.getClientSimpleName());
+                    logger.log(Level.INFO, "Untracking client: {0}", clientHandler.getClientSimpleName());
+                    clientHandler.sendSystem(ConsoleColor.ERROR_WARNING, "Connection closed... reason: KICKED");
+                    boolean closed = clientHandler.shutdown();
+                    // a kicked nio session is never read again, so the reactor will not disconnect it
+                    clientHandler.onDisconnect();
+                    if (closed) {
                         logger.log(Level.INFO, "User kicked and untracked...");
                     }
 
@@ -185,109 +567,258 @@ public class ConcurrentServer {
                 finally {
                     logConnected();
                     }
-                return;
+                return true;
             }
         }
-        logger.log(Level.WARNING, "Client '" + clientName + "' not found.");
+        return false;
     }
 
-    public boolean checkIfNameExists(String clientName) {
-        if (clientHandlers.isEmpty()) {
-            return false; // If the list is empty, the name doesn't exist
+    /**
+     * Bans an address literal and disconnects the clients connected from it.
+     */
+    public void banAddress(String text) {
+        InetAddress address = AdmissionControl.parseAddress(text);
+        if (address == null) {
+            logger.log(Level.WARNING, "Not an IP address: ''{0}''", text);
+            return;
         }
-        for (ClientHandler ch : clientHandlers) {
-            String name = ch.getClientSimpleName();
-            if (name.equalsIgnoreCase(clientName)) {
-                return true;
+        if (!admission.ban(address)) {
+            logger.log(Level.INFO, "{0} is already banned", address.getHostAddress());
+        }
+        int disconnected = 0;
+        for (ClientHandler clientHandler : clients.snapshot()) {
+            if (address.equals(clientHandler.getInetAddress())) {
+                clientHandler.sendSystem(ConsoleColor.ERROR_WARNING, "Connection closed... reason: BANNED");
+                try {
+                    clientHandler.shutdown();
+                } catch (IOException e) {
+                    logger.log(Level.FINE, "Error closing banned client: {0}", e.getMessage());
+                }
+                clientHandler.onDisconnect();
+                disconnected++;
             }
         }
-        return false;
+        logger.log(Level.INFO, "Banned {0}, {1} clients disconnected", new Object[]{address.getHostAddress(), disconnected});
+    }
+    public void unbanAddress(String text) {
+        InetAddress address = AdmissionControl.parseAddress(text);
+        if (address == null) {
+            logger.log(Level.WARNING, "Not an IP address: ''{0}''", text);
+        } else if (admission.unban(address)) {
+            logger.log(Level.INFO, "Unbanned {0}", address.getHostAddress());
+        } else {
+            logger.log(Level.INFO, "{0} is not banned", address.getHostAddress());
+        }
+    }
+    public void logBans() {
+        StringBuilder report = new StringBuilder("Admission: ").append(admission.describeLimits());
+        for (InetAddress address : admission.bans()) {
+            report.append("\nbanned ").append(address.getHostAddress());
+        }
+        logger.log(Level.INFO, report.toString());
     }
 
-    public synchronized void persistMessageJournal(String message) throws IOException {
-        messageLogPath = "logs/chathistory.log";
+    public boolean checkIfNameExists(String clientName) {
+        return clients.isNameTaken(clientName)
+                || (cluster != null && clientName != null && cluster.isNameTakenRemotely(ClientRegistry.normalize(clientName)));
+    }
 
-        File logDir = new File(messageLogPath).getParentFile();
-        if (!logDir.exists()) {
-            logDir.mkdirs();
-        }
+    boolean isNameTakenLocally(String key) {
+        return clients.isNameTaken(key);
+    }
 
-        PrintWriter writer = new PrintWriter(new FileWriter(messageLogPath, true), true);
-        writer.println("|"
-                + LocalDateTime.now().
-                format(DateTimeFormatter.ofPattern("dd MMM yyyy HH:mm:ss"))
-                + "| "
-                + message);
+    Set<String> localNames() {
+        return clients.names();
     }
 
-    public synchronized String readFromMessageJournal() {
-        StringBuilder stringBuilder = new StringBuilder();
-        messageLogPath = "logs/chathistory.log";
+    /**
+     * Claims a name for a client in one atomic step, so two clients can never log in with the same name.
+     */
+    public boolean reserveName(String clientName, ClientHandler clientHandler) {
+        return clients.reserveName(clientName, clientHandler);
+    }
 
-        File logDir = new File(messageLogPath).getParentFile();
-        if (!logDir.exists()) {
-            logDir.mkdirs();
+    /**
+     * Reserves a name on this node and, in a cluster, claims it from the other nodes. Completes right away
+     * without a cluster.
+     */
+    public CompletableFuture<Boolean> claimName(String clientName, ClientHandler clientHandler) {
+        if (!clients.reserveName(clientName, clientHandler)) {
+            return CompletableFuture.completedFuture(false);
         }
-        try (BufferedReader reader = new BufferedReader(new FileReader(messageLogPath))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                stringBuilder.append(line).append(System.lineSeparator());
-            }
-        } catch (FileNotFoundException e) {
-            logger.log(Level.SEVERE, "FILE NOT FOUND -> path " + messageLogPath);
-        } catch (IOException e) {
-            logger.log(Level.SEVERE, "IO -> " + e.getMessage());
+        if (cluster == null) {
+            return CompletableFuture.completedFuture(true);
         }
-        return stringBuilder.toString();
+        return cluster.claim(ClientRegistry.normalize(clientName)).thenApply(granted -> {
+            if (!granted) {
+                clients.releaseName(clientName, clientHandler);
+            }
+            return granted;
+        });
     }
 
-    public  String readLastEntriesFromJournal(int numEntries) {
-        messageLogPath = "logs/chathistory.log";
+    public Cluster getCluster() {
+        return cluster;
+    }
 
-        File logDir = new File(messageLogPath).getParentFile();
-        if (!logDir.exists()) {
-            logDir.mkdirs();
+    public void logCluster() {
+        if (cluster == null) {
+            logger.log(Level.INFO, "Not clustered");
+            return;
         }
-        StringBuilder result = new StringBuilder();
-        try (FileReader fileReader = new FileReader(messageLogPath);
-             BufferedReader bufferedReader = new BufferedReader(fileReader)) {
+        logger.log(Level.INFO, "Cluster node {0} peers={1}", new Object[]{cluster.getNodeId(), cluster.peers()});
+    }
 
-            Deque<String> lastEntries = new ArrayDeque<>();
-            String line;
+    /**
+     * @return the entry's journal sequence number
+     */
+    public long persistMessageJournal(String message) {
+        return journal.append(message);
+    }
 
-            while ((line = bufferedReader.readLine()) != null) {
-                if (lastEntries.size() == numEntries) {
-                    lastEntries.poll();
-                }
-                lastEntries.offer(line);
-            }
+    public String readFromMessageJournal() {
+        return journal.readAll();
+    }
 
-            while (!lastEntries.isEmpty()) {
-                result.insert(0, lastEntries.pollLast() + "\n");            }
+    /**
+     * Streams history to the console in chunks: all of it, the last {@code N} entries, or {@code since <time>}.
+     */
+    public void showHistory(String arguments) {
+        HistoryExport export;
+        if (arguments.isEmpty()) {
+            export = journal.exportAll();
+        } else if (arguments.startsWith("since ")) {
+            long since = TimestampCache.parseSince(arguments.substring(6), System.currentTimeMillis());
+            if (since < 0) {
+                logger.log(Level.INFO, "Invalid time: {0}", arguments.substring(6).trim());
+                return;
+            }
+            export = journal.exportSince(since);
+        } else {
+            try {
+                export = journal.exportLast(Long.parseLong(arguments));
+            } catch (NumberFormatException e) {
+                logger.log(Level.INFO, "Usage: /showhistory [N | since <time>]");
+                return;
+            }
+        }
+        try {
+            export.copyTo(System.out);
+            System.out.flush();
+        } catch (IOException e) {
+            logger.log(Level.WARNING, e, () -> "Unable to show history: " + e.getMessage());
+        }
+    }
 
+    /**
+     * Prints the newest history entries matching a {@link SearchQuery} to the console.
+     */
+    public void searchHistory(String arguments) {
+        if (!journal.isSearchable()) {
+            logger.log(Level.INFO, "History search is disabled (searchIndex=false)");
+            return;
+        }
+        SearchQuery query;
+        try {
+            query = SearchQuery.parse(arguments, System.currentTimeMillis());
+        } catch (IllegalArgumentException e) {
+            logger.log(Level.INFO, e.getMessage());
+            return;
+        }
+        long start = System.nanoTime();
+        long[] found = journal.search(query);
+        long micros = (System.nanoTime() - start) / 1000;
+        try {
+            journal.exportEntries(found).copyTo(System.out);
+            System.out.flush();
         } catch (IOException e) {
-            e.printStackTrace();
+            logger.log(Level.WARNING, e, () -> "Unable to show search results: " + e.getMessage());
         }
-        return ConsoleColor.CHAT_HISTORY.getCode() + result.toString() + ConsoleColor.DEFAULT.getCode();
+        logger.log(Level.INFO, "{0} matches for [{1}] in {2} us (index {3} KB)",
+                new Object[]{found.length, query, micros, journal.searchIndexBytes() / 1024});
+    }
+
+    public  String readLastEntriesFromJournal(int numEntries) {
+        return journal.readLastEntries(numEntries);
+    }
+
+    /**
+     * What a client sees right after joining: the newest {@code replayDepth} history entries as one frame,
+     * served from memory.
+     */
+    public Frame joinReplayFrame() {
+        return journal.readLastEntriesFrame(replayDepth);
     }
 
-    public synchronized void clearChatlogHistory() {
+    public void clearChatlogHistory() {
         try {
-            PrintWriter writer = new PrintWriter(new FileWriter(messageLogPath, false));
-            writer.close();
+            journal.clear();
             logger.log(Level.INFO, "Chat log history cleared successfully.");
         } catch (IOException e) {
-            logger.log(Level.SEVERE, "Failed to clear chat log history: " + e.getMessage());
+            logger.log(Level.SEVERE, "Failed to clear chat log history: {0}", e.getMessage());
         }
     }
 
-    public ClientHandler findClientHandlerByName(String name) {
-        for (ClientHandler clientHandler : clientHandlers) {
-            if (clientHandler.getClientSimpleName().equalsIgnoreCase(name)) {
-                return clientHandler;
+    public MessageJournal getJournal() {
+        return journal;
+    }
+
+    public ChannelRegistry getChannels() {
+        return channels;
+    }
+
+    public int getReplayDepth() {
+        return replayDepth;
+    }
+
+    /**
+     * {@code /group <name>} lists the members, {@code /group <name> add|remove <user>, <user>...} edits them.
+     */
+    public void editGroup(String arguments) {
+        String[] parts = arguments.split("\\s+", 3);
+        String group = parts[0].isEmpty() ? null : WhisperRouter.groupKey(parts[0]);
+        if (group == null || parts.length == 2 || (parts.length == 3 && !parts[1].equals("add") && !parts[1].equals("remove"))) {
+            logger.log(Level.INFO, "Usage: /group <name> [add|remove <user>, <user>...]");
+            return;
+        }
+        if (parts.length == 1) {
+            List<String> members = whispers.members(group);
+            if (members == null) {
+                logger.log(Level.INFO, "No group @{0}", group);
+            } else {
+                logger.log(Level.INFO, "@{0} ({1,number,#}): {2}", new Object[]{group, members.size(), String.join(", ", members)});
             }
+            return;
+        }
+        List<String> names = new ArrayList<>();
+        for (String name : parts[2].split(",")) {
+            if (!name.isBlank()) {
+                names.add(name.trim());
+            }
+        }
+        if (parts[1].equals("add")) {
+            logger.log(Level.INFO, "Added {0} to @{1}", new Object[]{whispers.addMembers(group, names), group});
+        } else {
+            logger.log(Level.INFO, "Removed {0} from @{1}", new Object[]{whispers.removeMembers(group, names), group});
         }
-        return null; // Return null if the client handler with the specified name is not found
+    }
+
+    public void logGroups() {
+        StringBuilder report = new StringBuilder("Whisper groups:");
+        whispers.groups().forEach((group, size) -> report.append("\n'@").append(group).append("' members=").append(size));
+        logger.log(Level.INFO, report.toString());
+    }
+
+    public void logChannels() {
+        StringBuilder report = new StringBuilder("Channels open: ").append(channels.size());
+        for (ChatChannel channel : channels.list()) {
+            report.append("\n'#").append(channel.getName()).append("' members=").append(channel.size());
+        }
+        logger.log(Level.INFO, report.toString());
+    }
+
+    public ClientHandler findClientHandlerByName(String name) {
+        return clients.findByName(name);
     }
 
 
@@ -309,21 +840,15 @@ public class ConcurrentServer {
         private void processConsoleCommand(String input) {
             if (input.startsWith("@")) {
                 int colonIndex = input.indexOf(':');
-                if (colonIndex != -1) {
-                    String recipientNames = input.substring(1, colonIndex).trim();
-                    String message = input.substring(colonIndex + 1).trim(); // Message starts after the colon
-
-                    String[] recipientNameArray = recipientNames.split("\\s*,\\s*");
-                    for (String recipientName : recipientNameArray) {
-                        ClientHandler recipient = findClientHandlerByName(recipientName);
-                        if (recipient != null) {
-                            directMessage(message, recipient);
-                        } else {
-                            logger.log(Level.INFO, "Recipient not found: " + recipientName);
-                        }
+                RecipientList recipients = colonIndex > 1 ? RecipientList.parse(input, colonIndex, null) : null;
+                if (recipients != null && !recipients.isEmpty()) {
+                    String line = ConsoleColor.ADMIN.getCode() + "<whisper>ADMIN: " + ConsoleColor.DEFAULT.getCode() + input.substring(colonIndex + 1).trim();
+                    List<String> missing = whispers.deliver(recipients, Frame.ofLine(line), line, null);
+                    if (!missing.isEmpty()) {
+                        logger.log(Level.INFO, "Recipients not found: {0}", String.join(", ", missing));
                     }
                 } else {
-                    logger.log(Level.INFO, "Invalid format. Please use: @recipientName1 recipientName2: message");
+                    logger.log(Level.INFO, "Invalid format. Please use: @recipientName1, recipientName2, @@group: message");
                 }
             }
             else if (input.startsWith("/")) {
@@ -335,27 +860,60 @@ public class ConcurrentServer {
                     case "/kick":
                         kickClient(arguments.trim());
                         break;
+                    case "/ban":
+                        banAddress(arguments.trim());
+                        break;
+                    case "/unban":
+                        unbanAddress(arguments.trim());
+                        break;
+                    case "/bans":
+                        logBans();
+                        break;
+                    case "/group":
+                        editGroup(arguments.trim());
+                        break;
+                    case "/groups":
+                        logGroups();
+                        break;
                     case "/users":
                         logConnected();
                         break;
+                    case "/queues":
+                        logOutboundQueues();
+                        break;
+                    case "/stats":
+                        logStats();
+                        break;
+                    case "/channels":
+                        logChannels();
+                        break;
+                    case "/cluster":
+                        logCluster();
+                        break;
                     case "/clearhistory":
                         clearChatlogHistory();
                         break;
                     case "/showhistory":
-                        System.out.println(readFromMessageJournal());
+                        showHistory(arguments.trim());
+                        break;
+                    case "/search":
+                        searchHistory(arguments.trim());
                         break;
                     case "/togglelogs":
-                        consoleLoggingActive = !consoleLoggingActive;
-                        logger.setUseParentHandlers(consoleLoggingActive);
+                        toggleConsoleLogging();
+                        break;
+                    case "/shutdown":
+                        shutdown(arguments.isBlank() ? "shutdown by admin" : arguments.trim());
+                        System.exit(0);
                         break;
                     case "/shout":
                         broadcastServerMessage(arguments);
                         break;
                     default:
-                        logger.log(Level.INFO, "Unknown command: " + command);
+                        logger.log(Level.INFO, "Unknown command: {0}", command);
                 }
             } else {
-                logger.log(Level.INFO, "Console input: " + input);
+                logger.log(Level.INFO, "Console input: {0}", input);
             }
         }
 
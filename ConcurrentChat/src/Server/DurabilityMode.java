@@ -0,0 +1,10 @@
+package Server;
+
+/**
+ * How often the journal writer forces appended entries to disk. Appends never wait for the disk in any mode.
+ */
+public enum DurabilityMode {
+    NONE, // leave flushing to the operating system
+    BATCH, // one fsync per group commit, after journalBatchSize entries or journalFlushMillis
+    MESSAGE // one fsync after every entry
+}
@@ -0,0 +1,235 @@
+package Server;
+
+import utils.BinaryProtocol;
+import utils.ConsoleColor;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * One encoded message. Immutable, so a broadcast formats and encodes its frame once and hands the same
+ * instance to every recipient.
+ * <p>
+ * The text form is the newline terminated line. The {@link BinaryProtocol} form is built from it the first
+ * time a binary client needs it: the body text is a slice of the line, and the sender is a varint id whose
+ * name and colour the connection introduces once with the sender's {@link #user} frame.
+ */
+public final class Frame {
+
+    /**
+     * Queued when a client asks for the binary protocol: everything before it goes out as text, everything after as binary.
+     */
+    static final Frame PROTOCOL_SWITCH = new Frame(new byte[]{BinaryProtocol.MAGIC}, BinaryProtocol.LINE, 0, -1, null, null, 0, 0);
+
+    /**
+     * Heartbeat from the server; the client answers {@code /pong}. The text form is the line {@code /ping}.
+     */
+    static final Frame PING = new Frame("/ping\n".getBytes(StandardCharsets.UTF_8), BinaryProtocol.PING, 0, -1, null, null, 0, 0);
+
+    /**
+     * The answer to a client's {@code /ping}.
+     */
+    static final Frame PONG = ofLine("/pong");
+
+    private static final byte[] DEFAULT_CODE = (ConsoleColor.DEFAULT.getCode() + "\n").getBytes(StandardCharsets.UTF_8);
+    private static final byte[] NEWLINE = {'\n'};
+
+    private final byte[] bytes;
+    private final ByteBuffer buffer;
+    private final byte type;
+    private final int senderId;
+    private final int attribute;
+    private final byte[] extra;
+    private final Frame intro;
+    private final int payloadOffset;
+    private final int payloadLength;
+    private final HistoryExport export;
+    private volatile byte[] binary;
+    private long sequence = -1;
+
+    private Frame(byte[] bytes, byte type, int senderId, int attribute, byte[] extra, Frame intro, int payloadOffset, int payloadLength) {
+        this.bytes = bytes;
+        this.buffer = ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+        this.type = type;
+        this.senderId = senderId;
+        this.attribute = attribute;
+        this.extra = extra;
+        this.intro = intro;
+        this.payloadOffset = payloadOffset;
+        this.payloadLength = payloadLength;
+        this.export = null;
+    }
+
+    private Frame(HistoryExport export) {
+        this.bytes = new byte[0];
+        this.buffer = ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+        this.type = BinaryProtocol.HISTORY;
+        this.senderId = 0;
+        this.attribute = -1;
+        this.extra = null;
+        this.intro = null;
+        this.payloadOffset = 0;
+        this.payloadLength = 0;
+        this.export = export;
+    }
+
+    public static Frame ofLine(String line) {
+        byte[] bytes = (line + "\n").getBytes(StandardCharsets.UTF_8);
+        return new Frame(bytes, BinaryProtocol.LINE, 0, -1, null, null, 0, bytes.length - 1);
+    }
+
+    /**
+     * History entries framed by colour codes; only the entries between {@code textOffset} and
+     * {@code textOffset + textLength} go into the binary form. Takes ownership of {@code bytes}.
+     */
+    static Frame history(byte[] bytes, int textOffset, int textLength) {
+        return new Frame(bytes, BinaryProtocol.HISTORY, 0, -1, null, null, textOffset, textLength);
+    }
+
+    /**
+     * History sent from the journal files by the connection's writer instead of from bytes in this frame; see
+     * {@link HistoryExport}. Goes to one client only.
+     */
+    static Frame export(HistoryExport export) {
+        return new Frame(export);
+    }
+
+    /**
+     * A server notice shown in {@code color}.
+     */
+    public static Frame system(ConsoleColor color, String text) {
+        return sliced(BinaryProtocol.SYSTEM, 0, color.ordinal(), null, null, color.getCode(), text, DEFAULT_CODE);
+    }
+
+    /**
+     * Introduces a sender to a binary client. Has no text form.
+     */
+    static Frame user(int senderId, ConsoleColor color, String name) {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        Frame frame = new Frame(new byte[0], BinaryProtocol.USER, senderId, color.ordinal(), null, null, 0, 0);
+        frame.binary = frame.encodeBinary(nameBytes, 0, nameBytes.length);
+        return frame;
+    }
+
+    public static Frame chat(ClientHandler sender, String message) {
+        String prefix = sender.getColor().getCode() + sender.getClientSimpleName() + ": " + ConsoleColor.DEFAULT.getCode();
+        return sliced(BinaryProtocol.CHAT, sender.getSenderId(), -1, null, sender.getIntroFrame(), prefix, message, NEWLINE);
+    }
+
+    public static Frame whisper(ClientHandler sender, String message) {
+        String prefix = ConsoleColor.WHISPER.getCode() + "<whisper>" + sender.getClientSimpleName() + ": " + ConsoleColor.DEFAULT.getCode();
+        return sliced(BinaryProtocol.WHISPER, sender.getSenderId(), -1, null, sender.getIntroFrame(), prefix, message, NEWLINE);
+    }
+
+    public static Frame channel(ClientHandler sender, String channelName, String message) {
+        String prefix = sender.getColor().getCode() + "#" + channelName + " " + sender.getClientSimpleName() + ": " + ConsoleColor.DEFAULT.getCode();
+        return sliced(BinaryProtocol.CHANNEL, sender.getSenderId(), -1, channelName.getBytes(StandardCharsets.UTF_8),
+                sender.getIntroFrame(), prefix, message, NEWLINE);
+    }
+
+    private static Frame sliced(byte type, int senderId, int attribute, byte[] extra, Frame intro, String prefix, String text, byte[] suffix) {
+        byte[] prefixBytes = prefix.getBytes(StandardCharsets.UTF_8);
+        byte[] textBytes = text.getBytes(StandardCharsets.UTF_8);
+        byte[] bytes = new byte[prefixBytes.length + textBytes.length + suffix.length];
+        System.arraycopy(prefixBytes, 0, bytes, 0, prefixBytes.length);
+        System.arraycopy(textBytes, 0, bytes, prefixBytes.length, textBytes.length);
+        System.arraycopy(suffix, 0, bytes, prefixBytes.length + textBytes.length, suffix.length);
+        return new Frame(bytes, type, senderId, attribute, extra, intro, prefixBytes.length, textBytes.length);
+    }
+
+    public int length() {
+        return bytes.length;
+    }
+
+    /**
+     * A read-only view with its own position, for gathering writes.
+     */
+    public ByteBuffer buffer() {
+        return buffer.duplicate();
+    }
+
+    void writeTo(OutputStream outputStream) throws IOException {
+        outputStream.write(bytes);
+    }
+
+    /**
+     * The history this frame stands for, or null for frames that carry their bytes.
+     */
+    HistoryExport getExport() {
+        return export;
+    }
+
+    /**
+     * The journal sequence number of the history entry this frame delivers live, or -1. Set once, before
+     * the frame is queued anywhere; the queue publishes it to the writer.
+     */
+    long getSequence() {
+        return sequence;
+    }
+
+    Frame withSequence(long sequence) {
+        this.sequence = sequence;
+        return this;
+    }
+
+    byte getType() {
+        return type;
+    }
+
+    /**
+     * Id of the client that sent the message, or 0 for server messages.
+     */
+    int getSenderId() {
+        return senderId;
+    }
+
+    /**
+     * The {@link #user} frame a binary client needs before this one, or null.
+     */
+    Frame getIntro() {
+        return intro;
+    }
+
+    /**
+     * The {@link BinaryProtocol} encoding, built on first use.
+     */
+    byte[] binary() {
+        byte[] encoded = binary;
+        if (encoded == null) {
+            encoded = encodeBinary(bytes, payloadOffset, payloadLength);
+            binary = encoded;
+        }
+        return encoded;
+    }
+
+    private byte[] encodeBinary(byte[] payload, int offset, int length) {
+        int bodyLength = 1 + length;
+        if (senderId > 0) {
+            bodyLength += BinaryProtocol.varintSize(senderId);
+        }
+        if (attribute >= 0) {
+            bodyLength++;
+        }
+        if (extra != null) {
+            bodyLength += BinaryProtocol.varintSize(extra.length) + extra.length;
+        }
+        byte[] encoded = new byte[BinaryProtocol.varintSize(bodyLength) + bodyLength];
+        int position = BinaryProtocol.putVarint(encoded, 0, bodyLength);
+        encoded[position++] = type;
+        if (senderId > 0) {
+            position = BinaryProtocol.putVarint(encoded, position, senderId);
+        }
+        if (attribute >= 0) {
+            encoded[position++] = (byte) attribute;
+        }
+        if (extra != null) {
+            position = BinaryProtocol.putVarint(encoded, position, extra.length);
+            System.arraycopy(extra, 0, encoded, position, extra.length);
+            position += extra.length;
+        }
+        System.arraycopy(payload, offset, encoded, position, length);
+        return encoded;
+    }
+}
@@ -0,0 +1,206 @@
+package Server;
+
+import utils.BinaryProtocol;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+
+/**
+ * A range of history sent without reading it onto the heap: byte regions of {@link JournalSegment} files,
+ * captured up to the committed size when the export is made, so appends go on while it is sent. Socket
+ * targets get the regions through {@link java.nio.channels.FileChannel#transferTo}; other streams through
+ * one reused chunk buffer.
+ * <p>
+ * Regions end on entry boundaries and hold about {@link #MAX_REGION_BYTES} at most, which is also the most
+ * one binary {@code HISTORY} frame carries. The segments stay open until the export is released, even if
+ * retention deletes them meanwhile. An export is sent once, by one writer.
+ */
+public final class HistoryExport {
+
+    static final long MAX_REGION_BYTES = 1024 * 1024;
+    private static final int CHUNK_SIZE = 8 * 1024;
+
+    record Region(JournalSegment segment, long from, long to) {
+
+        long length() {
+            return to - from;
+        }
+    }
+
+    private final List<Region> regions;
+    private final long entryCount;
+    private final long length;
+    private boolean released;
+
+    // non-blocking progress: the step being written and how far into it
+    private int step;
+    private ByteBuffer pending;
+    private long position = -1;
+
+    HistoryExport(List<Region> regions, long entryCount) {
+        this.regions = regions;
+        this.entryCount = entryCount;
+        long total = 0;
+        for (Region region : regions) {
+            total += region.length();
+        }
+        this.length = total;
+    }
+
+    public long getEntryCount() {
+        return entryCount;
+    }
+
+    /**
+     * Bytes of history, without any framing.
+     */
+    public long length() {
+        return length;
+    }
+
+    public boolean isEmpty() {
+        return length == 0;
+    }
+
+    /**
+     * Copies the raw lines to {@code outputStream} in chunks and releases the export.
+     *
+     * @return the number of bytes written
+     */
+    public long copyTo(OutputStream outputStream) throws IOException {
+        try {
+            ByteBuffer chunk = ByteBuffer.allocate(CHUNK_SIZE);
+            for (Region region : regions) {
+                copyRegion(region, outputStream, chunk);
+            }
+            return length;
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * Sends the export the way {@code HISTORY} frames go to a blocking client: framing bytes through
+     * {@code outputStream}, regions through {@code channel} when the socket has one, else copied in chunks.
+     * Flushes {@code outputStream} before every transfer, so the two paths stay in order. Releases the export.
+     *
+     * @return the number of bytes written
+     */
+    long writeTo(OutputStream outputStream, WritableByteChannel channel, boolean binary) throws IOException {
+        try {
+            ByteBuffer chunk = channel == null ? ByteBuffer.allocate(CHUNK_SIZE) : null;
+            long written = 0;
+            if (!binary) {
+                outputStream.write(MessageJournal.HISTORY_PREFIX);
+                written += MessageJournal.HISTORY_PREFIX.length;
+            }
+            for (Region region : regions) {
+                if (binary) {
+                    byte[] header = binaryHeader(region);
+                    outputStream.write(header);
+                    written += header.length;
+                }
+                if (channel != null) {
+                    outputStream.flush();
+                    long from = region.from();
+                    while (from < region.to()) {
+                        from += region.segment().transferTo(from, region.to() - from, channel);
+                    }
+                } else {
+                    copyRegion(region, outputStream, chunk);
+                }
+                written += region.length();
+            }
+            if (!binary) {
+                outputStream.write(MessageJournal.HISTORY_SUFFIX);
+                written += MessageJournal.HISTORY_SUFFIX.length;
+            }
+            return written;
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * Non-blocking counterpart of {@link #writeTo}: sends as much as {@code channel} takes right now and
+     * remembers where it stopped. Releases the export once {@link #isDone()}.
+     *
+     * @return the number of bytes written by this call
+     */
+    long transferTo(WritableByteChannel channel, boolean binary) throws IOException {
+        long written = 0;
+        // text: prefix, regions, suffix; binary: header and region for each region
+        int steps = binary ? regions.size() * 2 : regions.size() + 2;
+        while (step < steps) {
+            Region region = binary ? (step % 2 == 1 ? regions.get(step / 2) : null)
+                    : (step > 0 && step <= regions.size() ? regions.get(step - 1) : null);
+            if (region == null) {
+                if (pending == null) {
+                    pending = ByteBuffer.wrap(binary ? binaryHeader(regions.get(step / 2))
+                            : step == 0 ? MessageJournal.HISTORY_PREFIX : MessageJournal.HISTORY_SUFFIX);
+                }
+                written += channel.write(pending);
+                if (pending.hasRemaining()) {
+                    return written;
+                }
+                pending = null;
+            } else {
+                if (position < 0) {
+                    position = region.from();
+                }
+                long sent = region.segment().transferTo(position, region.to() - position, channel);
+                position += sent;
+                written += sent;
+                if (position < region.to()) {
+                    return written;
+                }
+                position = -1;
+            }
+            step++;
+        }
+        release();
+        return written;
+    }
+
+    boolean isDone() {
+        return released;
+    }
+
+    /**
+     * Lets the segments close if they were deleted meanwhile. Safe to call more than once.
+     */
+    synchronized void release() {
+        if (released) {
+            return;
+        }
+        released = true;
+        for (Region region : regions) {
+            region.segment().release();
+        }
+    }
+
+    private static void copyRegion(Region region, OutputStream outputStream, ByteBuffer chunk) throws IOException {
+        long from = region.from();
+        while (from < region.to()) {
+            chunk.clear();
+            chunk.limit((int) Math.min(chunk.capacity(), region.to() - from));
+            int read = region.segment().read(chunk, from);
+            if (read <= 0) {
+                throw new IOException("History segment ended early: " + region.segment().getLogPath());
+            }
+            outputStream.write(chunk.array(), 0, read);
+            from += read;
+        }
+    }
+
+    private static byte[] binaryHeader(Region region) {
+        int bodyLength = 1 + (int) region.length();
+        byte[] header = new byte[BinaryProtocol.varintSize(bodyLength) + 1];
+        int position = BinaryProtocol.putVarint(header, 0, bodyLength);
+        header[position] = BinaryProtocol.HISTORY;
+        return header;
+    }
+}
@@ -0,0 +1,305 @@
+package Server;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.DateTimeException;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Search index over one {@link MessageJournal}: a {@link SearchSegment} per journal segment, fed by the
+ * journal writer as entries are written. Sealed segments save their index next to the log as {@code .six};
+ * the active one is saved on close. On open the saved indexes are loaded and only entries written after them
+ * are scanned, so a restart rebuilds no more than what it has to.
+ * <p>
+ * Without the word index, words are matched by scanning the lines in the time range, which is slower on
+ * large histories but costs no memory.
+ */
+final class HistorySearch {
+
+    static final String INDEX_SUFFIX = ".six";
+    private static final int MAX_WORD_LENGTH = 32;
+
+    private final Path directory;
+    private final boolean indexWords;
+    private final Logger logger;
+    private final ConcurrentSkipListMap<Long, SearchSegment> indexes = new ConcurrentSkipListMap<>();
+    private volatile SearchSegment active;
+
+    HistorySearch(Path directory, boolean indexWords, Logger logger) {
+        this.directory = directory;
+        this.indexWords = indexWords;
+        this.logger = logger;
+    }
+
+    /**
+     * Calls {@code wordConsumer} with each lower-cased run of letters and digits in {@code text} from
+     * {@code from}, skipping single characters and cutting words at {@value #MAX_WORD_LENGTH} characters.
+     */
+    static void forEachWord(String text, int from, Consumer<String> wordConsumer) {
+        int length = text.length();
+        int i = from;
+        while (i < length) {
+            while (i < length && !Character.isLetterOrDigit(text.charAt(i))) {
+                i++;
+            }
+            int start = i;
+            while (i < length && Character.isLetterOrDigit(text.charAt(i))) {
+                i++;
+            }
+            if (i - start > 1) {
+                wordConsumer.accept(text.substring(start, Math.min(i, start + MAX_WORD_LENGTH)).toLowerCase(Locale.ROOT));
+            }
+        }
+    }
+
+    /**
+     * Loads or builds the index of every segment; the last one becomes active.
+     */
+    void open(Collection<JournalSegment> segments) {
+        long start = System.nanoTime();
+        int loaded = 0;
+        long scanned = 0;
+        SearchSegment last = null;
+        JournalSegment activeSegment = null;
+        for (JournalSegment segment : segments) {
+            activeSegment = segment;
+        }
+        for (JournalSegment segment : segments) {
+            long base = segment.getBaseSequence();
+            SearchSegment index = SearchSegment.load(indexFile(base), base, indexWords);
+            if (index == null || index.getEntryCount() > segment.getEntryCount()) {
+                index = new SearchSegment(base, indexWords);
+            } else {
+                loaded++;
+            }
+            if (index.getEntryCount() < segment.getEntryCount()) {
+                scanned += segment.getEntryCount() - index.getEntryCount();
+                scan(segment, index);
+                if (segment != activeSegment) {
+                    index.trim();
+                    save(index);
+                }
+            }
+            indexes.put(base, index);
+            last = index;
+        }
+        active = last;
+        logger.log(Level.INFO, "History search index ready: {0} segments, {1} loaded, {2} entries scanned in {3} ms",
+                new Object[]{indexes.size(), loaded, scanned, (System.nanoTime() - start) / 1_000_000});
+    }
+
+    /**
+     * Indexes the entries of {@code segment} that {@code index} does not have yet.
+     */
+    private void scan(JournalSegment segment, SearchSegment index) {
+        StampParser stamps = new StampParser();
+        try {
+            long from = segment.positionOf(index.getEntryCount());
+            segment.readLines(from, segment.getSize(), line -> {
+                int end = line.indexOf("| ", 1);
+                long second = stamps.secondOf(line, end);
+                index.add(second, end > 0 ? line.substring(end + 2) : line);
+            });
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Unable to index history segment {0}: {1}", new Object[]{segment.getLogPath(), e.getMessage()});
+        }
+    }
+
+    // ---- journal writer thread ----
+
+    void add(long epochMillis, String message) {
+        active.add(Math.floorDiv(epochMillis, 1000), message);
+    }
+
+    /**
+     * Saves the index of the segment just sealed and starts one for the new segment.
+     */
+    void roll(long nextBase) {
+        SearchSegment sealed = active;
+        sealed.trim();
+        save(sealed);
+        SearchSegment next = new SearchSegment(nextBase, indexWords);
+        indexes.put(nextBase, next);
+        active = next;
+    }
+
+    void remove(long baseSequence) {
+        indexes.remove(baseSequence);
+        try {
+            Files.deleteIfExists(indexFile(baseSequence));
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Unable to delete search index {0}: {1}", new Object[]{indexFile(baseSequence), e.getMessage()});
+        }
+    }
+
+    void clear(long nextBase) {
+        for (Long base : indexes.keySet()) {
+            remove(base);
+        }
+        active = new SearchSegment(nextBase, indexWords);
+        indexes.put(nextBase, active);
+    }
+
+    void close() {
+        save(active);
+    }
+
+    private void save(SearchSegment index) {
+        try {
+            index.save(indexFile(index.baseSequence));
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Unable to save search index {0}: {1}", new Object[]{indexFile(index.baseSequence), e.getMessage()});
+        }
+    }
+
+    private Path indexFile(long baseSequence) {
+        return directory.resolve(JournalSegment.fileName(baseSequence, INDEX_SUFFIX));
+    }
+
+    // ---- readers ----
+
+    long memoryBytes() {
+        long bytes = 0;
+        for (SearchSegment index : indexes.values()) {
+            bytes += index.memoryBytes();
+        }
+        return bytes;
+    }
+
+    /**
+     * Sequence numbers of the newest {@code query.limit} matching entries, ascending. Walks the segments from
+     * the newest and stops once it has enough.
+     */
+    long[] search(SearchQuery query, NavigableMap<Long, JournalSegment> segments) {
+        long[] found = new long[query.limit];
+        int count = 0;
+        boolean scanWords = !query.words.isEmpty() && !indexWords;
+        long fromSecond = query.fromSecond();
+        long toSecond = query.toSecond();
+        for (Map.Entry<Long, SearchSegment> entry : indexes.descendingMap().entrySet()) {
+            int remaining = query.limit - count;
+            if (remaining == 0) {
+                break;
+            }
+            SearchSegment index = entry.getValue();
+            int[] range = index.range(fromSecond, toSecond);
+            if (range[0] >= range[1]) {
+                if (range[0] == 0) {
+                    // everything here is newer than the range, older segments may still match
+                    continue;
+                }
+                break;
+            }
+            int[] matches;
+            if (scanWords) {
+                JournalSegment segment = segments.get(entry.getKey());
+                if (segment == null) {
+                    continue;
+                }
+                matches = scanMatches(segment, query, range[0], range[1], remaining);
+            } else {
+                matches = index.newestMatches(query, range[0], range[1], remaining);
+            }
+            // older segments fill the front
+            for (int i = matches.length - 1; i >= 0; i--) {
+                found[query.limit - 1 - count++] = entry.getKey() + matches[i];
+            }
+            if (range[0] > 0) {
+                break;
+            }
+        }
+        return Arrays.copyOfRange(found, query.limit - count, query.limit);
+    }
+
+    /**
+     * Word search without the word index: reads the lines in the range and keeps the newest matches.
+     */
+    private int[] scanMatches(JournalSegment segment, SearchQuery query, int lo, int hi, int limit) {
+        int[] newest = new int[limit];
+        int[] state = {lo, 0};
+        Set<String> lineWords = new HashSet<>();
+        try {
+            segment.readLines(segment.positionOf(lo), segment.positionOf(hi), line -> {
+                int entryIndex = state[0]++;
+                int end = line.indexOf("| ", 1);
+                String message = end > 0 ? line.substring(end + 2) : line;
+                int colon = message.indexOf(": ");
+                if (query.sender != null && (colon <= 0 || !message.substring(0, colon).equalsIgnoreCase(query.sender))) {
+                    return;
+                }
+                lineWords.clear();
+                forEachWord(message, colon > 0 ? colon + 2 : 0, lineWords::add);
+                if (lineWords.containsAll(query.words)) {
+                    newest[state[1]++ % limit] = entryIndex;
+                }
+            });
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Unable to search history segment {0}: {1}", new Object[]{segment.getLogPath(), e.getMessage()});
+        }
+        int matched = Math.min(state[1], limit);
+        int[] ascending = new int[matched];
+        for (int i = 0; i < matched; i++) {
+            ascending[i] = newest[(state[1] - matched + i) % limit];
+        }
+        return ascending;
+    }
+
+    /**
+     * Reads {@code |dd MMM yyyy HH:mm:ss|} stamps. Consecutive entries mostly share their day, so the date
+     * is parsed once per day and the time of day by hand.
+     */
+    private static final class StampParser {
+
+        private static final DateTimeFormatter DAY_FORMAT = DateTimeFormatter.ofPattern("dd MMM yyyy");
+
+        private final ZoneId zone = ZoneId.systemDefault();
+        private String lastDay;
+        private LocalDate lastDate;
+        private long lastSecond;
+
+        long secondOf(String line, int end) {
+            int time = end - 8;
+            if (end <= 1 || line.charAt(0) != '|' || time < 2 || line.charAt(time - 1) != ' '
+                    || line.charAt(time + 2) != ':' || line.charAt(time + 5) != ':') {
+                return lastSecond;
+            }
+            try {
+                if (lastDay == null || !line.regionMatches(1, lastDay, 0, time - 2) || lastDay.length() != time - 2) {
+                    String day = line.substring(1, time - 1);
+                    lastDate = LocalDate.parse(day, DAY_FORMAT);
+                    lastDay = day;
+                }
+                LocalTime localTime = LocalTime.of(twoDigits(line, time), twoDigits(line, time + 3), twoDigits(line, time + 6));
+                lastSecond = LocalDateTime.of(lastDate, localTime).atZone(zone).toEpochSecond();
+            } catch (DateTimeException | NumberFormatException ignored) {
+                // keep the previous second
+            }
+            return lastSecond;
+        }
+
+        private static int twoDigits(String text, int index) {
+            int high = text.charAt(index) - '0';
+            int low = text.charAt(index + 1) - '0';
+            if (high < 0 || high > 9 || low < 0 || low > 9) {
+                throw new NumberFormatException(text.substring(index, index + 2));
+            }
+            return high * 10 + low;
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package Server;
+
+import utils.BinaryProtocol;
+
+import java.nio.ByteBuffer;
+import java.util.function.Consumer;
+
+/**
+ * Picks the wire protocol from the first byte a client sends: {@link BinaryProtocol#MAGIC} selects the
+ * {@link BinaryFramer}, anything else the newline {@link LineFramer}.
+ */
+public class InboundFramer {
+
+    private final int maxLineLength;
+    private LineFramer lineFramer;
+    private BinaryFramer binaryFramer;
+
+    public InboundFramer(int maxLineLength) {
+        this.maxLineLength = maxLineLength;
+    }
+
+    /**
+     * Feeds the readable bytes of {@code buffer}, handing every completed line to {@code lineConsumer}.
+     * {@code onBinary} runs once, before any line, if the client asked for the binary protocol.
+     *
+     * @return false if a line or frame grew beyond the maximum length
+     */
+    public boolean feed(ByteBuffer buffer, Consumer<String> lineConsumer, Runnable onBinary) {
+        if (binaryFramer != null) {
+            return binaryFramer.feed(buffer, lineConsumer);
+        }
+        if (lineFramer == null) {
+            if (!buffer.hasRemaining()) {
+                return true;
+            }
+            if (buffer.get(buffer.position()) == BinaryProtocol.MAGIC) {
+                buffer.get();
+                binaryFramer = new BinaryFramer(maxLineLength);
+                onBinary.run();
+                return binaryFramer.feed(buffer, lineConsumer);
+            }
+            lineFramer = new LineFramer(maxLineLength);
+        }
+        return lineFramer.feed(buffer, lineConsumer);
+    }
+}
@@ -0,0 +1,633 @@
+package Server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+/**
+ * One history segment: a log file holding consecutive journal entries, named after the sequence number of
+ * its first entry, plus a sparse index file with the byte position of every {@code indexInterval}-th entry.
+ * Once sealed, the log may be replaced by a {@link CompressedLog}; positions keep referring to the original
+ * log, so the index and every reader work the same on both.
+ * <p>
+ * Only the journal writer thread appends. Readers use positional reads bounded by the committed size, so
+ * they never see half written lines and never block the writer. A {@link HistoryExport} retains the
+ * segment while it is being sent, so closing it waits for the last one to release it.
+ */
+class JournalSegment implements Closeable {
+
+    static final String LOG_SUFFIX = ".log";
+    static final String INDEX_SUFFIX = ".idx";
+    private static final int READ_CHUNK = 8 * 1024;
+    // long enough for the "|dd MMM yyyy HH:mm:ss|" stamp with multi-byte month names
+    private static final int STAMP_BYTES = 48;
+
+    private final long baseSequence;
+    private final Path logPath;
+    private final Path compressedPath;
+    private final Path indexPath;
+    private final int indexInterval;
+    // null once the log is compressed; reads of it hold the read lock so it is not closed under them
+    private FileChannel channel;
+    private volatile CompressedLog compressed;
+    private final ReentrantReadWriteLock plainLock = new ReentrantReadWriteLock();
+    private FileChannel indexChannel;
+    private final ByteBuffer indexBuffer = ByteBuffer.allocate(Long.BYTES * 64);
+    private volatile long[] indexPositions = new long[16];
+    private volatile int indexCount;
+    private volatile long size;
+    private volatile long entryCount;
+    private int pendingEntries;
+    private int exporters;
+    private boolean closing;
+
+    private JournalSegment(Path directory, long baseSequence, int indexInterval, boolean compressedLog) throws IOException {
+        this.baseSequence = baseSequence;
+        this.logPath = directory.resolve(fileName(baseSequence, LOG_SUFFIX));
+        this.compressedPath = directory.resolve(fileName(baseSequence, CompressedLog.SUFFIX));
+        this.indexPath = directory.resolve(fileName(baseSequence, INDEX_SUFFIX));
+        this.indexInterval = indexInterval;
+        if (compressedLog) {
+            this.compressed = CompressedLog.open(compressedPath);
+        } else {
+            this.channel = FileChannel.open(logPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+    }
+
+    static String fileName(long baseSequence, String suffix) {
+        return String.format("%020d%s", baseSequence, suffix);
+    }
+
+    static JournalSegment create(Path directory, long baseSequence, int indexInterval) throws IOException {
+        JournalSegment segment = new JournalSegment(directory, baseSequence, indexInterval, false);
+        segment.channel.truncate(0);
+        segment.writeIndexFile(true);
+        return segment;
+    }
+
+    /**
+     * Opens an existing segment. The index is trusted up to its last complete entry; anything after it is
+     * rebuilt by scanning the log, and a torn last line from a crash is cut off when the segment is active.
+     * A plain log wins over a compressed one left by a compression that did not get to delete it.
+     */
+    static JournalSegment open(Path directory, long baseSequence, int indexInterval, boolean active) throws IOException {
+        Path compressedPath = directory.resolve(fileName(baseSequence, CompressedLog.SUFFIX));
+        Files.deleteIfExists(temporaryPath(compressedPath));
+        boolean compressedLog = !active && Files.exists(compressedPath)
+                && !Files.exists(directory.resolve(fileName(baseSequence, LOG_SUFFIX)));
+        if (!compressedLog) {
+            Files.deleteIfExists(compressedPath);
+        }
+        JournalSegment segment = new JournalSegment(directory, baseSequence, indexInterval, compressedLog);
+        segment.recover(active);
+        return segment;
+    }
+
+    private static Path temporaryPath(Path path) {
+        return path.resolveSibling(path.getFileName() + ".tmp");
+    }
+
+    private void recover(boolean active) throws IOException {
+        long fileSize = compressed != null ? compressed.getSize() : channel.size();
+        boolean indexValid = loadIndex(fileSize);
+        long scanFrom = 0;
+        long scannedEntries = 0;
+        if (indexValid && indexCount > 0) {
+            scannedEntries = (long) (indexCount - 1) * indexInterval;
+            scanFrom = indexPositions[indexCount - 1];
+        } else {
+            indexCount = 0;
+        }
+
+        long lineStart = scanFrom;
+        long entries = scannedEntries;
+        ByteBuffer chunk = ByteBuffer.allocate(READ_CHUNK);
+        long position = scanFrom;
+        while (position < fileSize) {
+            chunk.clear();
+            int read = readAt(chunk, position);
+            if (read <= 0) {
+                break;
+            }
+            for (int i = 0; i < read; i++) {
+                if (chunk.get(i) == '\n') {
+                    if (entries % indexInterval == 0 && entries / indexInterval >= indexCount) {
+                        addIndexPosition(lineStart);
+                    }
+                    entries++;
+                    lineStart = position + i + 1;
+                }
+            }
+            position += read;
+        }
+        if (lineStart < fileSize && active) {
+            channel.truncate(lineStart);
+        }
+        size = lineStart;
+        entryCount = entries;
+        if (active || !indexValid) {
+            writeIndexFile(active);
+        }
+    }
+
+    private boolean loadIndex(long fileSize) throws IOException {
+        if (!Files.exists(indexPath)) {
+            return false;
+        }
+        byte[] bytes = Files.readAllBytes(indexPath);
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        if (buffer.remaining() < Integer.BYTES || buffer.getInt() != indexInterval) {
+            return false;
+        }
+        while (buffer.remaining() >= Long.BYTES) {
+            long position = buffer.getLong();
+            if (position >= fileSize) {
+                break;
+            }
+            addIndexPosition(position);
+        }
+        return true;
+    }
+
+    /**
+     * Rewrites the index file from memory, leaving it open for appends if the segment is active.
+     */
+    private void writeIndexFile(boolean keepOpen) throws IOException {
+        indexChannel = FileChannel.open(indexPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        indexBuffer.clear();
+        indexBuffer.putInt(indexInterval);
+        for (int i = 0; i < indexCount; i++) {
+            bufferIndexPosition(indexPositions[i]);
+        }
+        flushIndex();
+        if (!keepOpen) {
+            indexChannel.close();
+            indexChannel = null;
+        }
+    }
+
+    private void addIndexPosition(long position) {
+        long[] positions = indexPositions;
+        if (indexCount == positions.length) {
+            positions = Arrays.copyOf(positions, positions.length * 2);
+        }
+        positions[indexCount] = position;
+        indexPositions = positions;
+        indexCount = indexCount + 1;
+    }
+
+    private void bufferIndexPosition(long position) throws IOException {
+        if (indexBuffer.remaining() < Long.BYTES) {
+            flushIndex();
+        }
+        indexBuffer.putLong(position);
+    }
+
+    private void flushIndex() throws IOException {
+        indexBuffer.flip();
+        while (indexBuffer.hasRemaining()) {
+            indexChannel.write(indexBuffer);
+        }
+        indexBuffer.clear();
+    }
+
+    // ---- writer thread ----
+
+    /**
+     * Registers the next entry, which will start at {@code position} once the pending bytes are written.
+     *
+     * @return the entry's sequence number
+     */
+    long markEntry(long position) throws IOException {
+        long entryIndex = entryCount + pendingEntries;
+        if (entryIndex % indexInterval == 0) {
+            addIndexPosition(position);
+            bufferIndexPosition(position);
+        }
+        pendingEntries++;
+        return baseSequence + entryIndex;
+    }
+
+    /**
+     * Appends the buffer and commits every entry marked since the last write.
+     */
+    void write(ByteBuffer buffer) throws IOException {
+        long position = size;
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+        flushIndex();
+        size = position;
+        entryCount = entryCount + pendingEntries;
+        pendingEntries = 0;
+    }
+
+    /**
+     * After a failed {@link #write}: forgets the entries marked since the last good one and cuts off whatever
+     * part of them reached the files, so the segment ends at its last committed entry again.
+     */
+    void discardPending() throws IOException {
+        if (pendingEntries == 0) {
+            return;
+        }
+        pendingEntries = 0;
+        indexCount = (int) ((entryCount + indexInterval - 1) / indexInterval);
+        channel.truncate(size);
+        indexChannel.close();
+        writeIndexFile(true);
+    }
+
+    void force() throws IOException {
+        channel.force(false);
+    }
+
+    /**
+     * Forces the log and stops appending to the index.
+     */
+    void seal() throws IOException {
+        if (channel != null) {
+            channel.force(false);
+        }
+        if (indexChannel != null) {
+            indexChannel.force(false);
+            indexChannel.close();
+            indexChannel = null;
+        }
+    }
+
+    // ---- readers ----
+
+    long getBaseSequence() {
+        return baseSequence;
+    }
+
+    long getEntryCount() {
+        return entryCount;
+    }
+
+    long getSize() {
+        return size;
+    }
+
+    /**
+     * The log file, compressed or not.
+     */
+    Path getLogPath() {
+        return compressed != null ? compressedPath : logPath;
+    }
+
+    boolean isCompressed() {
+        return compressed != null;
+    }
+
+    /**
+     * Bytes the log takes on disk.
+     */
+    long getStoredBytes() {
+        CompressedLog log = compressed;
+        return log != null ? log.getCompressedSize() : size;
+    }
+
+    long lastModifiedMillis() throws IOException {
+        return Files.getLastModifiedTime(getLogPath()).toMillis();
+    }
+
+    /**
+     * Compresses the sealed log into blocks and switches reads over to them, then deletes the plain log. The
+     * compressed file keeps the log's modification time, which retention and time searches go by.
+     *
+     * @param cancelled checked before every block
+     * @return false if cancelled or the segment was closed meanwhile
+     */
+    boolean compress(int blockSize, int level, BooleanSupplier cancelled) throws IOException {
+        Path temporary = temporaryPath(compressedPath);
+        CompressedLog log = null;
+        try {
+            if (CompressedLog.write(channel, size, temporary, blockSize, level, cancelled) < 0) {
+                Files.deleteIfExists(temporary);
+                return false;
+            }
+            Files.setLastModifiedTime(temporary, Files.getLastModifiedTime(logPath));
+            Files.move(temporary, compressedPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            log = CompressedLog.open(compressedPath);
+        } catch (IOException e) {
+            Files.deleteIfExists(temporary);
+            if (isClosing()) {
+                return false;
+            }
+            throw e;
+        }
+        plainLock.writeLock().lock();
+        try {
+            synchronized (this) {
+                if (closing) {
+                    log.close();
+                    Files.deleteIfExists(compressedPath);
+                    return false;
+                }
+                compressed = log;
+            }
+            channel.close();
+            channel = null;
+        } finally {
+            plainLock.writeLock().unlock();
+        }
+        Files.deleteIfExists(logPath);
+        return true;
+    }
+
+    private synchronized boolean isClosing() {
+        return closing;
+    }
+
+    /**
+     * Positional read from the log, compressed or not.
+     */
+    private int readAt(ByteBuffer buffer, long position) throws IOException {
+        CompressedLog log = compressed;
+        if (log != null) {
+            return log.read(buffer, position);
+        }
+        plainLock.readLock().lock();
+        try {
+            log = compressed;
+            return log != null ? log.read(buffer, position) : channel.read(buffer, position);
+        } finally {
+            plainLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Byte position of the entry with the given index inside this segment: one index lookup plus a forward
+     * scan over at most {@code indexInterval} lines.
+     */
+    long positionOf(long entryIndex) throws IOException {
+        long committed = entryCount;
+        if (entryIndex >= committed) {
+            return size;
+        }
+        int slot = (int) Math.min(entryIndex / indexInterval, indexCount - 1);
+        long position = indexPositions[slot];
+        long toSkip = entryIndex - (long) slot * indexInterval;
+        ByteBuffer chunk = ByteBuffer.allocate(READ_CHUNK);
+        long limit = size;
+        while (toSkip > 0 && position < limit) {
+            chunk.clear();
+            int read = readAt(chunk, position);
+            if (read <= 0) {
+                break;
+            }
+            int i = 0;
+            while (i < read && toSkip > 0) {
+                if (chunk.get(i++) == '\n') {
+                    toSkip--;
+                }
+            }
+            position += i;
+        }
+        return position;
+    }
+
+    /**
+     * Reads the lines between two byte positions, at most up to the committed size.
+     */
+    void readLines(long from, long to, Consumer<String> lineConsumer) throws IOException {
+        long limit = Math.min(to, size);
+        ByteBuffer chunk = ByteBuffer.allocate(READ_CHUNK);
+        ByteArrayOutputStream line = new ByteArrayOutputStream(256);
+        long position = from;
+        while (position < limit) {
+            chunk.clear();
+            chunk.limit((int) Math.min(READ_CHUNK, limit - position));
+            int read = readAt(chunk, position);
+            if (read <= 0) {
+                break;
+            }
+            byte[] bytes = chunk.array();
+            int lineStart = 0;
+            for (int i = 0; i < read; i++) {
+                if (bytes[i] == '\n') {
+                    line.write(bytes, lineStart, i - lineStart);
+                    lineConsumer.accept(line.toString(StandardCharsets.UTF_8));
+                    line.reset();
+                    lineStart = i + 1;
+                }
+            }
+            line.write(bytes, lineStart, read - lineStart);
+            position += read;
+        }
+    }
+
+    /**
+     * Adds regions covering {@code [from, to)} to {@code regions}, cut at index points so each holds about
+     * {@code maxBytes} at most. Retains the segment once per region; the export releases each.
+     *
+     * @return false if the segment is already closed
+     */
+    boolean addRegions(long from, long to, long maxBytes, List<HistoryExport.Region> regions) {
+        int first = regions.size();
+        int count = indexCount;
+        long[] positions = indexPositions;
+        int slot = Arrays.binarySearch(positions, 0, count, from);
+        slot = slot >= 0 ? slot + 1 : -slot - 1;
+        long start = from;
+        long previous = from;
+        for (; slot < count && positions[slot] < to; slot++) {
+            if (positions[slot] - start > maxBytes && previous > start) {
+                regions.add(new HistoryExport.Region(this, start, previous));
+                start = previous;
+            }
+            previous = positions[slot];
+        }
+        if (to - start > maxBytes && previous > start) {
+            regions.add(new HistoryExport.Region(this, start, previous));
+            start = previous;
+        }
+        regions.add(new HistoryExport.Region(this, start, to));
+        if (!retain(regions.size() - first)) {
+            regions.subList(first, regions.size()).clear();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Sends log bytes to {@code target}; zero-copy from a plain log, inflated a block at a time from a
+     * compressed one.
+     */
+    long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        CompressedLog log = compressed;
+        if (log != null) {
+            return log.transferTo(position, count, target);
+        }
+        plainLock.readLock().lock();
+        try {
+            log = compressed;
+            return log != null ? log.transferTo(position, count, target) : channel.transferTo(position, count, target);
+        } finally {
+            plainLock.readLock().unlock();
+        }
+    }
+
+    int read(ByteBuffer buffer, long position) throws IOException {
+        return readAt(buffer, position);
+    }
+
+    /**
+     * Index of the first entry stamped at or after {@code epochSecond}, or the number of entries if there is
+     * none: a binary search over the index points, then a forward scan of at most {@code indexInterval} lines.
+     * The last index point is tried first, since a segment searched is most often older than the time
+     * throughout. Lines without a readable stamp count as older.
+     */
+    long firstEntryAtOrAfter(long epochSecond, ZoneId zone) throws IOException {
+        int count = indexCount;
+        long[] positions = indexPositions;
+        long limit = size;
+        ByteBuffer chunk = ByteBuffer.allocate(READ_CHUNK);
+        int older = -1;
+        int low = 0;
+        int high = count - 1;
+        if (count > 1 && olderThan(positions[count - 1], limit, epochSecond, zone, chunk)) {
+            older = count - 1;
+            low = count;
+        }
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (olderThan(positions[middle], limit, epochSecond, zone, chunk)) {
+                older = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        if (older < 0) {
+            return 0;
+        }
+        long entryIndex = (long) older * indexInterval;
+        long position = positions[older];
+        boolean lineStart = true;
+        while (position < limit) {
+            chunk.clear();
+            chunk.limit((int) Math.min(READ_CHUNK, limit - position));
+            int read = readAt(chunk, position);
+            if (read <= 0) {
+                break;
+            }
+            byte[] bytes = chunk.array();
+            int i = 0;
+            while (i < read) {
+                if (lineStart) {
+                    if (read - i < STAMP_BYTES && position + read < limit) {
+                        // read the stamp again from the start of the next chunk
+                        break;
+                    }
+                    if (stampSecond(bytes, i, read - i, zone) >= epochSecond) {
+                        return entryIndex;
+                    }
+                    lineStart = false;
+                }
+                if (bytes[i++] == '\n') {
+                    entryIndex++;
+                    lineStart = true;
+                }
+            }
+            position += i;
+        }
+        return entryIndex;
+    }
+
+    private boolean olderThan(long position, long limit, long epochSecond, ZoneId zone, ByteBuffer chunk) throws IOException {
+        chunk.clear();
+        chunk.limit(STAMP_BYTES);
+        int read = position < limit ? readAt(chunk, position) : -1;
+        return read > 0 && stampSecond(chunk.array(), 0, read, zone) < epochSecond;
+    }
+
+    /**
+     * Epoch second of the {@code |dd MMM yyyy HH:mm:ss|} stamp at {@code offset}, or {@link Long#MIN_VALUE}.
+     */
+    private static long stampSecond(byte[] bytes, int offset, int length, ZoneId zone) {
+        if (length < 2 || bytes[offset] != '|') {
+            return Long.MIN_VALUE;
+        }
+        int end = Math.min(offset + length, offset + STAMP_BYTES);
+        for (int i = offset + 1; i < end; i++) {
+            if (bytes[i] == '|') {
+                try {
+                    String stamp = new String(bytes, offset + 1, i - offset - 1, StandardCharsets.UTF_8);
+                    return LocalDateTime.parse(stamp, TimestampCache.FORMAT).atZone(zone).toEpochSecond();
+                } catch (DateTimeParseException e) {
+                    return Long.MIN_VALUE;
+                }
+            }
+        }
+        return Long.MIN_VALUE;
+    }
+
+    private synchronized boolean retain(int regions) {
+        if (closing) {
+            return false;
+        }
+        exporters += regions;
+        return true;
+    }
+
+    synchronized void release() {
+        if (--exporters == 0 && closing) {
+            closeChannel();
+        }
+    }
+
+    void delete() throws IOException {
+        close();
+        Files.deleteIfExists(logPath);
+        Files.deleteIfExists(compressedPath);
+        Files.deleteIfExists(indexPath);
+    }
+
+    /**
+     * Closes the files, or leaves the log open for exports still sending it until they release it; a deleted
+     * log stays readable through the open channel meanwhile.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (indexChannel != null) {
+            indexChannel.close();
+            indexChannel = null;
+        }
+        closing = true;
+        if (exporters == 0) {
+            closeChannel();
+        }
+    }
+
+    private void closeChannel() {
+        try {
+            CompressedLog log = compressed;
+            if (log != null) {
+                log.close();
+            }
+            FileChannel plain = channel;
+            if (plain != null) {
+                plain.close();
+            }
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package Server;
+
+/**
+ * Tuning for a {@link MessageJournal}, read from the server configuration.
+ */
+public class JournalSettings {
+
+    final DurabilityMode durability;
+    final int batchSize;
+    final long flushIntervalMillis;
+    final long segmentBytes;
+    final int indexInterval;
+    final long retentionBytes;
+    final long retentionMillis;
+    final int compressBlockBytes;
+    final int compressLevel;
+    final int cacheSize;
+    final boolean searchIndex;
+    final boolean searchWords;
+
+    public JournalSettings(ServerConfig config) {
+        this.durability = config.getEnum("journalDurability", DurabilityMode.class, DurabilityMode.BATCH);
+        this.batchSize = config.getInt("journalBatchSize", 256);
+        this.flushIntervalMillis = config.getLong("journalFlushMillis", 50);
+        this.segmentBytes = config.getLong("journalSegmentBytes", 64L * 1024 * 1024);
+        this.indexInterval = config.getInt("journalIndexInterval", 64);
+        this.retentionBytes = config.getLong("journalRetentionBytes", 0);
+        this.retentionMillis = config.getLong("journalRetentionHours", 0) * 60 * 60 * 1000;
+        this.compressBlockBytes = config.getInt("journalCompressBlockBytes", 32 * 1024);
+        this.compressLevel = Math.max(1, Math.min(9, config.getInt("journalCompressLevel", 6)));
+        this.cacheSize = Math.max(config.getInt("historyCacheSize", 1024), config.getInt("replayDepth", 10));
+        this.searchIndex = config.getBoolean("searchIndex", true);
+        this.searchWords = config.getBoolean("searchWords", true);
+    }
+
+    private JournalSettings(JournalSettings base, int cacheSize, boolean searchIndex) {
+        this.durability = base.durability;
+        this.batchSize = base.batchSize;
+        this.flushIntervalMillis = base.flushIntervalMillis;
+        this.segmentBytes = base.segmentBytes;
+        this.indexInterval = base.indexInterval;
+        this.retentionBytes = base.retentionBytes;
+        this.retentionMillis = base.retentionMillis;
+        this.compressBlockBytes = base.compressBlockBytes;
+        this.compressLevel = base.compressLevel;
+        this.cacheSize = cacheSize;
+        this.searchIndex = searchIndex;
+        this.searchWords = base.searchWords;
+    }
+
+    public JournalSettings withCacheSize(int cacheSize) {
+        return new JournalSettings(this, cacheSize, searchIndex);
+    }
+
+    /**
+     * The same settings for a journal nobody searches, such as a channel's.
+     */
+    public JournalSettings withoutSearchIndex() {
+        return new JournalSettings(this, cacheSize, false);
+    }
+}
@@ -0,0 +1,140 @@
+package Server;
+
+import utils.LatencyHistogram;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * One background thread writing for any number of {@link MessageJournal}s, so a journal per channel costs
+ * a queue and some files rather than a thread.
+ * <p>
+ * A journal puts itself on the ready queue when its first pending entry arrives and is written in batches
+ * until its queue is empty. Journals left with unforced writes in {@link DurabilityMode#BATCH} are forced
+ * once their flush interval has passed. A journal whose last write failed is queued again once per flush
+ * interval until a write goes through.
+ */
+public class JournalWriter implements Closeable {
+
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+    private final ConcurrentLinkedQueue<MessageJournal> ready = new ConcurrentLinkedQueue<>();
+    private final List<MessageJournal> unforced = new ArrayList<>();
+    private final List<MessageJournal> failed = new ArrayList<>();
+    private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+    private final TimestampCache timestamps = new TimestampCache();
+    private final long flushIntervalNanos;
+    private final LatencyHistogram appendLatency;
+    /** Set by {@link #start} before the writer is handed out. */
+    private Thread thread;
+    private volatile boolean running = true;
+    private long lastSweepNanos = System.nanoTime();
+    private long lastRetryNanos = System.nanoTime();
+
+    private JournalWriter(JournalSettings settings, LatencyHistogram appendLatency) {
+        this.appendLatency = appendLatency;
+        this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(settings.flushIntervalMillis);
+    }
+
+    public static JournalWriter start(JournalSettings settings) {
+        return start(settings, null);
+    }
+
+    /**
+     * Creates a writer and starts its thread.
+     *
+     * @param appendLatency records how long each entry waited between its append and its write, or null
+     */
+    public static JournalWriter start(JournalSettings settings, LatencyHistogram appendLatency) {
+        JournalWriter writer = new JournalWriter(settings, appendLatency);
+        writer.thread = Thread.ofPlatform().name("journal-writer").daemon().start(writer::writeLoop);
+        return writer;
+    }
+
+    /**
+     * Queues a journal that has entries to write. Each journal is queued at most once at a time.
+     */
+    void schedule(MessageJournal journal) {
+        ready.offer(journal);
+        LockSupport.unpark(thread);
+    }
+
+    LatencyHistogram getAppendLatency() {
+        return appendLatency;
+    }
+
+    void wakeUp() {
+        LockSupport.unpark(thread);
+    }
+
+    boolean isAlive() {
+        return thread.isAlive();
+    }
+
+    private void writeLoop() {
+        while (running || !ready.isEmpty()) {
+            MessageJournal journal = ready.poll();
+            if (journal != null) {
+                if (journal.drain(writeBuffer, timestamps) && !journal.awaitingForce) {
+                    journal.awaitingForce = true;
+                    unforced.add(journal);
+                }
+                if (journal.hasFailedWrite() && !journal.awaitingRetry) {
+                    journal.awaitingRetry = true;
+                    failed.add(journal);
+                }
+            }
+            if (journal == null || System.nanoTime() - lastSweepNanos >= flushIntervalNanos) {
+                forceDue(false);
+                lastSweepNanos = System.nanoTime();
+            }
+            if (running && !failed.isEmpty() && System.nanoTime() - lastRetryNanos >= flushIntervalNanos) {
+                retryFailed();
+                lastRetryNanos = System.nanoTime();
+            }
+            if (journal == null && running) {
+                LockSupport.parkNanos(this, flushIntervalNanos);
+            }
+        }
+        forceDue(true);
+    }
+
+    private void forceDue(boolean all) {
+        Iterator<MessageJournal> iterator = unforced.iterator();
+        while (iterator.hasNext()) {
+            MessageJournal journal = iterator.next();
+            if (!journal.forceIfDue(all)) {
+                journal.awaitingForce = false;
+                iterator.remove();
+            }
+        }
+    }
+
+    private void retryFailed() {
+        for (MessageJournal journal : failed) {
+            journal.awaitingRetry = false;
+            journal.retryWrite();
+        }
+        failed.clear();
+    }
+
+    /**
+     * Writes and forces everything still queued, then stops the thread.
+     */
+    @Override
+    public void close() {
+        running = false;
+        LockSupport.unpark(thread);
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
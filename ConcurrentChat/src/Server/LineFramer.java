@@ -0,0 +1,81 @@
+package Server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Consumer;
+
+/**
+ * Splits a byte stream into UTF-8 lines. Only the bytes of an unfinished line are kept between
+ * reads, so an idle connection holds no buffer at all.
+ */
+public class LineFramer {
+
+    private final int maxLineLength;
+    private byte[] pending;
+    private int pendingLength;
+
+    public LineFramer(int maxLineLength) {
+        this.maxLineLength = maxLineLength;
+    }
+
+    /**
+     * Feeds the readable bytes of {@code buffer} and hands every completed line to {@code lineConsumer}.
+     *
+     * @return false if a line grew beyond the maximum length
+     */
+    public boolean feed(ByteBuffer buffer, Consumer<String> lineConsumer) {
+        while (buffer.hasRemaining()) {
+            int start = buffer.position();
+            int end = indexOfNewline(buffer, start, buffer.limit());
+            if (end == -1) {
+                return append(buffer, start, buffer.limit());
+            }
+            if (!append(buffer, start, end)) {
+                return false;
+            }
+            buffer.position(end + 1);
+            lineConsumer.accept(takeLine());
+        }
+        return true;
+    }
+
+    private static int indexOfNewline(ByteBuffer buffer, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (buffer.get(i) == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private boolean append(ByteBuffer buffer, int from, int to) {
+        int length = to - from;
+        if (pendingLength + length > maxLineLength) {
+            pending = null;
+            pendingLength = 0;
+            return false;
+        }
+        if (pending == null) {
+            pending = new byte[Math.max(128, length)];
+        } else if (pending.length < pendingLength + length) {
+            byte[] grown = new byte[Math.min(maxLineLength, Math.max(pending.length * 2, pendingLength + length))];
+            System.arraycopy(pending, 0, grown, 0, pendingLength);
+            pending = grown;
+        }
+        buffer.get(from, pending, pendingLength, length);
+        pendingLength += length;
+        buffer.position(to);
+        return true;
+    }
+
+    private String takeLine() {
+        int length = pendingLength;
+        if (length > 0 && pending[length - 1] == '\r') {
+            length--;
+        }
+        String line = length == 0 ? "" : new String(pending, 0, length, StandardCharsets.UTF_8);
+        pending = null;
+        pendingLength = 0;
+        return line;
+    }
+}
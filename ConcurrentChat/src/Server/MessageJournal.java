@@ -0,0 +1,913 @@
+package Server;
+
+import utils.ConsoleColor;
+import utils.LatencyHistogram;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * Chat history in the {@code |dd MMM yyyy HH:mm:ss| name: message} format, stored as rolling
+ * {@link JournalSegment}s in one directory. Every entry has a sequence number: its position in the
+ * history since the journal was first created.
+ * <p>
+ * {@link #append} only puts the entry on a lock-free queue. A {@link JournalWriter} thread, which may be shared
+ * by many journals, drains the queue in batches into the active segment and forces it to disk according to
+ * the {@link DurabilityMode}. Segments
+ * roll at {@code segmentBytes}; sealed segments are deleted once the history exceeds the retention size or
+ * they exceed the retention age.
+ * <p>
+ * Sealed segments are compressed into {@link CompressedLog} blocks by a background thread, oldest first.
+ * Readers go on reading them by entry, inflating only the blocks they touch.
+ */
+public class MessageJournal implements Closeable {
+
+    static final byte[] HISTORY_PREFIX = ConsoleColor.CHAT_HISTORY.getCode().getBytes(StandardCharsets.UTF_8);
+    static final byte[] HISTORY_SUFFIX = (ConsoleColor.DEFAULT.getCode() + "\n").getBytes(StandardCharsets.UTF_8);
+
+    private final Path directory;
+    private final DurabilityMode durability;
+    private final int batchSize;
+    private final long flushIntervalNanos;
+    private final long segmentBytes;
+    private final int indexInterval;
+    private final long retentionBytes;
+    private final long retentionMillis;
+    private final int compressBlockBytes;
+    private final int compressLevel;
+    private final Logger logger;
+    private final ConcurrentLinkedQueue<Entry> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicLong appended = new AtomicLong();
+    /** Set by {@link #open} before the journal is handed out. */
+    private long appendBase;
+    /** Writer thread: entries taken off the queue ahead of an earlier sequence still on its way. */
+    private final PriorityQueue<Entry> held = new PriorityQueue<>(Comparator.comparingLong((Entry entry) -> entry.sequence));
+    /** Writer thread: entries marked in the active segment but not yet written. */
+    private final List<Entry> unwritten = new ArrayList<>();
+    /** Writer thread: sequence of the next entry to write. */
+    private long nextWrite;
+    private boolean writeFailed;
+    boolean awaitingRetry;
+    private final ReentrantLock fileLock = new ReentrantLock();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final AtomicBoolean compressing = new AtomicBoolean();
+    private volatile Thread compressor;
+    private final ConcurrentSkipListMap<Long, JournalSegment> segments = new ConcurrentSkipListMap<>();
+    private final RecentMessageCache recentCache;
+    private final HistorySearch search;
+    private final JournalWriter writer;
+    private final boolean ownsWriter;
+    private JournalSegment active;
+    private volatile long written;
+    private volatile boolean closed;
+    private int unforced;
+    boolean awaitingForce;
+    private long lastForceNanos = System.nanoTime();
+
+    private MessageJournal(Path directory, JournalSettings settings, JournalWriter writer, boolean ownsWriter, Logger logger) {
+        this.directory = directory;
+        this.durability = settings.durability;
+        this.batchSize = settings.batchSize;
+        this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(settings.flushIntervalMillis);
+        this.segmentBytes = settings.segmentBytes;
+        this.indexInterval = settings.indexInterval;
+        this.retentionBytes = settings.retentionBytes;
+        this.retentionMillis = settings.retentionMillis;
+        this.compressBlockBytes = settings.compressBlockBytes;
+        this.compressLevel = settings.compressLevel;
+        this.logger = logger;
+        this.writer = writer;
+        this.ownsWriter = ownsWriter;
+        this.recentCache = new RecentMessageCache(settings.cacheSize);
+        this.search = settings.searchIndex ? new HistorySearch(directory, settings.searchWords, logger) : null;
+    }
+
+    /**
+     * Opens the journal in {@code directory}, creating it if needed, with a writer thread of its own.
+     */
+    public static MessageJournal open(Path directory, JournalSettings settings, Logger logger) throws IOException {
+        JournalWriter writer = JournalWriter.start(settings);
+        try {
+            return open(directory, settings, writer, true, logger);
+        } catch (IOException | RuntimeException e) {
+            writer.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens the journal in {@code directory}, creating it if needed, written by a shared {@code writer}.
+     */
+    public static MessageJournal open(Path directory, JournalSettings settings, JournalWriter writer, Logger logger) throws IOException {
+        return open(directory, settings, writer, false, logger);
+    }
+
+    private static MessageJournal open(Path directory, JournalSettings settings, JournalWriter writer, boolean ownsWriter, Logger logger) throws IOException {
+        Files.createDirectories(directory);
+        MessageJournal journal = new MessageJournal(directory, settings, writer, ownsWriter, logger);
+        journal.openSegments();
+        if (journal.search != null) {
+            journal.search.open(journal.segments.values());
+        }
+        journal.enforceRetention();
+        journal.warmCache();
+        journal.appendBase = journal.getNextSequence();
+        journal.nextWrite = journal.appendBase;
+        journal.compressSealed();
+        return journal;
+    }
+
+    /**
+     * Moves a single-file history from before segments into the directory as its first segment.
+     */
+    public static void migrateLegacyFile(Path legacyFile, Path directory) throws IOException {
+        if (!Files.isRegularFile(legacyFile)) {
+            return;
+        }
+        Files.createDirectories(directory);
+        try (Stream<Path> existing = Files.list(directory)) {
+            if (existing.anyMatch(path -> path.getFileName().toString().endsWith(JournalSegment.LOG_SUFFIX)
+                    || path.getFileName().toString().endsWith(CompressedLog.SUFFIX))) {
+                return;
+            }
+        }
+        Files.move(legacyFile, directory.resolve(JournalSegment.fileName(0, JournalSegment.LOG_SUFFIX)));
+    }
+
+    private void openSegments() throws IOException {
+        TreeSet<Long> baseSequences = new TreeSet<>();
+        try (Stream<Path> files = Files.list(directory)) {
+            files.map(path -> path.getFileName().toString())
+                    .forEach(name -> {
+                        String suffix = name.endsWith(JournalSegment.LOG_SUFFIX) ? JournalSegment.LOG_SUFFIX
+                                : name.endsWith(CompressedLog.SUFFIX) ? CompressedLog.SUFFIX : null;
+                        if (suffix == null) {
+                            return;
+                        }
+                        try {
+                            baseSequences.add(Long.parseLong(name.substring(0, name.length() - suffix.length())));
+                        } catch (NumberFormatException ignored) {
+                        }
+                    });
+        }
+        for (long baseSequence : baseSequences) {
+            // a compressed newest segment is opened as sealed, and a new one created after it
+            boolean last = baseSequence == baseSequences.last()
+                    && Files.exists(directory.resolve(JournalSegment.fileName(baseSequence, JournalSegment.LOG_SUFFIX)));
+            segments.put(baseSequence, JournalSegment.open(directory, baseSequence, indexInterval, last));
+        }
+        if (segments.isEmpty()) {
+            segments.put(0L, JournalSegment.create(directory, 0, indexInterval));
+        }
+        JournalSegment last = segments.lastEntry().getValue();
+        if (last.isCompressed()) {
+            long nextBase = last.getBaseSequence() + last.getEntryCount();
+            segments.put(nextBase, JournalSegment.create(directory, nextBase, indexInterval));
+        }
+        active = segments.lastEntry().getValue();
+    }
+
+    /**
+     * Loads the newest entries from disk so the first joins after a restart are already served from memory.
+     */
+    private void warmCache() {
+        long next = getNextSequence();
+        long from = Math.max(getFirstSequence(), next - recentCache.getCapacity());
+        recentCache.reset(from);
+        long[] sequence = {from};
+        readFrom(from, next - from, line -> recentCache.add(sequence[0]++, (line + "\n").getBytes(StandardCharsets.UTF_8)));
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    public RecentMessageCache getRecentCache() {
+        return recentCache;
+    }
+
+    /**
+     * Queues an entry stamped with the current time. Never waits for the writer or for other appenders: the
+     * entry takes its sequence number from a counter, and the writer puts entries that reach the queue out of
+     * order back in sequence order. Line breaks in {@code message} are written as spaces, since the segments
+     * count one entry per line.
+     *
+     * @return the entry's sequence number
+     */
+    public long append(String message) {
+        if (message.indexOf('\n') >= 0 || message.indexOf('\r') >= 0) {
+            message = message.replace('\n', ' ').replace('\r', ' ');
+        }
+        long sequence = appendBase + appended.getAndIncrement();
+        pending.offer(new Entry(sequence, System.currentTimeMillis(), System.nanoTime(), message));
+        if (scheduled.compareAndSet(false, true)) {
+            writer.schedule(this);
+        }
+        return sequence;
+    }
+
+    /**
+     * Sequence number the next appended entry will get. Entries below it may still be queued.
+     */
+    public long getAppendSequence() {
+        return appendBase + appended.get();
+    }
+
+    /**
+     * Waits until everything appended so far is written, then forces it to disk whatever the durability mode.
+     */
+    public void flush() throws IOException {
+        awaitWritten();
+        fileLock.lock();
+        try {
+            if (!closed) {
+                active.force();
+            }
+        } finally {
+            fileLock.unlock();
+        }
+    }
+
+    private void awaitWritten() {
+        awaitWritten(appended.get(), Long.MAX_VALUE);
+    }
+
+    private void awaitWritten(long target, long timeoutNanos) {
+        long start = System.nanoTime();
+        while (written < target && !closed && writer.isAlive() && System.nanoTime() - start < timeoutNanos) {
+            writer.wakeUp();
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+    }
+
+    public long getAppendedCount() {
+        return appended.get();
+    }
+
+    public long getWrittenCount() {
+        return written;
+    }
+
+    /**
+     * Writer thread: writes one batch, forces it if the durability mode asks for that now, and queues the
+     * journal again if more entries arrived meanwhile. After a failed write the entries it held are kept for
+     * {@link #retryWrite}.
+     *
+     * @return true if written entries are still waiting for a batch force
+     */
+    boolean drain(ByteBuffer writeBuffer, TimestampCache timestamps) {
+        try {
+            writeBatch(writeBuffer, timestamps);
+            if (writeFailed) {
+                writeFailed = false;
+                logger.log(Level.INFO, "History writes resumed in {0}", directory);
+            }
+            if (durability == DurabilityMode.BATCH && unforced >= batchSize) {
+                force();
+            }
+        } catch (IOException e) {
+            if (!writeFailed) {
+                logger.log(Level.SEVERE, "UNABLE TO LOG MESSAGE {0}", e.getMessage());
+            }
+            writeFailed = true;
+        }
+        scheduled.set(false);
+        if (!pending.isEmpty() && scheduled.compareAndSet(false, true)) {
+            writer.schedule(this);
+        }
+        return durability == DurabilityMode.BATCH && unforced > 0;
+    }
+
+    boolean hasFailedWrite() {
+        return writeFailed;
+    }
+
+    /**
+     * Writer thread: queues the journal again to retry the entries a failed write left behind.
+     */
+    void retryWrite() {
+        if (scheduled.compareAndSet(false, true)) {
+            writer.schedule(this);
+        }
+    }
+
+    /**
+     * Writer thread: forces pending batch writes once the flush interval has passed, or right away if {@code now}.
+     *
+     * @return true if writes are still waiting to be forced
+     */
+    boolean forceIfDue(boolean now) {
+        if (unforced == 0) {
+            return false;
+        }
+        if (!now && System.nanoTime() - lastForceNanos < flushIntervalNanos) {
+            return true;
+        }
+        try {
+            force();
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "UNABLE TO FORCE HISTORY {0}", e.getMessage());
+            unforced = 0;
+        }
+        return false;
+    }
+
+    /**
+     * Writes up to {@code batchSize} queued entries in sequence order with as few write calls as the buffer
+     * allows, stopping early at a sequence not queued yet.
+     * <p>
+     * Entries reach the cache, the search index and the written count only once their bytes are written. If
+     * a write fails, the segment drops what it had marked since its last good write and the entries go back
+     * to {@link #held}, so nothing in memory runs ahead of the disk and the retry writes the same sequences.
+     */
+    private void writeBatch(ByteBuffer writeBuffer, TimestampCache timestamps) throws IOException {
+        int count = 0;
+        fileLock.lock();
+        try {
+            if (closed) {
+                pending.clear();
+                held.clear();
+                return;
+            }
+            LatencyHistogram appendLatency = writer.getAppendLatency();
+            Entry entry = null;
+            try {
+                while (count < batchSize && (entry = nextInOrder()) != null) {
+                    count++;
+                    if (appendLatency != null && entry.line == null) {
+                        appendLatency.record(System.nanoTime() - entry.queuedNanos);
+                    }
+                    if (entry.line == null) {
+                        entry.line = ("|" + timestamps.format(entry.timestamp) + "| " + entry.message + "\n").getBytes(StandardCharsets.UTF_8);
+                    }
+                    byte[] line = entry.line;
+                    if (active.getSize() + writeBuffer.position() + line.length > segmentBytes
+                            && active.getSize() + writeBuffer.position() > 0) {
+                        writeBuffered(writeBuffer);
+                        roll();
+                    }
+                    if (line.length > writeBuffer.remaining()) {
+                        writeBuffered(writeBuffer);
+                    }
+                    active.markEntry(active.getSize() + writeBuffer.position());
+                    unwritten.add(entry);
+                    entry = null;
+                    if (line.length > writeBuffer.capacity()) {
+                        active.write(ByteBuffer.wrap(line));
+                        commitWritten();
+                    } else {
+                        writeBuffer.put(line);
+                    }
+                    if (durability == DurabilityMode.MESSAGE) {
+                        writeBuffered(writeBuffer);
+                        active.force();
+                    }
+                }
+                writeBuffered(writeBuffer);
+            } catch (IOException e) {
+                writeBuffer.clear();
+                try {
+                    active.discardPending();
+                } catch (IOException discardFailure) {
+                    e.addSuppressed(discardFailure);
+                }
+                if (entry != null) {
+                    unwritten.add(entry);
+                }
+                if (!unwritten.isEmpty()) {
+                    nextWrite = unwritten.get(0).sequence;
+                    held.addAll(unwritten);
+                    unwritten.clear();
+                }
+                throw e;
+            }
+        } finally {
+            fileLock.unlock();
+        }
+    }
+
+    /**
+     * The entry with sequence {@link #nextWrite} if it has been queued, moving the entries polled on the way
+     * to {@link #held}; null while it has not.
+     */
+    private Entry nextInOrder() {
+        Entry entry = held.peek();
+        if (entry != null && entry.sequence == nextWrite) {
+            nextWrite++;
+            return held.poll();
+        }
+        while ((entry = pending.poll()) != null) {
+            if (entry.sequence == nextWrite) {
+                nextWrite++;
+                return entry;
+            }
+            held.offer(entry);
+        }
+        return null;
+    }
+
+    private void writeBuffered(ByteBuffer writeBuffer) throws IOException {
+        writeBuffer.flip();
+        active.write(writeBuffer);
+        writeBuffer.clear();
+        commitWritten();
+    }
+
+    /**
+     * Publishes the entries the last write committed.
+     */
+    private void commitWritten() {
+        for (Entry entry : unwritten) {
+            recentCache.add(entry.sequence, entry.line);
+            if (search != null) {
+                search.add(entry.timestamp, entry.message);
+            }
+        }
+        unforced += unwritten.size();
+        written += unwritten.size();
+        unwritten.clear();
+    }
+
+    /**
+     * Creates the next segment before sealing the full one, so that if creating it fails the full one is
+     * still the active segment and the batch is retried there.
+     */
+    private void roll() throws IOException {
+        long nextBase = active.getBaseSequence() + active.getEntryCount();
+        JournalSegment next = JournalSegment.create(directory, nextBase, indexInterval);
+        JournalSegment full = active;
+        active = next;
+        segments.put(nextBase, next);
+        if (search != null) {
+            search.roll(nextBase);
+        }
+        full.seal();
+        enforceRetention();
+        compressSealed();
+    }
+
+    /**
+     * Starts compressing the sealed segments still stored plain, unless that is off or already under way.
+     */
+    private void compressSealed() {
+        if (compressBlockBytes <= 0 || closed || !compressing.compareAndSet(false, true)) {
+            return;
+        }
+        compressor = Thread.ofPlatform().name("journal-compress").daemon().start(() -> {
+            boolean failed = false;
+            try {
+                JournalSegment segment;
+                while (!closed && !failed && (segment = nextUncompressed()) != null) {
+                    failed = !compress(segment);
+                }
+            } finally {
+                compressing.set(false);
+            }
+            // a roll may have come between the last check and the flag being cleared
+            if (!failed && !closed && nextUncompressed() != null) {
+                compressSealed();
+            }
+        });
+    }
+
+    private JournalSegment nextUncompressed() {
+        Map.Entry<Long, JournalSegment> newest = segments.lastEntry();
+        for (JournalSegment segment : segments.headMap(newest.getKey()).values()) {
+            if (!segment.isCompressed() && segment.getSize() > 0) {
+                return segment;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return false if compressing failed or was cut short, so the rest waits for the next roll
+     */
+    private boolean compress(JournalSegment segment) {
+        long start = System.nanoTime();
+        try {
+            if (!segment.compress(compressBlockBytes, compressLevel, () -> closed)) {
+                // deleted meanwhile by retention or a clear, or the journal is closing
+                return segments.get(segment.getBaseSequence()) != segment;
+            }
+            logger.log(Level.INFO, () -> String.format("Compressed history segment %s: %,d to %,d bytes (%.1fx) in %d ms",
+                    segment.getLogPath().getFileName(), segment.getSize(), segment.getStoredBytes(),
+                    (double) segment.getSize() / segment.getStoredBytes(),
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+            return true;
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Unable to compress history segment {0}: {1}", new Object[]{segment.getLogPath(), e.getMessage()});
+            return false;
+        }
+    }
+
+    /**
+     * Deletes the oldest sealed segments while the history is over the size limit or they are over the age limit.
+     */
+    private void enforceRetention() {
+        long now = System.currentTimeMillis();
+        long totalBytes = 0;
+        for (JournalSegment segment : segments.values()) {
+            totalBytes += segment.getStoredBytes();
+        }
+        for (JournalSegment segment : segments.values()) {
+            if (segment == active) {
+                break;
+            }
+            try {
+                boolean tooBig = retentionBytes > 0 && totalBytes > retentionBytes;
+                boolean tooOld = retentionMillis > 0 && now - segment.lastModifiedMillis() > retentionMillis;
+                if (!tooBig && !tooOld) {
+                    break;
+                }
+                segments.remove(segment.getBaseSequence());
+                totalBytes -= segment.getStoredBytes();
+                segment.delete();
+                if (search != null) {
+                    search.remove(segment.getBaseSequence());
+                }
+                logger.log(Level.INFO, "Deleted history segment {0}", segment.getLogPath().getFileName());
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Unable to delete history segment {0}: {1}", new Object[]{segment.getLogPath(), e.getMessage()});
+            }
+        }
+    }
+
+    private void force() throws IOException {
+        fileLock.lock();
+        try {
+            if (!closed) {
+                active.force();
+            }
+        } finally {
+            fileLock.unlock();
+        }
+        unforced = 0;
+        lastForceNanos = System.nanoTime();
+    }
+
+    /**
+     * Sequence number the next written entry will get.
+     */
+    public long getNextSequence() {
+        JournalSegment last = segments.lastEntry().getValue();
+        return last.getBaseSequence() + last.getEntryCount();
+    }
+
+    /**
+     * Sequence number of the oldest entry still retained.
+     */
+    public long getFirstSequence() {
+        return segments.firstKey();
+    }
+
+    /**
+     * Streams up to {@code maxEntries} lines starting at sequence {@code fromSequence}, clamped to what is retained.
+     */
+    public void readFrom(long fromSequence, long maxEntries, Consumer<String> lineConsumer) {
+        long remaining = maxEntries;
+        Long startKey = segments.floorKey(Math.max(fromSequence, getFirstSequence()));
+        if (startKey == null) {
+            return;
+        }
+        for (JournalSegment segment : segments.tailMap(startKey, true).values()) {
+            if (remaining <= 0) {
+                break;
+            }
+            try {
+                long entryIndex = Math.max(0, fromSequence - segment.getBaseSequence());
+                long available = segment.getEntryCount() - entryIndex;
+                if (available <= 0) {
+                    continue;
+                }
+                long take = Math.min(available, remaining);
+                long from = segment.positionOf(entryIndex);
+                long to = segment.positionOf(entryIndex + take);
+                segment.readLines(from, to, lineConsumer);
+                remaining -= take;
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Unable to read history segment {0}: {1}", new Object[]{segment.getLogPath(), e.getMessage()});
+            }
+        }
+    }
+
+    /**
+     * Captures entries {@code fromSequence} up to but excluding {@code toSequence}, clamped to what is
+     * retained and committed, as file regions to send with {@link HistoryExport}. Reads at most the index and
+     * a few lines per segment; never takes the file lock, so appends go on meanwhile.
+     */
+    public HistoryExport export(long fromSequence, long toSequence) {
+        List<HistoryExport.Region> regions = new ArrayList<>();
+        long entries = 0;
+        Long startKey = segments.floorKey(Math.max(fromSequence, getFirstSequence()));
+        if (startKey != null) {
+            for (JournalSegment segment : segments.tailMap(startKey, true).values()) {
+                long base = segment.getBaseSequence();
+                if (base >= toSequence) {
+                    break;
+                }
+                try {
+                    long fromIndex = Math.max(0, fromSequence - base);
+                    long toIndex = Math.min(segment.getEntryCount(), toSequence - base);
+                    if (fromIndex >= toIndex) {
+                        continue;
+                    }
+                    long from = segment.positionOf(fromIndex);
+                    long to = segment.positionOf(toIndex);
+                    if (from < to && segment.addRegions(from, to, HistoryExport.MAX_REGION_BYTES, regions)) {
+                        entries += toIndex - fromIndex;
+                    }
+                } catch (IOException e) {
+                    logger.log(Level.WARNING, "Unable to read history segment {0}: {1}", new Object[]{segment.getLogPath(), e.getMessage()});
+                }
+            }
+        }
+        return new HistoryExport(regions, entries);
+    }
+
+    public HistoryExport exportAll() {
+        return export(getFirstSequence(), Long.MAX_VALUE);
+    }
+
+    public HistoryExport exportLast(long numEntries) {
+        long next = getNextSequence();
+        return export(Math.max(getFirstSequence(), next - numEntries), next);
+    }
+
+    public HistoryExport exportSince(long epochMillis) {
+        return export(sequenceAt(epochMillis), Long.MAX_VALUE);
+    }
+
+    /**
+     * Sequence number of the first entry stamped at or after {@code epochMillis}, to the second, or
+     * {@link #getNextSequence()} if there is none. Sealed segments last modified before then are skipped
+     * without reading them; the rest are searched through their index.
+     */
+    public long sequenceAt(long epochMillis) {
+        long epochSecond = Math.floorDiv(epochMillis, 1000);
+        ZoneId zone = ZoneId.systemDefault();
+        JournalSegment last = segments.lastEntry().getValue();
+        for (JournalSegment segment : segments.values()) {
+            try {
+                if (segment != last && segment.lastModifiedMillis() < epochSecond * 1000) {
+                    continue;
+                }
+                long entryIndex = segment.firstEntryAtOrAfter(epochSecond, zone);
+                if (entryIndex < segment.getEntryCount()) {
+                    return segment.getBaseSequence() + entryIndex;
+                }
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Unable to search history segment {0}: {1}", new Object[]{segment.getLogPath(), e.getMessage()});
+            }
+        }
+        return getNextSequence();
+    }
+
+    public boolean isSearchable() {
+        return search != null;
+    }
+
+    /**
+     * Sequence numbers of the newest entries matching {@code query}, ascending; empty if this journal has no
+     * search index.
+     */
+    public long[] search(SearchQuery query) {
+        return search != null ? search.search(query, segments) : new long[0];
+    }
+
+    /**
+     * Rough heap footprint of the search index.
+     */
+    public long searchIndexBytes() {
+        return search != null ? search.memoryBytes() : 0;
+    }
+
+    /**
+     * Captures the given entries, ascending sequence numbers, for sending; consecutive ones share a region.
+     * Entries not retained or not yet written are left out.
+     */
+    public HistoryExport exportEntries(long[] sequences) {
+        List<HistoryExport.Region> regions = new ArrayList<>();
+        long entries = 0;
+        int i = 0;
+        while (i < sequences.length) {
+            Map.Entry<Long, JournalSegment> floor = segments.floorEntry(sequences[i]);
+            if (floor == null) {
+                i++;
+                continue;
+            }
+            JournalSegment segment = floor.getValue();
+            long end = segment.getBaseSequence() + segment.getEntryCount();
+            int runEnd = i;
+            while (runEnd < sequences.length && sequences[runEnd] < end
+                    && (runEnd == i || sequences[runEnd] == sequences[runEnd - 1] + 1)) {
+                runEnd++;
+            }
+            if (runEnd == i) {
+                i++;
+                continue;
+            }
+            try {
+                long from = segment.positionOf(sequences[i] - segment.getBaseSequence());
+                long to = segment.positionOf(sequences[runEnd - 1] + 1 - segment.getBaseSequence());
+                if (from < to && segment.addRegions(from, to, HistoryExport.MAX_REGION_BYTES, regions)) {
+                    entries += runEnd - i;
+                }
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Unable to read history segment {0}: {1}", new Object[]{segment.getLogPath(), e.getMessage()});
+            }
+            i = runEnd;
+        }
+        return new HistoryExport(regions, entries);
+    }
+
+    public String readAll() {
+        StringBuilder stringBuilder = new StringBuilder();
+        readFrom(getFirstSequence(), Long.MAX_VALUE, line -> stringBuilder.append(line).append(System.lineSeparator()));
+        return stringBuilder.toString();
+    }
+
+    /**
+     * Reads the newest entries through the segment index, so the cost does not depend on the history size.
+     */
+    public String readLastEntries(int numEntries) {
+        return ConsoleColor.CHAT_HISTORY.getCode() + readLastEntriesText(numEntries) + ConsoleColor.DEFAULT.getCode();
+    }
+
+    private String readLastEntriesText(int numEntries) {
+        StringBuilder result = new StringBuilder();
+        List<RecentMessageCache.Entry> cached = recentCache.last(numEntries);
+        if (cached != null && (cached.size() == numEntries || recentCache.getFirstSequence() <= getFirstSequence())) {
+            for (RecentMessageCache.Entry entry : cached) {
+                result.append(entry.text()).append('\n');
+            }
+        } else {
+            long next = getNextSequence();
+            readFrom(Math.max(getFirstSequence(), next - numEntries), Math.min(numEntries, next),
+                    line -> result.append(line).append('\n'));
+        }
+        return result.toString();
+    }
+
+    /**
+     * The join replay: the newest entries in the history colour as one frame, built from the cached
+     * encoded lines without decoding or encoding anything. Falls back to the files on a cache miss.
+     */
+    public Frame readLastEntriesFrame(int numEntries) {
+        List<RecentMessageCache.Entry> cached = recentCache.last(numEntries);
+        byte[] prefix = HISTORY_PREFIX;
+        byte[] suffix = HISTORY_SUFFIX;
+        if (cached == null || (cached.size() < numEntries && recentCache.getFirstSequence() > getFirstSequence())) {
+            byte[] text = readLastEntriesText(numEntries).getBytes(StandardCharsets.UTF_8);
+            byte[] bytes = new byte[prefix.length + text.length + suffix.length];
+            System.arraycopy(prefix, 0, bytes, 0, prefix.length);
+            System.arraycopy(text, 0, bytes, prefix.length, text.length);
+            System.arraycopy(suffix, 0, bytes, prefix.length + text.length, suffix.length);
+            return Frame.history(bytes, prefix.length, text.length);
+        }
+        return cachedFrame(cached);
+    }
+
+    /**
+     * Entries {@code fromSequence} up to but excluding {@code toSequence} as one frame, for a resumed
+     * session: built from the cached lines if the cache holds the whole range, else sent from the journal
+     * files. Waits up to a second for entries in the range that are still queued.
+     *
+     * @return null if nothing in the range is retained
+     */
+    public Frame replayFrame(long fromSequence, long toSequence) {
+        long from = Math.max(fromSequence, getFirstSequence());
+        if (from >= toSequence) {
+            return null;
+        }
+        awaitWritten(toSequence - appendBase, TimeUnit.SECONDS.toNanos(1));
+        if (toSequence - from <= recentCache.getCapacity()) {
+            List<RecentMessageCache.Entry> cached = recentCache.from(from, (int) (toSequence - from));
+            if (cached != null && cached.size() == toSequence - from) {
+                return cachedFrame(cached);
+            }
+        }
+        HistoryExport export = export(from, toSequence);
+        if (export.isEmpty()) {
+            export.release();
+            return null;
+        }
+        return Frame.export(export);
+    }
+
+    private static Frame cachedFrame(List<RecentMessageCache.Entry> cached) {
+        byte[] prefix = HISTORY_PREFIX;
+        byte[] suffix = HISTORY_SUFFIX;
+        int length = prefix.length + suffix.length;
+        for (RecentMessageCache.Entry entry : cached) {
+            length += entry.length();
+        }
+        byte[] bytes = new byte[length];
+        System.arraycopy(prefix, 0, bytes, 0, prefix.length);
+        int offset = prefix.length;
+        for (RecentMessageCache.Entry entry : cached) {
+            entry.copyTo(bytes, offset);
+            offset += entry.length();
+        }
+        System.arraycopy(suffix, 0, bytes, offset, suffix.length);
+        return Frame.history(bytes, prefix.length, offset - prefix.length);
+    }
+
+    /**
+     * Deletes every segment. Sequence numbers keep counting from where they were; entries still queued are
+     * written after the clear.
+     */
+    public void clear() throws IOException {
+        fileLock.lock();
+        try {
+            long nextBase = active.getBaseSequence() + active.getEntryCount();
+            for (JournalSegment segment : segments.values()) {
+                segment.delete();
+            }
+            segments.clear();
+            active = JournalSegment.create(directory, nextBase, indexInterval);
+            segments.put(nextBase, active);
+            recentCache.reset(nextBase);
+            if (search != null) {
+                search.clear(nextBase);
+            }
+        } finally {
+            fileLock.unlock();
+        }
+    }
+
+    /**
+     * Writes and forces everything still queued, then closes the files. Stops the writer if this journal
+     * created it.
+     */
+    @Override
+    public void close() throws IOException {
+        if (ownsWriter) {
+            writer.close();
+        } else {
+            awaitWritten();
+        }
+        fileLock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            active.seal();
+            if (search != null) {
+                search.close();
+            }
+            for (JournalSegment segment : segments.values()) {
+                segment.close();
+            }
+        } finally {
+            fileLock.unlock();
+        }
+        Thread running = compressor;
+        if (running != null) {
+            try {
+                running.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static final class Entry {
+        private final long sequence;
+        private final long timestamp;
+        private final long queuedNanos;
+        private final String message;
+        /** Writer thread: the formatted line, kept for a retry. */
+        private byte[] line;
+
+        private Entry(long sequence, long timestamp, long queuedNanos, String message) {
+            this.sequence = sequence;
+            this.timestamp = timestamp;
+            this.queuedNanos = queuedNanos;
+            this.message = message;
+        }
+    }
+}
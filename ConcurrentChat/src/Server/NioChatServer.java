@@ -0,0 +1,90 @@
+package Server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Selector based server mode: the calling thread accepts, a small fixed set of {@link NioReactor}
+ * threads handles all reads and writes.
+ */
+public class NioChatServer {
+
+    private final ConcurrentServer server;
+    private final Logger logger;
+    private final NioReactor[] reactors;
+    private final AdmissionControl admission;
+    private final boolean keepAlive;
+    private ServerSocketChannel serverChannel;
+    private int nextReactor;
+
+    public NioChatServer(ConcurrentServer server, Logger logger, int reactorCount, int maxLineLength, boolean keepAlive,
+                         AdmissionControl admission) throws IOException {
+        this.server = server;
+        this.keepAlive = keepAlive;
+        this.logger = logger;
+        this.admission = admission;
+        this.reactors = new NioReactor[reactorCount];
+        for (int i = 0; i < reactorCount; i++) {
+            reactors[i] = new NioReactor(server, logger, maxLineLength);
+        }
+    }
+
+    public boolean bind(int port, int backlog) {
+        try {
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress(port), backlog);
+            return true;
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, e, () -> "Failed to bind server to PORT: " + port);
+            return false;
+        }
+    }
+
+    public void run() {
+        for (int i = 0; i < reactors.length; i++) {
+            Thread reactorThread = new Thread(reactors[i], "nio-reactor-" + i);
+            reactorThread.start();
+        }
+        while (serverChannel.isOpen()) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                AdmissionControl.Ticket ticket = admission.admit(channel.socket().getInetAddress());
+                if (!ticket.isAdmitted()) {
+                    admission.reject(channel, ticket);
+                    continue;
+                }
+                logger.log(Level.INFO, "CLIENT ACCEPTED FROM {0}", channel.getRemoteAddress());
+                channel.setOption(StandardSocketOptions.SO_KEEPALIVE, keepAlive);
+                channel.configureBlocking(false);
+                reactors[nextReactor].register(channel, ticket);
+                nextReactor = (nextReactor + 1) % reactors.length;
+            } catch (IOException e) {
+                if (serverChannel.isOpen()) {
+                    logger.log(Level.SEVERE, e, () -> "Error accepting client connection: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    public void stopAccepting() throws IOException {
+        serverChannel.close();
+    }
+
+    /**
+     * Closes the selectors once the sessions are closed; the reactor threads end.
+     */
+    public void stopReactors() {
+        for (NioReactor reactor : reactors) {
+            try {
+                reactor.shutdown();
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Error closing selector: {0}", e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package Server;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Non-blocking connection owned by one {@link NioReactor}. Writes may be signalled from any thread:
+ * queued frames are written straight away while the socket accepts them, otherwise the reactor
+ * finishes the job once the channel becomes writable.
+ */
+public class NioConnection implements ClientConnection {
+
+    private static final int GATHER_LIMIT = 16;
+
+    private final SocketChannel channel;
+    private final NioReactor reactor;
+    private final InboundFramer framer;
+    private final SessionEncoder encoder = new SessionEncoder();
+    private final InetSocketAddress remoteAddress;
+    private final ServerMetrics metrics;
+    private SelectionKey key;
+    private ClientHandler handler;
+    private ByteBuffer[] gather;
+    private int gatherCount;
+    private HistoryExport export;
+    private boolean writeInterest;
+
+    public NioConnection(SocketChannel channel, NioReactor reactor, int maxLineLength, ServerMetrics metrics) throws IOException {
+        this.channel = channel;
+        this.metrics = metrics;
+        this.reactor = reactor;
+        this.framer = new InboundFramer(maxLineLength);
+        this.remoteAddress = (InetSocketAddress) channel.getRemoteAddress();
+    }
+
+    void attach(SelectionKey key, ClientHandler handler) {
+        this.key = key;
+        this.handler = handler;
+    }
+
+    SocketChannel getChannel() {
+        return channel;
+    }
+
+    InboundFramer getFramer() {
+        return framer;
+    }
+
+    ClientHandler getHandler() {
+        return handler;
+    }
+
+    @Override
+    public synchronized void signalWrite(OutboundQueue outbound) {
+        if (!channel.isOpen() || writeInterest) {
+            return;
+        }
+        try {
+            if (!flushQueue(outbound)) {
+                writeInterest = true;
+                reactor.requestWrite(key);
+            }
+        } catch (IOException e) {
+            handler.onDisconnect();
+        }
+    }
+
+    /**
+     * Called by the reactor when the channel is writable.
+     */
+    synchronized void flush() throws IOException {
+        if (flushQueue(handler.getOutboundQueue())) {
+            writeInterest = false;
+            key.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    /**
+     * Writes up to {@link #GATHER_LIMIT} buffers per system call, a frame being one buffer or two when a
+     * binary client first needs its sender introduced. A {@link HistoryExport} goes out after the frames
+     * before it, straight from the journal files. The gather array only exists while
+     * something is pending, so idle connections keep no write buffer.
+     */
+    private boolean flushQueue(OutboundQueue outbound) throws IOException {
+        if (gather == null) {
+            gather = new ByteBuffer[GATHER_LIMIT];
+        }
+        while (true) {
+            if (export != null && gatherCount == 0) {
+                metrics.recordWritten(0, export.transferTo(channel, encoder.isBinary()));
+                if (!export.isDone()) {
+                    return false;
+                }
+                export = null;
+            }
+            Frame frame;
+            int frames = 0;
+            while (export == null && gatherCount < GATHER_LIMIT - 1 && (frame = outbound.poll()) != null) {
+                export = frame.getExport();
+                if (export == null) {
+                    gatherCount += encoder.gather(frame, gather, gatherCount);
+                }
+                frames++;
+            }
+            if (gatherCount == 0) {
+                if (export != null) {
+                    continue;
+                }
+                gather = null;
+                return true;
+            }
+            metrics.recordWritten(frames, channel.write(gather, 0, gatherCount));
+            if (!dropWritten()) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * @return true if every gathered buffer was written completely
+     */
+    private boolean dropWritten() {
+        int written = 0;
+        while (written < gatherCount && !gather[written].hasRemaining()) {
+            written++;
+        }
+        System.arraycopy(gather, written, gather, 0, gatherCount - written);
+        for (int i = gatherCount - written; i < gatherCount; i++) {
+            gather[i] = null;
+        }
+        gatherCount -= written;
+        return gatherCount == 0;
+    }
+
+    /**
+     * Never waits: the reactor thread may be the caller. Whatever the socket does not take right away is dropped.
+     */
+    @Override
+    public synchronized void flushAndClose(OutboundQueue outbound, long timeoutMillis) throws IOException {
+        try {
+            if (channel.isOpen()) {
+                flushQueue(outbound);
+            }
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Leaves the writing to the reactor and polls until it is done, outside the monitor so the reactor can
+     * get in.
+     */
+    @Override
+    public boolean awaitFlushed(OutboundQueue outbound, long deadlineNanos) {
+        signalWrite(outbound);
+        while (channel.isOpen() && System.nanoTime() < deadlineNanos) {
+            synchronized (this) {
+                if (outbound.isEmpty() && !writeInterest) {
+                    return true;
+                }
+            }
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(5));
+        }
+        synchronized (this) {
+            return outbound.isEmpty() && !writeInterest;
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        gather = null;
+        gatherCount = 0;
+        if (export != null) {
+            export.release();
+            export = null;
+        }
+        channel.close();
+    }
+
+    @Override
+    public boolean isClosed() {
+        return !channel.isOpen();
+    }
+
+    @Override
+    public InetAddress getInetAddress() {
+        return remoteAddress != null ? remoteAddress.getAddress() : null;
+    }
+
+    @Override
+    public int getPort() {
+        return remoteAddress != null ? remoteAddress.getPort() : 0;
+    }
+}
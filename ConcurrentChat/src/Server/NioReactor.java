@@ -0,0 +1,127 @@
+package Server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * One selector thread serving many connections. Reads go through a single buffer shared by every
+ * connection of this reactor; each connection only keeps the tail of an unfinished line.
+ */
+public class NioReactor implements Runnable {
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final ConcurrentServer server;
+    private final Logger logger;
+    private final int maxLineLength;
+    private final Selector selector;
+    private final Queue<Registration> pendingRegistrations = new ConcurrentLinkedQueue<>();
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+
+    public NioReactor(ConcurrentServer server, Logger logger, int maxLineLength) throws IOException {
+        this.server = server;
+        this.logger = logger;
+        this.maxLineLength = maxLineLength;
+        this.selector = Selector.open();
+    }
+
+    public void register(SocketChannel channel, AdmissionControl.Ticket ticket) {
+        pendingRegistrations.add(new Registration(channel, ticket));
+        selector.wakeup();
+    }
+
+    void requestWrite(SelectionKey key) {
+        if (key == null || !key.isValid()) {
+            return;
+        }
+        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        logger.log(Level.INFO, "{0} reactor ready and running", Thread.currentThread().getName());
+        try {
+            while (selector.isOpen()) {
+                selector.select();
+                registerPending();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    NioConnection connection = (NioConnection) key.attachment();
+                    try {
+                        if (key.isValid() && key.isWritable()) {
+                            connection.flush();
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            read(connection);
+                        }
+                    } catch (IOException | RuntimeException e) {
+                        logger.log(Level.FINE, "Connection error: {0}", e.getMessage());
+                        connection.getHandler().onDisconnect();
+                    }
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            if (selector.isOpen()) {
+                logger.log(Level.SEVERE, e, () -> "Reactor stopped: " + e.getMessage());
+            }
+        }
+    }
+
+    public void shutdown() throws IOException {
+        selector.close();
+    }
+
+    private void registerPending() {
+        Registration registration;
+        while ((registration = pendingRegistrations.poll()) != null) {
+            SocketChannel channel = registration.channel();
+            try {
+                NioConnection connection = new NioConnection(channel, this, maxLineLength, server.getMetrics());
+                ClientHandler clientHandler = new ClientHandler(connection, server, logger, registration.ticket());
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ, connection);
+                connection.attach(key, clientHandler);
+                server.trackClient(clientHandler);
+                clientHandler.onConnect();
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Unable to register client channel: {0}", e.getMessage());
+                registration.ticket().release();
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    private record Registration(SocketChannel channel, AdmissionControl.Ticket ticket) {
+    }
+
+    private void read(NioConnection connection) throws IOException {
+        ClientHandler clientHandler = connection.getHandler();
+        readBuffer.clear();
+        int read = connection.getChannel().read(readBuffer);
+        if (read == -1) {
+            clientHandler.onEndOfStream();
+            return;
+        }
+        server.getMetrics().recordBytesIn(read);
+        readBuffer.flip();
+        boolean framed = connection.getFramer().feed(readBuffer, clientHandler::onLine, clientHandler::onBinaryNegotiated);
+        if (!framed) {
+            logger.log(Level.WARNING, "Line too long from {0}, closing", clientHandler.getClientSimpleNameIpAndPORT());
+            clientHandler.onDisconnect();
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package Server;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Server wide counters for the per-client outbound queues.
+ */
+public class OutboundMetrics {
+
+    private final LongAdder enqueued = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder blockTimeouts = new LongAdder();
+    private final LongAdder slowDisconnects = new LongAdder();
+
+    void recordEnqueued() {
+        enqueued.increment();
+    }
+
+    void recordDropped() {
+        dropped.increment();
+    }
+
+    void recordBlockTimeout() {
+        blockTimeouts.increment();
+        dropped.increment();
+    }
+
+    void recordSlowDisconnect() {
+        slowDisconnects.increment();
+    }
+
+    public long getEnqueued() {
+        return enqueued.sum();
+    }
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    public long getBlockTimeouts() {
+        return blockTimeouts.sum();
+    }
+
+    public long getSlowDisconnects() {
+        return slowDisconnects.sum();
+    }
+}
@@ -0,0 +1,180 @@
+package Server;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded queue of encoded frames waiting to be written to one client. Senders only enqueue; the
+ * client's {@link ClientConnection} drains it on its own writer.
+ * <p>
+ * The frames sit in a linked queue and the bound is kept by a separate count, so an idle client's queue
+ * is a few small objects whatever its capacity. Only senders held up by the {@code BLOCK} policy wait, on
+ * a lock condition rather than the monitor so a waiting virtual thread gives up its carrier; taking a
+ * frame signals them only if one is waiting.
+ */
+public class OutboundQueue {
+
+    private static final AtomicIntegerFieldUpdater<OutboundQueue> SIZE =
+            AtomicIntegerFieldUpdater.newUpdater(OutboundQueue.class, "size");
+
+    private final ConcurrentLinkedQueue<Frame> frames = new ConcurrentLinkedQueue<>();
+    private final int capacity;
+    private final OverflowPolicy policy;
+    private final long blockTimeoutMillis;
+    private final OutboundMetrics metrics;
+    private final ReentrantLock blockLock = new ReentrantLock();
+    private final Condition roomFreed = blockLock.newCondition();
+    private volatile int size;
+    private volatile int blockedSenders;
+    private volatile long takenSequence = -1;
+
+    public OutboundQueue(int capacity, OverflowPolicy policy, long blockTimeoutMillis, OutboundMetrics metrics) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Outbound queue capacity must be positive: " + capacity);
+        }
+        this.capacity = capacity;
+        this.policy = policy;
+        this.blockTimeoutMillis = blockTimeoutMillis;
+        this.metrics = metrics;
+    }
+
+    /**
+     * @return false if the queue is full and the policy says the client has to be disconnected
+     */
+    public boolean offer(Frame frame) {
+        if (tryOffer(frame)) {
+            metrics.recordEnqueued();
+            return true;
+        }
+        switch (policy) {
+            case DROP_OLDEST:
+                while (!tryOffer(frame)) {
+                    Frame dropped = take();
+                    if (dropped != null) {
+                        release(dropped);
+                        metrics.recordDropped();
+                    }
+                }
+                metrics.recordEnqueued();
+                return true;
+            case BLOCK:
+                try {
+                    if (offerWaiting(frame)) {
+                        metrics.recordEnqueued();
+                    } else {
+                        metrics.recordBlockTimeout();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    metrics.recordDropped();
+                }
+                return true;
+            default:
+                metrics.recordDropped();
+                metrics.recordSlowDisconnect();
+                return false;
+        }
+    }
+
+    /**
+     * Queues the frame only if there is room right away, whatever the policy; for callers that must not block.
+     */
+    public boolean offerNow(Frame frame) {
+        if (tryOffer(frame)) {
+            metrics.recordEnqueued();
+            return true;
+        }
+        return false;
+    }
+
+    private boolean tryOffer(Frame frame) {
+        int current;
+        do {
+            current = size;
+            if (current >= capacity) {
+                return false;
+            }
+        } while (!SIZE.compareAndSet(this, current, current + 1));
+        frames.offer(frame);
+        return true;
+    }
+
+    private boolean offerWaiting(Frame frame) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(blockTimeoutMillis);
+        blockLock.lock();
+        try {
+            // counted before trying, so a frame taken after the try below finds this sender waiting
+            blockedSenders++;
+            try {
+                while (!tryOffer(frame)) {
+                    long left = deadline - System.nanoTime();
+                    if (left <= 0) {
+                        return false;
+                    }
+                    roomFreed.awaitNanos(left);
+                }
+                return true;
+            } finally {
+                blockedSenders--;
+            }
+        } finally {
+            blockLock.unlock();
+        }
+    }
+
+    public Frame poll() {
+        Frame frame = take();
+        if (frame != null && frame.getSequence() > takenSequence) {
+            takenSequence = frame.getSequence();
+        }
+        return frame;
+    }
+
+    private Frame take() {
+        Frame frame = frames.poll();
+        if (frame != null) {
+            SIZE.decrementAndGet(this);
+            if (blockedSenders > 0) {
+                blockLock.lock();
+                try {
+                    roomFreed.signalAll();
+                } finally {
+                    blockLock.unlock();
+                }
+            }
+        }
+        return frame;
+    }
+
+    /**
+     * The highest journal sequence number among the frames the writer has taken, or -1; written by the
+     * writer only.
+     */
+    public long getTakenSequence() {
+        return takenSequence;
+    }
+
+    public boolean isEmpty() {
+        return frames.isEmpty();
+    }
+
+    public int depth() {
+        return size;
+    }
+
+    public void clear() {
+        Frame frame;
+        while ((frame = take()) != null) {
+            release(frame);
+        }
+    }
+
+    private static void release(Frame frame) {
+        if (frame.getExport() != null) {
+            frame.getExport().release();
+        }
+    }
+}
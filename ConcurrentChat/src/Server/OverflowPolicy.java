@@ -0,0 +1,10 @@
+package Server;
+
+/**
+ * What to do when a client's outbound queue is full.
+ */
+public enum OverflowPolicy {
+    DROP_OLDEST, // discard the oldest queued message to make room
+    DISCONNECT, // close the slow client
+    BLOCK // make the sender wait up to blockTimeoutMillis, then drop the message; not in nio mode, where it falls back to DISCONNECT
+}
@@ -0,0 +1,97 @@
+package Server;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Ascending entry indexes within one segment, stored as varint deltas, so a busy sender or a common word
+ * costs one or two bytes per entry. Appending the same index twice in a row keeps one.
+ */
+final class PostingList {
+
+    private byte[] bytes = new byte[4];
+    private int length;
+    private int count;
+    private int last = -1;
+
+    void add(int entry) {
+        if (entry <= last) {
+            return;
+        }
+        if (length + 5 > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + 5));
+        }
+        int delta = entry - last;
+        while (delta > 0x7F) {
+            bytes[length++] = (byte) ((delta & 0x7F) | 0x80);
+            delta >>>= 7;
+        }
+        bytes[length++] = (byte) delta;
+        last = entry;
+        count++;
+    }
+
+    int count() {
+        return count;
+    }
+
+    /**
+     * The entries from {@code from} up to but excluding {@code to}.
+     */
+    int[] decode(int from, int to) {
+        int[] entries = new int[count];
+        int found = 0;
+        int entry = -1;
+        int position = 0;
+        while (position < length) {
+            int delta = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = bytes[position++];
+                delta |= (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            entry += delta;
+            if (entry >= to) {
+                break;
+            }
+            if (entry >= from) {
+                entries[found++] = entry;
+            }
+        }
+        return found == entries.length ? entries : Arrays.copyOf(entries, found);
+    }
+
+    /**
+     * Drops the spare capacity once nothing more is appended.
+     */
+    void trim() {
+        if (bytes.length > length) {
+            bytes = Arrays.copyOf(bytes, length);
+        }
+    }
+
+    long memoryBytes() {
+        return 32 + 16 + bytes.length;
+    }
+
+    void writeTo(DataOutput output) throws IOException {
+        output.writeInt(count);
+        output.writeInt(last);
+        output.writeInt(length);
+        output.write(bytes, 0, length);
+    }
+
+    static PostingList readFrom(DataInput input) throws IOException {
+        PostingList list = new PostingList();
+        list.count = input.readInt();
+        list.last = input.readInt();
+        list.length = input.readInt();
+        list.bytes = new byte[Math.max(4, list.length)];
+        input.readFully(list.bytes, 0, list.length);
+        return list;
+    }
+}
@@ -0,0 +1,36 @@
+package Server;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token bucket refilled at {@code ratePerSecond} and holding at most {@code burst} tokens. Instead of a token
+ * count it keeps the time at which the bucket would be empty again (the generic cell rate algorithm), so taking
+ * a token is a single compare-and-set and a bucket shared by several connections needs no lock.
+ */
+final class RateLimiter {
+
+    private final long intervalNanos;
+    private final long burstNanos;
+    private final AtomicLong emptyUntil = new AtomicLong(Long.MIN_VALUE);
+
+    RateLimiter(double ratePerSecond, int burst) {
+        this.intervalNanos = Math.max(1, (long) (1_000_000_000L / ratePerSecond));
+        this.burstNanos = intervalNanos * Math.max(1, burst);
+    }
+
+    /**
+     * @return false if the bucket is empty; nothing is taken then
+     */
+    boolean tryAcquire(long nowNanos) {
+        while (true) {
+            long current = emptyUntil.get();
+            long next = Math.max(current, nowNanos) + intervalNanos;
+            if (next - nowNanos > burstNanos) {
+                return false;
+            }
+            if (emptyUntil.compareAndSet(current, next)) {
+                return true;
+            }
+        }
+    }
+}
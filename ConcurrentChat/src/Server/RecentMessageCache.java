@@ -0,0 +1,115 @@
+package Server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Fixed-size ring of the newest journal lines, already encoded, keyed by their journal sequence number.
+ * <p>
+ * Filled by the journal writer thread only. Readers never lock: a slot is published before the head moves
+ * past it, and a reader that finds a slot already overwritten treats the request as a miss and falls back
+ * to the journal files.
+ */
+public class RecentMessageCache {
+
+    private final int capacity;
+    private final int mask;
+    private final AtomicReferenceArray<Entry> slots;
+    private volatile long lowest;
+    private volatile long head;
+
+    public RecentMessageCache(int minimumCapacity) {
+        int size = Integer.highestOneBit(Math.max(1, minimumCapacity - 1)) << 1;
+        this.capacity = size;
+        this.mask = size - 1;
+        this.slots = new AtomicReferenceArray<>(size);
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @param line the journal line including its trailing newline
+     */
+    void add(long sequence, byte[] line) {
+        if (sequence != head) {
+            lowest = sequence;
+        }
+        slots.set((int) (sequence & mask), new Entry(sequence, line));
+        head = sequence + 1;
+    }
+
+    /**
+     * Forgets everything; the next entry added will have {@code nextSequence}.
+     */
+    void reset(long nextSequence) {
+        lowest = nextSequence;
+        head = nextSequence;
+    }
+
+    public long getNextSequence() {
+        return head;
+    }
+
+    /**
+     * The oldest sequence number that can still be served.
+     */
+    public long getFirstSequence() {
+        return Math.max(lowest, head - capacity);
+    }
+
+    /**
+     * Entries from {@code fromSequence} on, at most {@code max} of them.
+     *
+     * @return null if part of the range is no longer (or not yet) cached
+     */
+    public List<Entry> from(long fromSequence, int max) {
+        long end = Math.min(head, fromSequence + max);
+        if (fromSequence < getFirstSequence()) {
+            return null;
+        }
+        List<Entry> entries = new ArrayList<>((int) Math.max(0, end - fromSequence));
+        for (long sequence = fromSequence; sequence < end; sequence++) {
+            Entry entry = slots.get((int) (sequence & mask));
+            if (entry == null || entry.sequence != sequence) {
+                return null;
+            }
+            entries.add(entry);
+        }
+        return entries;
+    }
+
+    public List<Entry> last(int count) {
+        long next = head;
+        return from(Math.max(getFirstSequence(), next - count), count);
+    }
+
+    public static final class Entry {
+        private final long sequence;
+        private final byte[] line;
+
+        private Entry(long sequence, byte[] line) {
+            this.sequence = sequence;
+            this.line = line;
+        }
+
+        public long getSequence() {
+            return sequence;
+        }
+
+        int length() {
+            return line.length;
+        }
+
+        void copyTo(byte[] target, int offset) {
+            System.arraycopy(line, 0, target, offset, line.length);
+        }
+
+        public String text() {
+            return new String(line, 0, line.length - 1, StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package Server;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * The recipients of a whisper, {@code @alice, bob, @@mods: message}: names and, with a leading {@code @},
+ * groups. Parsed by hand in one pass over the line, without a regex or a split array. A client that
+ * repeats the recipients of its previous whisper gets that parse back, which allocates nothing.
+ */
+final class RecipientList {
+
+    private final String text;
+    private final String[] names;
+    private final String[] keys;
+    private final boolean[] groups;
+
+    private RecipientList(String text, String[] names, String[] keys, boolean[] groups) {
+        this.text = text;
+        this.names = names;
+        this.keys = keys;
+        this.groups = groups;
+    }
+
+    /**
+     * Parses the list between the leading {@code @} of {@code line} and {@code colon}. Blank and repeated
+     * entries are dropped.
+     *
+     * @param previous the sender's previous list, returned as is if the text is the same; may be null
+     */
+    static RecipientList parse(String line, int colon, RecipientList previous) {
+        int length = colon - 1;
+        if (previous != null && previous.text.length() == length && line.regionMatches(1, previous.text, 0, length)) {
+            return previous;
+        }
+        int capacity = 1;
+        for (int i = 1; i < colon; i++) {
+            if (line.charAt(i) == ',') {
+                capacity++;
+            }
+        }
+        String[] names = new String[capacity];
+        String[] keys = new String[capacity];
+        boolean[] groups = new boolean[capacity];
+        int count = 0;
+        int start = 1;
+        while (start <= colon) {
+            int end = start;
+            while (end < colon && line.charAt(end) != ',') {
+                end++;
+            }
+            int from = start;
+            int to = end;
+            while (from < to && Character.isWhitespace(line.charAt(from))) {
+                from++;
+            }
+            boolean group = false;
+            while (from < to && line.charAt(from) == '@') {
+                from++;
+                group = true;
+            }
+            while (to > from && Character.isWhitespace(line.charAt(to - 1))) {
+                to--;
+            }
+            if (from < to) {
+                String name = line.substring(from, to);
+                // returns name itself when it is lower case already
+                String key = name.toLowerCase(Locale.ROOT);
+                if (!contains(keys, groups, count, key, group)) {
+                    names[count] = name;
+                    keys[count] = key;
+                    groups[count] = group;
+                    count++;
+                }
+            }
+            start = end + 1;
+        }
+        return new RecipientList(line.substring(1, colon), Arrays.copyOf(names, count), Arrays.copyOf(keys, count),
+                Arrays.copyOf(groups, count));
+    }
+
+    private static boolean contains(String[] keys, boolean[] groups, int count, String key, boolean group) {
+        for (int i = 0; i < count; i++) {
+            if (groups[i] == group && keys[i].equals(key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    int size() {
+        return keys.length;
+    }
+
+    boolean isEmpty() {
+        return keys.length == 0;
+    }
+
+    /**
+     * As typed, without the group marker.
+     */
+    String name(int index) {
+        return names[index];
+    }
+
+    /**
+     * The normalized name, as used by {@link ClientRegistry} and the groups.
+     */
+    String key(int index) {
+        return keys[index];
+    }
+
+    boolean isGroup(int index) {
+        return groups[index];
+    }
+}
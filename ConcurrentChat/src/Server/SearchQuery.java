@@ -0,0 +1,104 @@
+package Server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A history search: an optional time range, sender and words, answered with the newest {@code limit}
+ * matching entries. Written as {@code [from:<time>] [to:<time>] [user:<name>] [limit:<n>] [words...]}, with
+ * times as {@link TimestampCache#parseSince} reads them; an entry matches if it has every word.
+ */
+public class SearchQuery {
+
+    public static final String USAGE = "Usage: /search [from:<time>] [to:<time>] [user:<name>] [limit:<n>] [words...]";
+    static final int DEFAULT_LIMIT = 50;
+    static final int MAX_LIMIT = 1000;
+
+    final long fromMillis;
+    final long toMillis;
+    final String sender;
+    final List<String> words;
+    final int limit;
+
+    SearchQuery(long fromMillis, long toMillis, String sender, List<String> words, int limit) {
+        this.fromMillis = fromMillis;
+        this.toMillis = toMillis;
+        this.sender = sender;
+        this.words = words;
+        this.limit = limit;
+    }
+
+    /**
+     * @throws IllegalArgumentException with a message for the user if a term cannot be read
+     */
+    public static SearchQuery parse(String text, long nowMillis) {
+        long from = 0;
+        long to = Long.MAX_VALUE;
+        String sender = null;
+        int limit = DEFAULT_LIMIT;
+        List<String> words = new ArrayList<>();
+        for (String term : text.trim().split("\\s+")) {
+            if (term.isEmpty()) {
+                continue;
+            }
+            if (term.startsWith("from:") || term.startsWith("to:")) {
+                String value = term.substring(term.indexOf(':') + 1);
+                long millis = TimestampCache.parseSince(value, nowMillis);
+                if (millis < 0) {
+                    throw new IllegalArgumentException("Invalid time '" + value + "'. Use e.g. 15m, 2h, 1d, 14:30, 2024-05-01 or 2024-05-01T14:30");
+                }
+                if (term.startsWith("from:")) {
+                    from = millis;
+                } else {
+                    to = millis;
+                }
+            } else if (term.startsWith("user:")) {
+                sender = term.substring(5).toLowerCase(Locale.ROOT);
+            } else if (term.startsWith("limit:")) {
+                try {
+                    limit = Integer.parseInt(term.substring(6));
+                } catch (NumberFormatException e) {
+                    limit = 0;
+                }
+                if (limit <= 0 || limit > MAX_LIMIT) {
+                    throw new IllegalArgumentException("limit must be between 1 and " + MAX_LIMIT);
+                }
+            } else {
+                HistorySearch.forEachWord(term, 0, words::add);
+            }
+        }
+        if (from > to) {
+            throw new IllegalArgumentException("from: is after to:");
+        }
+        return new SearchQuery(from, to, sender, Collections.unmodifiableList(words), limit);
+    }
+
+    long fromSecond() {
+        return Math.floorDiv(fromMillis, 1000);
+    }
+
+    long toSecond() {
+        return toMillis == Long.MAX_VALUE ? Long.MAX_VALUE - 1 : Math.floorDiv(toMillis, 1000);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder();
+        if (fromMillis > 0) {
+            text.append("from:").append(fromMillis).append(' ');
+        }
+        if (toMillis != Long.MAX_VALUE) {
+            text.append("to:").append(toMillis).append(' ');
+        }
+        if (sender != null) {
+            text.append("user:").append(sender).append(' ');
+        }
+        text.append("limit:").append(limit);
+        for (String word : words) {
+            text.append(' ').append(word);
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,263 @@
+package Server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * The search index of one {@link JournalSegment}: time buckets holding the first entry of every second,
+ * a posting list per sender and, optionally, one per word. Entries are numbered from 0 within the segment.
+ * <p>
+ * Only the journal writer adds; searches take the read lock and may run from any thread.
+ */
+final class SearchSegment {
+
+    private static final int MAGIC = 0x53495831;
+    private static final int[] NONE = new int[0];
+
+    final long baseSequence;
+    private final boolean indexWords;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private long[] bucketSeconds = new long[16];
+    private int[] bucketStarts = new int[16];
+    private int bucketCount;
+    private int entryCount;
+    private final HashMap<String, PostingList> senders = new HashMap<>();
+    private final HashMap<String, PostingList> words;
+
+    SearchSegment(long baseSequence, boolean indexWords) {
+        this.baseSequence = baseSequence;
+        this.indexWords = indexWords;
+        this.words = indexWords ? new HashMap<>() : null;
+    }
+
+    /**
+     * Indexes the next entry, a {@code name: text} message stamped at {@code epochSecond}.
+     */
+    void add(long epochSecond, String message) {
+        lock.writeLock().lock();
+        try {
+            int entry = entryCount++;
+            if (bucketCount == 0 || epochSecond > bucketSeconds[bucketCount - 1]) {
+                if (bucketCount == bucketSeconds.length) {
+                    bucketSeconds = Arrays.copyOf(bucketSeconds, bucketCount * 2);
+                    bucketStarts = Arrays.copyOf(bucketStarts, bucketCount * 2);
+                }
+                bucketSeconds[bucketCount] = epochSecond;
+                bucketStarts[bucketCount++] = entry;
+            }
+            int colon = message.indexOf(": ");
+            if (colon > 0) {
+                senders.computeIfAbsent(message.substring(0, colon).toLowerCase(Locale.ROOT), name -> new PostingList()).add(entry);
+            }
+            if (words != null) {
+                HistorySearch.forEachWord(message, colon > 0 ? colon + 2 : 0,
+                        word -> words.computeIfAbsent(word, key -> new PostingList()).add(entry));
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    int getEntryCount() {
+        return entryCount;
+    }
+
+    /**
+     * Entries {@code [lo, hi)} stamped from {@code fromSecond} to {@code toSecond}, both included.
+     */
+    int[] range(long fromSecond, long toSecond) {
+        lock.readLock().lock();
+        try {
+            return new int[]{startOfBucketAtOrAfter(fromSecond), startOfBucketAtOrAfter(toSecond + 1)};
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private int startOfBucketAtOrAfter(long second) {
+        int low = 0;
+        int high = bucketCount;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (bucketSeconds[middle] < second) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low < bucketCount ? bucketStarts[low] : entryCount;
+    }
+
+    /**
+     * The newest {@code limit} entries in {@code [lo, hi)} from the query's sender that have every query word;
+     * ascending. Posting lists are intersected shortest first. Words are ignored if this index has none.
+     */
+    int[] newestMatches(SearchQuery query, int lo, int hi, int limit) {
+        lock.readLock().lock();
+        try {
+            List<PostingList> lists = new ArrayList<>();
+            if (query.sender != null) {
+                PostingList list = senders.get(query.sender);
+                if (list == null) {
+                    return NONE;
+                }
+                lists.add(list);
+            }
+            if (words != null) {
+                for (String word : query.words) {
+                    PostingList list = words.get(word);
+                    if (list == null) {
+                        return NONE;
+                    }
+                    lists.add(list);
+                }
+            }
+            if (lists.isEmpty()) {
+                int from = Math.max(lo, hi - limit);
+                int[] entries = new int[Math.max(0, hi - from)];
+                for (int i = 0; i < entries.length; i++) {
+                    entries[i] = from + i;
+                }
+                return entries;
+            }
+            lists.sort(Comparator.comparingInt(PostingList::count));
+            int[] matches = lists.get(0).decode(lo, hi);
+            for (int i = 1; i < lists.size() && matches.length > 0; i++) {
+                matches = intersect(matches, lists.get(i).decode(lo, hi));
+            }
+            return matches.length <= limit ? matches : Arrays.copyOfRange(matches, matches.length - limit, matches.length);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private static int[] intersect(int[] a, int[] b) {
+        int[] result = new int[Math.min(a.length, b.length)];
+        int count = 0;
+        int i = 0;
+        int j = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                result[count++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(result, count);
+    }
+
+    /**
+     * Drops spare capacity once the segment is sealed.
+     */
+    void trim() {
+        lock.writeLock().lock();
+        try {
+            senders.values().forEach(PostingList::trim);
+            if (words != null) {
+                words.values().forEach(PostingList::trim);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Rough heap footprint, for reporting.
+     */
+    long memoryBytes() {
+        lock.readLock().lock();
+        try {
+            long bytes = bucketSeconds.length * 12L;
+            for (Map<String, PostingList> map : words != null ? List.of(senders, words) : List.of(senders)) {
+                for (Map.Entry<String, PostingList> entry : map.entrySet()) {
+                    bytes += 48 + 40 + entry.getKey().length() + entry.getValue().memoryBytes();
+                }
+            }
+            return bytes;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    void save(Path file) throws IOException {
+        lock.readLock().lock();
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary), 64 * 1024))) {
+            output.writeInt(MAGIC);
+            output.writeBoolean(indexWords);
+            output.writeInt(entryCount);
+            output.writeInt(bucketCount);
+            for (int i = 0; i < bucketCount; i++) {
+                output.writeLong(bucketSeconds[i]);
+                output.writeInt(bucketStarts[i]);
+            }
+            writePostings(output, senders);
+            if (words != null) {
+                writePostings(output, words);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void writePostings(DataOutputStream output, Map<String, PostingList> postings) throws IOException {
+        output.writeInt(postings.size());
+        for (Map.Entry<String, PostingList> entry : postings.entrySet()) {
+            output.writeUTF(entry.getKey());
+            entry.getValue().writeTo(output);
+        }
+    }
+
+    /**
+     * @return the saved index, or null if the file is unreadable or was saved with a different word setting
+     */
+    static SearchSegment load(Path file, long baseSequence, boolean indexWords) {
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 64 * 1024))) {
+            if (input.readInt() != MAGIC || input.readBoolean() != indexWords) {
+                return null;
+            }
+            SearchSegment segment = new SearchSegment(baseSequence, indexWords);
+            segment.entryCount = input.readInt();
+            segment.bucketCount = input.readInt();
+            segment.bucketSeconds = new long[Math.max(16, segment.bucketCount)];
+            segment.bucketStarts = new int[segment.bucketSeconds.length];
+            for (int i = 0; i < segment.bucketCount; i++) {
+                segment.bucketSeconds[i] = input.readLong();
+                segment.bucketStarts[i] = input.readInt();
+            }
+            readPostings(input, segment.senders);
+            if (indexWords) {
+                readPostings(input, segment.words);
+            }
+            return segment;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static void readPostings(DataInputStream input, Map<String, PostingList> postings) throws IOException {
+        int count = input.readInt();
+        for (int i = 0; i < count; i++) {
+            postings.put(input.readUTF(), PostingList.readFrom(input));
+        }
+    }
+}
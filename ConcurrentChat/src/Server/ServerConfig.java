@@ -0,0 +1,84 @@
+package Server;
+
+import java.util.Properties;
+
+/**
+ * Startup settings for the server. Values are read from {@code --key=value} program arguments,
+ * falling back to {@code -Dchat.key=value} system properties and then to the supplied default.
+ */
+public class ServerConfig {
+
+    private static final String PROPERTY_PREFIX = "chat.";
+
+    private final Properties properties = new Properties();
+
+    public static ServerConfig fromArgs(String[] args) {
+        ServerConfig config = new ServerConfig();
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                continue;
+            }
+            int equalsIndex = arg.indexOf('=');
+            if (equalsIndex == -1) {
+                config.set(arg.substring(2), "true");
+            } else {
+                config.set(arg.substring(2, equalsIndex), arg.substring(equalsIndex + 1));
+            }
+        }
+        return config;
+    }
+
+    public ServerConfig set(String key, String value) {
+        properties.setProperty(key, value);
+        return this;
+    }
+
+    public String getString(String key, String defaultValue) {
+        String value = properties.getProperty(key);
+        if (value == null) {
+            value = System.getProperty(PROPERTY_PREFIX + key);
+        }
+        return value != null ? value.trim() : defaultValue;
+    }
+
+    public int getInt(String key, int defaultValue) {
+        String value = getString(key, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid integer for '" + key + "': " + value);
+        }
+    }
+
+    public long getLong(String key, long defaultValue) {
+        String value = getString(key, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid number for '" + key + "': " + value);
+        }
+    }
+
+    public boolean getBoolean(String key, boolean defaultValue) {
+        String value = getString(key, null);
+        return value != null ? Boolean.parseBoolean(value) : defaultValue;
+    }
+
+    public <E extends Enum<E>> E getEnum(String key, Class<E> type, E defaultValue) {
+        String value = getString(key, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Enum.valueOf(type, value.toUpperCase().replace('-', '_'));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid value for '" + key + "': " + value);
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package Server;
+
+import java.util.logging.LogManager;
+
+/**
+ * Keeps the log handlers open while the server shuts down. The JDK's own shutdown hook resets the
+ * {@link LogManager}, closing every handler, and it runs alongside the server's hook, so the lines logged
+ * while clients drain would be lost. This manager ignores that reset; the server's hook calls
+ * {@link #resetFinally()} once it is done.
+ * <p>
+ * Installed through {@code java.util.logging.manager} before the first logger is created.
+ */
+public class ServerLogManager extends LogManager {
+
+    private volatile boolean resetAllowed;
+
+    @Override
+    public void reset() {
+        if (resetAllowed) {
+            super.reset();
+        }
+    }
+
+    public void resetFinally() {
+        resetAllowed = true;
+        super.reset();
+    }
+
+    /**
+     * Closes the handlers now if {@link ServerLogManager} is the installed manager; otherwise the JDK already does.
+     */
+    static void resetAfterShutdown() {
+        if (LogManager.getLogManager() instanceof ServerLogManager manager) {
+            manager.resetFinally();
+        }
+    }
+}
@@ -0,0 +1,281 @@
+package Server;
+
+import utils.LatencyHistogram;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+import java.util.function.LongSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Server wide traffic counters and latency histograms. Recording is a few atomic adds on {@link LongAdder}s
+ * and {@link LatencyHistogram}s, never a lock or an allocation, so it is safe on the broadcast and I/O paths.
+ * Times are recorded in nanoseconds; {@link #report()} and the JMX view scale them for reading.
+ */
+public class ServerMetrics implements ServerMetricsMXBean {
+
+    private final long startNanos = System.nanoTime();
+    private final LongAdder connectionsOpened = new LongAdder();
+    private final LongAdder connectionsClosed = new LongAdder();
+    private final LongAdder messagesIn = new LongAdder();
+    private final LongAdder framesOut = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder broadcasts = new LongAdder();
+    private final LongAdder rejectedBanned = new LongAdder();
+    private final LongAdder rejectedFull = new LongAdder();
+    private final LongAdder rejectedPerAddress = new LongAdder();
+    private final LongAdder throttledMessages = new LongAdder();
+    private final LongAdder expiredHandshakes = new LongAdder();
+    private final LongAdder expiredIdle = new LongAdder();
+    private final LongAdder pingsSent = new LongAdder();
+    private final LongAdder resumedSessions = new LongAdder();
+    private final LongAdder resumeReplayed = new LongAdder();
+    private final LatencyHistogram broadcastFanout = new LatencyHistogram();
+    private final LatencyHistogram journalAppend = new LatencyHistogram();
+    private final LatencyHistogram handshake = new LatencyHistogram();
+    private final IntSupplier executorQueueDepth;
+    private final LongSupplier journalBacklog;
+
+    /**
+     * @param executorQueueDepth sessions waiting for a thread of the client executor
+     * @param journalBacklog     history entries appended but not yet written
+     */
+    public ServerMetrics(IntSupplier executorQueueDepth, LongSupplier journalBacklog) {
+        this.executorQueueDepth = executorQueueDepth;
+        this.journalBacklog = journalBacklog;
+    }
+
+    void recordConnectionOpened() {
+        connectionsOpened.increment();
+    }
+
+    void recordConnectionClosed() {
+        connectionsClosed.increment();
+    }
+
+    void recordMessageIn() {
+        messagesIn.increment();
+    }
+
+    void recordBytesIn(long bytes) {
+        bytesIn.add(bytes);
+    }
+
+    void recordWritten(int frames, long bytes) {
+        if (frames > 0) {
+            framesOut.add(frames);
+        }
+        bytesOut.add(bytes);
+    }
+
+    void recordBroadcast(long fanoutNanos) {
+        broadcasts.increment();
+        broadcastFanout.record(fanoutNanos);
+    }
+
+    void recordRejectedBanned() {
+        rejectedBanned.increment();
+    }
+
+    void recordRejectedFull() {
+        rejectedFull.increment();
+    }
+
+    void recordRejectedPerAddress() {
+        rejectedPerAddress.increment();
+    }
+
+    void recordThrottled() {
+        throttledMessages.increment();
+    }
+
+    void recordExpiredHandshake() {
+        expiredHandshakes.increment();
+    }
+
+    void recordExpiredIdle() {
+        expiredIdle.increment();
+    }
+
+    void recordPingSent() {
+        pingsSent.increment();
+    }
+
+    void recordResume(long replayedEntries) {
+        resumedSessions.increment();
+        resumeReplayed.add(replayedEntries);
+    }
+
+    void recordHandshake(long nanos) {
+        handshake.record(nanos);
+    }
+
+    /**
+     * Time from an entry's append to its write into the history file, across every journal.
+     */
+    LatencyHistogram getJournalAppendHistogram() {
+        return journalAppend;
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server under {@code ConcurrentChat:type=ServerMetrics,port=<port>}.
+     */
+    void registerMBean(int port, Logger logger) {
+        try {
+            ObjectName name = new ObjectName("ConcurrentChat:type=ServerMetrics,port=" + port);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+            logger.log(Level.INFO, "Metrics available over JMX as {0}", name);
+        } catch (JMException e) {
+            logger.log(Level.WARNING, "Unable to register metrics MBean: {0}", e.getMessage());
+        }
+    }
+
+    public String report() {
+        double seconds = Math.max(1e-9, (System.nanoTime() - startNanos) / 1e9);
+        return String.format("Stats after %.0fs%n", seconds)
+                + String.format("connections active=%d opened=%d closed=%d executorQueue=%d%n",
+                getActiveConnections(), getConnectionsOpened(), connectionsClosed.sum(), getExecutorQueueDepth())
+                + String.format("messages in=%d (%.0f/s) framesOut=%d (%.0f/s) bytesIn=%d bytesOut=%d%n",
+                getMessagesIn(), getMessagesIn() / seconds, getFramesOut(), getFramesOut() / seconds, getBytesIn(), getBytesOut())
+                + String.format("rejected banned=%d full=%d perAddress=%d throttledMessages=%d%n",
+                getRejectedBanned(), getRejectedFull(), getRejectedPerAddress(), getThrottledMessages())
+                + String.format("expired handshake=%d idle=%d pingsSent=%d%n", getExpiredHandshakes(), getExpiredIdle(), getPingsSent())
+                + String.format("resumed sessions=%d replayedEntries=%d%n", getResumedSessions(), getResumeReplayedEntries())
+                + "broadcasts=" + getBroadcasts() + " fan-out " + percentiles(broadcastFanout, 1_000, "us") + "\n"
+                + "journal append->write " + percentiles(journalAppend, 1_000, "us") + " backlog=" + getJournalBacklog() + "\n"
+                + "handshake " + percentiles(handshake, 1_000_000, "ms");
+    }
+
+    private static String percentiles(LatencyHistogram histogram, long divisor, String unit) {
+        return String.format("count=%d p50=%.1f%s p99=%.1f%s p999=%.1f%s max=%.1f%s", histogram.getCount(),
+                (double) histogram.valueAtPercentile(50) / divisor, unit,
+                (double) histogram.valueAtPercentile(99) / divisor, unit,
+                (double) histogram.valueAtPercentile(99.9) / divisor, unit,
+                (double) histogram.getMax() / divisor, unit);
+    }
+
+    @Override
+    public long getUptimeSeconds() {
+        return (System.nanoTime() - startNanos) / 1_000_000_000;
+    }
+
+    @Override
+    public long getActiveConnections() {
+        return connectionsOpened.sum() - connectionsClosed.sum();
+    }
+
+    @Override
+    public long getConnectionsOpened() {
+        return connectionsOpened.sum();
+    }
+
+    @Override
+    public long getMessagesIn() {
+        return messagesIn.sum();
+    }
+
+    @Override
+    public long getFramesOut() {
+        return framesOut.sum();
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public long getBroadcasts() {
+        return broadcasts.sum();
+    }
+
+    @Override
+    public long getRejectedBanned() {
+        return rejectedBanned.sum();
+    }
+
+    @Override
+    public long getRejectedFull() {
+        return rejectedFull.sum();
+    }
+
+    @Override
+    public long getRejectedPerAddress() {
+        return rejectedPerAddress.sum();
+    }
+
+    @Override
+    public long getThrottledMessages() {
+        return throttledMessages.sum();
+    }
+
+    @Override
+    public long getExpiredHandshakes() {
+        return expiredHandshakes.sum();
+    }
+
+    @Override
+    public long getExpiredIdle() {
+        return expiredIdle.sum();
+    }
+
+    @Override
+    public long getPingsSent() {
+        return pingsSent.sum();
+    }
+
+    @Override
+    public long getResumedSessions() {
+        return resumedSessions.sum();
+    }
+
+    @Override
+    public long getResumeReplayedEntries() {
+        return resumeReplayed.sum();
+    }
+
+    @Override
+    public long getBroadcastFanoutP50Micros() {
+        return broadcastFanout.valueAtPercentile(50) / 1_000;
+    }
+
+    @Override
+    public long getBroadcastFanoutP99Micros() {
+        return broadcastFanout.valueAtPercentile(99) / 1_000;
+    }
+
+    @Override
+    public long getBroadcastFanoutP999Micros() {
+        return broadcastFanout.valueAtPercentile(99.9) / 1_000;
+    }
+
+    @Override
+    public long getJournalAppendP99Micros() {
+        return journalAppend.valueAtPercentile(99) / 1_000;
+    }
+
+    @Override
+    public long getHandshakeP99Millis() {
+        return handshake.valueAtPercentile(99) / 1_000_000;
+    }
+
+    @Override
+    public int getExecutorQueueDepth() {
+        return executorQueueDepth.getAsInt();
+    }
+
+    @Override
+    public long getJournalBacklog() {
+        return journalBacklog.getAsLong();
+    }
+}
@@ -0,0 +1,55 @@
+package Server;
+
+/**
+ * The {@link ServerMetrics} numbers as seen over JMX.
+ */
+public interface ServerMetricsMXBean {
+
+    long getUptimeSeconds();
+
+    long getActiveConnections();
+
+    long getConnectionsOpened();
+
+    long getMessagesIn();
+
+    long getFramesOut();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    long getBroadcasts();
+
+    long getRejectedBanned();
+
+    long getRejectedFull();
+
+    long getRejectedPerAddress();
+
+    long getThrottledMessages();
+
+    long getExpiredHandshakes();
+
+    long getExpiredIdle();
+
+    long getPingsSent();
+
+    long getResumedSessions();
+
+    long getResumeReplayedEntries();
+
+    long getBroadcastFanoutP50Micros();
+
+    long getBroadcastFanoutP99Micros();
+
+    long getBroadcastFanoutP999Micros();
+
+    long getJournalAppendP99Micros();
+
+    long getHandshakeP99Millis();
+
+    int getExecutorQueueDepth();
+
+    long getJournalBacklog();
+}
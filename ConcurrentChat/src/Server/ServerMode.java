@@ -0,0 +1,8 @@
+package Server;
+
+public enum ServerMode {
+    POOL, // fixed pool of platform threads, one per active client, sized by poolSize
+    PLATFORM, // a new platform thread for every client
+    VIRTUAL, // a virtual thread for every client
+    NIO // selector reactors, see NioChatServer
+}
@@ -0,0 +1,114 @@
+package Server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Turns queued frames into bytes for one connection. Starts in the text protocol and switches to the binary
+ * one when it meets {@link Frame#PROTOCOL_SWITCH}; from then on it sends each sender's introduction the first
+ * time that sender appears. Only the connection's writer uses it, one frame at a time.
+ */
+final class SessionEncoder {
+
+    private boolean binary;
+    private int[] knownSenders;
+    private int knownCount;
+
+    boolean isBinary() {
+        return binary;
+    }
+
+    /**
+     * @return the number of bytes written
+     */
+    int write(Frame frame, OutputStream outputStream) throws IOException {
+        if (!binary) {
+            frame.writeTo(outputStream);
+            binary = frame == Frame.PROTOCOL_SWITCH;
+            return frame.length();
+        }
+        int length = 0;
+        Frame intro = introNeeded(frame);
+        if (intro != null) {
+            byte[] introBytes = intro.binary();
+            outputStream.write(introBytes);
+            length = introBytes.length;
+        }
+        byte[] bytes = frame.binary();
+        outputStream.write(bytes);
+        return length + bytes.length;
+    }
+
+    /**
+     * Puts the buffers for {@code frame} into {@code gather} from {@code index}: one, or two when the sender
+     * has to be introduced first.
+     *
+     * @return the number of buffers added
+     */
+    int gather(Frame frame, ByteBuffer[] gather, int index) {
+        if (!binary) {
+            gather[index] = frame.buffer();
+            binary = frame == Frame.PROTOCOL_SWITCH;
+            return 1;
+        }
+        Frame intro = introNeeded(frame);
+        if (intro != null) {
+            gather[index++] = ByteBuffer.wrap(intro.binary());
+        }
+        gather[index] = ByteBuffer.wrap(frame.binary());
+        return intro != null ? 2 : 1;
+    }
+
+    private Frame introNeeded(Frame frame) {
+        int senderId = frame.getSenderId();
+        if (senderId == 0 || frame.getIntro() == null || !addSender(senderId)) {
+            return null;
+        }
+        return frame.getIntro();
+    }
+
+    /**
+     * Open addressing set of sender ids; 0 marks a free slot.
+     *
+     * @return false if the id was already known
+     */
+    private boolean addSender(int senderId) {
+        if (knownSenders == null) {
+            knownSenders = new int[16];
+        }
+        int mask = knownSenders.length - 1;
+        int slot = slot(senderId, mask);
+        while (knownSenders[slot] != 0) {
+            if (knownSenders[slot] == senderId) {
+                return false;
+            }
+            slot = (slot + 1) & mask;
+        }
+        knownSenders[slot] = senderId;
+        if (++knownCount * 2 > knownSenders.length) {
+            rehash();
+        }
+        return true;
+    }
+
+    private static int slot(int senderId, int mask) {
+        int hash = senderId * 0x9E3779B9;
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+
+    private void rehash() {
+        int[] old = knownSenders;
+        knownSenders = new int[old.length * 2];
+        int mask = knownSenders.length - 1;
+        for (int senderId : old) {
+            if (senderId != 0) {
+                int slot = slot(senderId, mask);
+                while (knownSenders[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                knownSenders[slot] = senderId;
+            }
+        }
+    }
+}
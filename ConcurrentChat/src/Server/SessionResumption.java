@@ -0,0 +1,155 @@
+package Server;
+
+import utils.ConsoleColor;
+
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Resume tokens. A client that gets its name is handed a token; when its connection drops, the session's
+ * name, colour and the last history entry it was sent are kept under that token for {@code resumeWindowMillis}.
+ * A new connection that sends {@code /resume <token> [lastSeq]} instead of a name takes them back and is sent
+ * the entries it missed.
+ * <p>
+ * A token is used once: the resumed session gets a new one. If the old connection still looks alive, e.g. a
+ * half-open socket the server has not noticed yet, it is disconnected in favour of the new one.
+ */
+public class SessionResumption {
+
+    static final String COMMAND = "/resume ";
+
+    private final long windowMillis;
+    private final int maxReplay;
+    private final TimerWheel timers;
+    private final SecureRandom random = new SecureRandom();
+    private final ConcurrentHashMap<String, Session> sessions = new ConcurrentHashMap<>();
+
+    public SessionResumption(ServerConfig config, TimerWheel timers) {
+        this.windowMillis = config.getLong("resumeWindowMillis", 300_000);
+        this.maxReplay = config.getInt("resumeMaxReplay", 5000);
+        this.timers = timers;
+    }
+
+    public boolean isEnabled() {
+        return windowMillis > 0;
+    }
+
+    /**
+     * Most entries a resumed session is sent; older missed ones are left to {@code /history}.
+     */
+    int getMaxReplay() {
+        return maxReplay;
+    }
+
+    public int size() {
+        return sessions.size();
+    }
+
+    /**
+     * A token for a session that just got its name.
+     *
+     * @param seenSequence the newest history entry the client has already been shown
+     * @return null if resuming is disabled
+     */
+    String issue(ClientHandler handler, long seenSequence) {
+        if (!isEnabled()) {
+            return null;
+        }
+        byte[] bytes = new byte[16];
+        random.nextBytes(bytes);
+        String token = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+        sessions.put(token, new Session(handler, seenSequence));
+        return token;
+    }
+
+    /**
+     * The session's connection is gone: keeps its name, colour and position until the window closes.
+     */
+    void park(String token, ClientHandler handler, String name, ConsoleColor color, long seenSequence) {
+        Session session = sessions.get(token);
+        if (session == null) {
+            return;
+        }
+        synchronized (session) {
+            if (session.handler != handler) {
+                return;
+            }
+            session.handler = null;
+            session.name = name;
+            session.color = color;
+            session.seenSequence = Math.max(session.seenSequence, seenSequence);
+            session.expiry = timers.schedule(() -> sessions.remove(token, session), windowMillis);
+        }
+    }
+
+    /**
+     * A session that left on purpose, by {@code /exit} or a kick, cannot be resumed.
+     */
+    void forget(String token) {
+        Session session = sessions.remove(token);
+        if (session != null) {
+            synchronized (session) {
+                if (session.expiry != null) {
+                    session.expiry.cancel();
+                }
+            }
+        }
+    }
+
+    /**
+     * Takes the session stored under {@code token} and forgets the token.
+     *
+     * @return null if the token is unknown or has expired
+     */
+    Session claim(String token) {
+        Session session = sessions.get(token);
+        if (session == null) {
+            return null;
+        }
+        ClientHandler stale;
+        synchronized (session) {
+            stale = session.handler;
+        }
+        if (stale != null) {
+            // parks the session through onDisconnect
+            stale.onDisconnect();
+        }
+        synchronized (session) {
+            if (session.handler != null || session.name == null || !sessions.remove(token, session)) {
+                return null;
+            }
+            session.expiry.cancel();
+            return session;
+        }
+    }
+
+    /**
+     * What a dropped session leaves behind. Guarded by its own monitor.
+     */
+    static final class Session {
+
+        private ClientHandler handler;
+        private String name;
+        private ConsoleColor color;
+        private long seenSequence;
+        private TimerWheel.Timeout expiry;
+
+        private Session(ClientHandler handler, long seenSequence) {
+            this.handler = handler;
+            this.seenSequence = seenSequence;
+        }
+
+        synchronized String getName() {
+            return name;
+        }
+
+        synchronized ConsoleColor getColor() {
+            return color;
+        }
+
+        synchronized long getSeenSequence() {
+            return seenSequence;
+        }
+    }
+}
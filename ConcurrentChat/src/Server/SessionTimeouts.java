@@ -0,0 +1,24 @@
+package Server;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How long a session may go without a name or without sending anything, read from the server configuration.
+ * A zero disables that timeout.
+ */
+public class SessionTimeouts {
+
+    final long handshakeNanos;
+    final long pingNanos;
+    final long idleNanos;
+
+    public SessionTimeouts(ServerConfig config) {
+        this.handshakeNanos = TimeUnit.MILLISECONDS.toNanos(config.getLong("handshakeTimeoutMillis", 30_000));
+        this.pingNanos = TimeUnit.MILLISECONDS.toNanos(config.getLong("pingIntervalMillis", 30_000));
+        this.idleNanos = TimeUnit.MILLISECONDS.toNanos(config.getLong("idleTimeoutMillis", 90_000));
+    }
+
+    boolean isEnabled() {
+        return handshakeNanos > 0 || pingNanos > 0 || idleNanos > 0;
+    }
+}
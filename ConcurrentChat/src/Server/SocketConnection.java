@@ -0,0 +1,137 @@
+package Server;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Blocking socket transport. Reads happen on the session thread; writes are drained from the client's
+ * {@link OutboundQueue} by a writer task that only exists while there is something to send. Neither
+ * path uses monitors, so virtual threads blocked here do not pin their carrier. History exports go
+ * straight from the journal files to the socket's channel.
+ */
+public class SocketConnection implements ClientConnection {
+
+    private static final int READ_BUFFER_SIZE = 8 * 1024;
+    private static final int WRITE_BUFFER_SIZE = 8 * 1024;
+
+    private final Socket socket;
+    private final InboundFramer framer;
+    private final SessionEncoder encoder = new SessionEncoder();
+    private final Executor writerExecutor;
+    private final AtomicBoolean writerScheduled = new AtomicBoolean();
+    private final ServerMetrics metrics;
+    private OutputStream outputStream;
+
+    public SocketConnection(Socket socket, int maxLineLength, Executor writerExecutor, ServerMetrics metrics) {
+        this.socket = socket;
+        this.metrics = metrics;
+        this.framer = new InboundFramer(maxLineLength);
+        this.writerExecutor = writerExecutor;
+    }
+
+    /**
+     * Reads until the stream ends or the socket is closed, handing each line to {@code lineConsumer}.
+     * {@code onBinary} runs if the client asks for the binary protocol.
+     *
+     * @return false if the peer sent a line longer than the limit
+     */
+    public boolean readLines(Consumer<String> lineConsumer, Runnable onBinary) throws IOException {
+        InputStream inputStream = socket.getInputStream();
+        byte[] bytes = new byte[READ_BUFFER_SIZE];
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        int read;
+        while (!socket.isClosed() && (read = inputStream.read(bytes)) != -1) {
+            metrics.recordBytesIn(read);
+            buffer.limit(read).position(0);
+            if (!framer.feed(buffer, lineConsumer, onBinary)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void signalWrite(OutboundQueue outbound) {
+        if (writerScheduled.compareAndSet(false, true)) {
+            try {
+                writerExecutor.execute(() -> drain(outbound));
+            } catch (RejectedExecutionException e) {
+                writerScheduled.set(false);
+            }
+        }
+    }
+
+    private void drain(OutboundQueue outbound) {
+        try {
+            if (outputStream == null) {
+                outputStream = new BufferedOutputStream(socket.getOutputStream(), WRITE_BUFFER_SIZE);
+            }
+            do {
+                Frame frame;
+                int frames = 0;
+                long bytes = 0;
+                while ((frame = outbound.poll()) != null) {
+                    HistoryExport export = frame.getExport();
+                    bytes += export != null ? export.writeTo(outputStream, socket.getChannel(), encoder.isBinary())
+                            : encoder.write(frame, outputStream);
+                    frames++;
+                }
+                outputStream.flush();
+                metrics.recordWritten(frames, bytes);
+                writerScheduled.set(false);
+            } while (!outbound.isEmpty() && writerScheduled.compareAndSet(false, true));
+        } catch (IOException e) {
+            outbound.clear();
+            writerScheduled.set(false);
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    @Override
+    public void flushAndClose(OutboundQueue outbound, long timeoutMillis) throws IOException {
+        awaitFlushed(outbound, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis));
+        close();
+    }
+
+    @Override
+    public boolean awaitFlushed(OutboundQueue outbound, long deadlineNanos) {
+        signalWrite(outbound);
+        while ((!outbound.isEmpty() || writerScheduled.get()) && System.nanoTime() < deadlineNanos && !socket.isClosed()) {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(5));
+        }
+        return outbound.isEmpty() && !writerScheduled.get();
+    }
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+
+    @Override
+    public boolean isClosed() {
+        return socket.isClosed();
+    }
+
+    @Override
+    public InetAddress getInetAddress() {
+        return socket.getInetAddress();
+    }
+
+    @Override
+    public int getPort() {
+        return socket.getPort();
+    }
+}
@@ -0,0 +1,253 @@
+package Server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Full TCP mesh. Every node dials every configured peer and uses that connection only to send; what a peer
+ * sends arrives on the connection the peer dialled. Both ends exchange a {@code HELLO} first so each side
+ * knows the other's node id. Lost outbound links are redialled every {@value #RECONNECT_MILLIS} ms.
+ * <p>
+ * Each outbound link has a bounded queue drained by its own virtual thread, which writes whatever has piled
+ * up before flushing, so a slow peer never blocks the thread that sends.
+ */
+public class TcpClusterTransport implements ClusterTransport {
+
+    private static final int MAX_FRAME_LENGTH = 1024 * 1024;
+    private static final int LINK_QUEUE_SIZE = 16 * 1024;
+    private static final long RECONNECT_MILLIS = 500;
+    private static final int CONNECT_TIMEOUT_MILLIS = 1000;
+    private static final long KEEPALIVE_MILLIS = 1000;
+
+    private final String nodeId;
+    private final int port;
+    private final List<InetSocketAddress> peerAddresses;
+    private final Logger logger;
+    private final ConcurrentHashMap<String, Link> links = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Socket> inbound = new ConcurrentHashMap<>();
+    private volatile boolean running = true;
+    private ServerSocket serverSocket;
+    private Listener listener;
+
+    public TcpClusterTransport(String nodeId, int port, List<InetSocketAddress> peerAddresses, Logger logger) {
+        this.nodeId = nodeId;
+        this.port = port;
+        this.peerAddresses = peerAddresses;
+        this.logger = logger;
+    }
+
+    /**
+     * Parses {@code host:port,host:port}. Listing the node itself is harmless; that link is dropped after the handshake.
+     */
+    public static List<InetSocketAddress> parsePeers(String peers) {
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        for (String peer : peers.split(",")) {
+            peer = peer.trim();
+            if (peer.isEmpty()) {
+                continue;
+            }
+            int colonIndex = peer.lastIndexOf(':');
+            if (colonIndex == -1) {
+                throw new IllegalArgumentException("Invalid cluster peer '" + peer + "', expected host:port");
+            }
+            addresses.add(InetSocketAddress.createUnresolved(peer.substring(0, colonIndex), Integer.parseInt(peer.substring(colonIndex + 1))));
+        }
+        return addresses;
+    }
+
+    @Override
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    @Override
+    public void start(Listener listener) {
+        this.listener = listener;
+        try {
+            serverSocket = new ServerSocket(port);
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to bind cluster port " + port, e);
+        }
+        Thread acceptor = new Thread(this::acceptLoop, "cluster-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        for (InetSocketAddress address : peerAddresses) {
+            Thread.ofVirtual().name("cluster-link-" + address.getHostString() + ":" + address.getPort()).start(() -> connectLoop(address));
+        }
+    }
+
+    @Override
+    public Set<String> peers() {
+        return links.keySet();
+    }
+
+    @Override
+    public void sendToAll(ClusterMessage message) {
+        if (links.isEmpty()) {
+            return;
+        }
+        byte[] encoded = message.encode();
+        for (Link link : links.values()) {
+            link.send(encoded);
+        }
+    }
+
+    @Override
+    public boolean sendTo(String peerId, ClusterMessage message) {
+        Link link = links.get(peerId);
+        return link != null && link.send(message.encode());
+    }
+
+    private void acceptLoop() {
+        while (running) {
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                Thread.ofVirtual().name("cluster-in").start(() -> readLoop(socket));
+            } catch (IOException e) {
+                if (running) {
+                    logger.log(Level.WARNING, "Cluster accept failed: {0}", e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Receives everything one peer sends. The peer counts as down only if this is still its newest connection.
+     */
+    private void readLoop(Socket socket) {
+        String peerId = null;
+        try (socket) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            ClusterMessage hello = ClusterMessage.read(in, MAX_FRAME_LENGTH);
+            if (hello.getType() != ClusterMessage.Type.HELLO) {
+                throw new IOException("Expected HELLO, got " + hello);
+            }
+            OutputStream out = socket.getOutputStream();
+            out.write(new ClusterMessage(ClusterMessage.Type.HELLO, nodeId).encode());
+            out.flush();
+            if (hello.getOrigin().equals(nodeId)) {
+                return;
+            }
+            peerId = hello.getOrigin();
+            Socket previous = inbound.put(peerId, socket);
+            if (previous != null) {
+                previous.close();
+            }
+            while (running) {
+                listener.onMessage(ClusterMessage.read(in, MAX_FRAME_LENGTH));
+            }
+        } catch (IOException e) {
+            if (running && peerId != null) {
+                logger.log(Level.INFO, "Cluster peer {0} disconnected: {1}", new Object[]{peerId, e.getMessage()});
+            }
+        } finally {
+            if (peerId != null && inbound.remove(peerId, socket)) {
+                listener.onPeerDown(peerId);
+            }
+        }
+    }
+
+    private void connectLoop(InetSocketAddress address) {
+        while (running) {
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress(address.getHostString(), address.getPort()), CONNECT_TIMEOUT_MILLIS);
+                socket.setTcpNoDelay(true);
+                OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+                out.write(new ClusterMessage(ClusterMessage.Type.HELLO, nodeId).encode());
+                out.flush();
+                ClusterMessage hello = ClusterMessage.read(new DataInputStream(socket.getInputStream()), MAX_FRAME_LENGTH);
+                if (hello.getOrigin().equals(nodeId)) {
+                    return;
+                }
+                Link link = new Link(hello.getOrigin(), socket, out);
+                links.put(link.peerId, link);
+                logger.log(Level.INFO, "Cluster link to {0} at {1} up", new Object[]{link.peerId, address});
+                listener.onPeerUp(link.peerId);
+                try {
+                    link.writeLoop();
+                } finally {
+                    links.remove(link.peerId, link);
+                }
+            } catch (IOException e) {
+                logger.log(Level.FINE, "Cluster link to {0} failed: {1}", new Object[]{address, e.getMessage()});
+            }
+            try {
+                Thread.sleep(RECONNECT_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        if (serverSocket != null) {
+            serverSocket.close();
+        }
+        for (Link link : links.values()) {
+            link.socket.close();
+        }
+        for (Socket socket : inbound.values()) {
+            socket.close();
+        }
+    }
+
+    private final class Link {
+        private final String peerId;
+        private final Socket socket;
+        private final OutputStream out;
+        private final ArrayBlockingQueue<byte[]> queue = new ArrayBlockingQueue<>(LINK_QUEUE_SIZE);
+
+        private Link(String peerId, Socket socket, OutputStream out) {
+            this.peerId = peerId;
+            this.socket = socket;
+            this.out = out;
+        }
+
+        private boolean send(byte[] encoded) {
+            if (queue.offer(encoded)) {
+                return true;
+            }
+            logger.log(Level.WARNING, "Cluster link to {0} is backed up, dropping {1,number,#} bytes", new Object[]{peerId, encoded.length});
+            return false;
+        }
+
+        /**
+         * Sends until the link fails. An idle link carries a {@code HELLO} every {@value #KEEPALIVE_MILLIS} ms
+         * so a dead peer is noticed without waiting for traffic.
+         */
+        private void writeLoop() throws IOException {
+            try {
+                byte[] keepalive = new ClusterMessage(ClusterMessage.Type.HELLO, nodeId).encode();
+                while (running && !socket.isClosed()) {
+                    byte[] encoded = queue.poll(KEEPALIVE_MILLIS, TimeUnit.MILLISECONDS);
+                    if (encoded == null) {
+                        encoded = keepalive;
+                    }
+                    do {
+                        out.write(encoded);
+                    } while ((encoded = queue.poll()) != null);
+                    out.flush();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
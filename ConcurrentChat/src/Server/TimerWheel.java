@@ -0,0 +1,224 @@
+package Server;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Hashed timer wheel: one thread serving every session timeout of the server. Time is cut into ticks of
+ * {@code tickMillis}; a timeout goes into the bucket of the tick it is due in, counted modulo the wheel size,
+ * with the number of full turns still to wait. Each tick the thread walks one bucket, so scheduling and
+ * cancelling are O(1) and the thread's work grows with the timeouts due, not with the timeouts pending.
+ * Timeouts fire up to one tick late.
+ * <p>
+ * Schedulers and cancellers only touch concurrent queues; the buckets belong to the wheel thread, which is
+ * started on the first {@link #schedule} and is a daemon. Tasks run on that thread and must be short: a task
+ * that blocks delays every timeout behind it.
+ */
+public final class TimerWheel {
+
+    private final String name;
+    private final long tickNanos;
+    private final int mask;
+    private final Logger logger;
+    private final Bucket[] wheel;
+    private final Queue<Timeout> added = new ConcurrentLinkedQueue<>();
+    private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<>();
+    private final long startNanos = System.nanoTime();
+    private volatile Thread worker;
+    private volatile boolean stopped;
+    private long tick;
+    private int pending;
+
+    /**
+     * @param wheelSize rounded up to a power of two; a turn should cover the common timeouts
+     */
+    public TimerWheel(String name, long tickMillis, int wheelSize, Logger logger) {
+        this.name = name;
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickMillis));
+        int size = Integer.highestOneBit(Math.max(2, wheelSize - 1)) << 1;
+        this.mask = size - 1;
+        this.logger = logger;
+        this.wheel = new Bucket[size];
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new Bucket();
+        }
+    }
+
+    /**
+     * Runs {@code task} on the wheel thread once {@code delayMillis} have passed.
+     */
+    public Timeout schedule(Runnable task, long delayMillis) {
+        Timeout timeout = new Timeout(this, task, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delayMillis)));
+        added.add(timeout);
+        if (worker == null) {
+            start();
+        }
+        return timeout;
+    }
+
+    private synchronized void start() {
+        if (worker == null && !stopped) {
+            worker = Thread.ofPlatform().name(name).daemon().start(this::run);
+        }
+    }
+
+    /**
+     * Stops the wheel thread; timeouts still pending never fire.
+     */
+    public void stop() {
+        stopped = true;
+        Thread current = worker;
+        if (current != null) {
+            LockSupport.unpark(current);
+        }
+    }
+
+    /**
+     * Timeouts the wheel thread has placed in buckets and not yet fired or dropped. Approximate.
+     */
+    public int pending() {
+        return pending + added.size();
+    }
+
+    private void run() {
+        while (!stopped) {
+            long deadline = startNanos + (tick + 1) * tickNanos;
+            long wait;
+            while ((wait = deadline - System.nanoTime()) > 0 && !stopped) {
+                LockSupport.parkNanos(this, wait);
+            }
+            removeCancelled();
+            transferAdded();
+            expire(wheel[(int) (tick & mask)]);
+            tick++;
+        }
+    }
+
+    private void transferAdded() {
+        Timeout timeout;
+        while ((timeout = added.poll()) != null) {
+            if (timeout.state != Timeout.PENDING) {
+                continue;
+            }
+            // the tick at whose end the deadline has passed; never one already walked
+            long due = Math.max(tick, (timeout.deadlineNanos - startNanos + tickNanos - 1) / tickNanos - 1);
+            timeout.rounds = (due - tick) / wheel.length;
+            wheel[(int) (due & mask)].add(timeout);
+            pending++;
+        }
+    }
+
+    private void removeCancelled() {
+        Timeout timeout;
+        while ((timeout = cancelled.poll()) != null) {
+            if (timeout.bucket != null) {
+                timeout.bucket.remove(timeout);
+                pending--;
+            }
+        }
+    }
+
+    private void expire(Bucket bucket) {
+        Timeout timeout = bucket.head;
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            if (timeout.rounds > 0) {
+                timeout.rounds--;
+            } else {
+                bucket.remove(timeout);
+                pending--;
+                if (Timeout.STATE.compareAndSet(timeout, Timeout.PENDING, Timeout.EXPIRED)) {
+                    try {
+                        timeout.task.run();
+                    } catch (RuntimeException e) {
+                        logger.log(Level.WARNING, e, () -> "Timer task failed: " + e.getMessage());
+                    }
+                }
+            }
+            timeout = next;
+        }
+    }
+
+    /**
+     * Doubly linked list of the timeouts due in one slot, touched by the wheel thread only.
+     */
+    private static final class Bucket {
+
+        private Timeout head;
+        private Timeout tail;
+
+        void add(Timeout timeout) {
+            timeout.bucket = this;
+            timeout.previous = tail;
+            timeout.next = null;
+            if (tail == null) {
+                head = timeout;
+            } else {
+                tail.next = timeout;
+            }
+            tail = timeout;
+        }
+
+        void remove(Timeout timeout) {
+            if (timeout.previous != null) {
+                timeout.previous.next = timeout.next;
+            } else {
+                head = timeout.next;
+            }
+            if (timeout.next != null) {
+                timeout.next.previous = timeout.previous;
+            } else {
+                tail = timeout.previous;
+            }
+            timeout.previous = null;
+            timeout.next = null;
+            timeout.bucket = null;
+        }
+    }
+
+    /**
+     * A scheduled task. Fires at most once.
+     */
+    public static final class Timeout {
+
+        private static final int PENDING = 0;
+        private static final int CANCELLED = 1;
+        private static final int EXPIRED = 2;
+        private static final AtomicIntegerFieldUpdater<Timeout> STATE = AtomicIntegerFieldUpdater.newUpdater(Timeout.class, "state");
+
+        private final TimerWheel wheel;
+        private final Runnable task;
+        private final long deadlineNanos;
+        private volatile int state;
+        private long rounds;
+        private Bucket bucket;
+        private Timeout previous;
+        private Timeout next;
+
+        private Timeout(TimerWheel wheel, Runnable task, long deadlineNanos) {
+            this.wheel = wheel;
+            this.task = task;
+            this.deadlineNanos = deadlineNanos;
+        }
+
+        /**
+         * @return false if the task already ran or was cancelled before
+         */
+        public boolean cancel() {
+            if (!STATE.compareAndSet(this, PENDING, CANCELLED)) {
+                return false;
+            }
+            wheel.cancelled.add(this);
+            return true;
+        }
+
+        public boolean isExpired() {
+            return state == EXPIRED;
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package Server;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+
+/**
+ * Formats journal timestamps, reusing the previous result while the second has not changed.
+ * Not thread-safe: each writer thread owns its own instance.
+ */
+public class TimestampCache {
+
+    public static final DateTimeFormatter FORMAT = DateTimeFormatter.ofPattern("dd MMM yyyy HH:mm:ss");
+
+    private final ZoneId zone = ZoneId.systemDefault();
+    private long cachedSecond = Long.MIN_VALUE;
+    private String cachedText;
+
+    public String format(long epochMillis) {
+        long second = Math.floorDiv(epochMillis, 1000);
+        if (second != cachedSecond) {
+            cachedText = LocalDateTime.ofInstant(Instant.ofEpochSecond(second), zone).format(FORMAT);
+            cachedSecond = second;
+        }
+        return cachedText;
+    }
+
+    /**
+     * Reads a point in time for history queries: an age such as {@code 30s}, {@code 15m}, {@code 2h} or
+     * {@code 1d}; a time today, {@code HH:mm[:ss]}; a day, {@code yyyy-MM-dd}; or a day and time,
+     * {@code yyyy-MM-dd HH:mm[:ss]} or in the journal's own format. Local times use the system zone.
+     *
+     * @return epoch milliseconds, or -1 if {@code text} is none of these
+     */
+    public static long parseSince(String text, long nowMillis) {
+        text = text.trim();
+        ZoneId zone = ZoneId.systemDefault();
+        try {
+            if (text.length() > 1 && text.chars().limit(text.length() - 1).allMatch(Character::isDigit)) {
+                long amount = Long.parseLong(text.substring(0, text.length() - 1));
+                long unitMillis;
+                switch (text.charAt(text.length() - 1)) {
+                    case 's':
+                        unitMillis = 1000;
+                        break;
+                    case 'm':
+                        unitMillis = 60_000;
+                        break;
+                    case 'h':
+                        unitMillis = 3_600_000;
+                        break;
+                    case 'd':
+                        unitMillis = 86_400_000;
+                        break;
+                    default:
+                        return -1;
+                }
+                return Math.max(0, nowMillis - amount * unitMillis);
+            }
+            if (text.length() <= 8 && text.indexOf(':') != -1) {
+                LocalDate today = LocalDate.ofInstant(Instant.ofEpochMilli(nowMillis), zone);
+                return LocalTime.parse(text).atDate(today).atZone(zone).toInstant().toEpochMilli();
+            }
+            if (text.length() == 10) {
+                return LocalDate.parse(text).atStartOfDay(zone).toInstant().toEpochMilli();
+            }
+            if (text.length() >= 16 && text.charAt(4) == '-') {
+                return LocalDateTime.parse(text.replace(' ', 'T')).atZone(zone).toInstant().toEpochMilli();
+            }
+            return LocalDateTime.parse(text, FORMAT).atZone(zone).toInstant().toEpochMilli();
+        } catch (DateTimeParseException | NumberFormatException e) {
+            return -1;
+        }
+    }
+}
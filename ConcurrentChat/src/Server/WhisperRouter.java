@@ -0,0 +1,237 @@
+package Server;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * Delivers a whisper to every recipient of a {@link RecipientList} in one pass: each name is looked up once
+ * by its normalized key, and all local recipients are handed the same frame, so a whisper to a group of a
+ * thousand is formatted and encoded once. Names held on other cluster nodes get one shared line.
+ * <p>
+ * Groups are named sets of user names, managed from the admin console and kept in {@code groupsFile} as
+ * {@code group: name, name} lines. Members need not be online; those who are not are skipped.
+ */
+public class WhisperRouter {
+
+    private static final Pattern VALID_GROUP = Pattern.compile("[A-Za-z0-9_-]{1,32}");
+
+    private final ClientRegistry clients;
+    /** Null unless the server is clustered. */
+    private volatile Cluster cluster;
+    private final Path groupsFile;
+    private final Logger logger;
+    private final ConcurrentHashMap<String, Set<String>> groups = new ConcurrentHashMap<>();
+
+    public WhisperRouter(ClientRegistry clients, ServerConfig config, Logger logger) {
+        this.clients = clients;
+        String fileName = config.getString("groupsFile", "logs/groups.txt");
+        this.groupsFile = fileName.isEmpty() ? null : Path.of(fileName);
+        this.logger = logger;
+        loadGroups();
+    }
+
+    /**
+     * Routes whispers to names this node does not hold through {@code cluster}, once the server has joined one.
+     */
+    void setCluster(Cluster cluster) {
+        this.cluster = cluster;
+    }
+
+    /**
+     * Strips leading {@code @}s and lower-cases the name.
+     *
+     * @return the group key, or null if the name is not allowed
+     */
+    public static String groupKey(String name) {
+        String trimmed = name.trim();
+        int start = 0;
+        while (start < trimmed.length() && trimmed.charAt(start) == '@') {
+            start++;
+        }
+        String bare = trimmed.substring(start);
+        return VALID_GROUP.matcher(bare).matches() ? bare.toLowerCase(Locale.ROOT) : null;
+    }
+
+    /**
+     * Sends {@code frame} to each local recipient and {@code remoteLine} to recipients on other nodes, at
+     * most once each. A group sender is left out of its own group's fan-out.
+     *
+     * @return the names and groups that matched nobody, as typed; empty if every one was found
+     */
+    List<String> deliver(RecipientList recipients, Frame frame, String remoteLine, ClientHandler sender) {
+        String senderKey = sender != null ? clients.nameOf(sender) : null;
+        // a single name or group cannot repeat a recipient
+        Set<String> delivered = recipients.size() > 1 ? new HashSet<>() : null;
+        List<String> missing = Collections.emptyList();
+        for (int i = 0; i < recipients.size(); i++) {
+            String key = recipients.key(i);
+            boolean found;
+            if (recipients.isGroup(i)) {
+                Set<String> members = groups.get(key);
+                found = members != null;
+                if (found) {
+                    for (String member : members) {
+                        if (!member.equals(senderKey)) {
+                            send(member, frame, remoteLine, delivered);
+                        }
+                    }
+                }
+            } else {
+                found = send(key, frame, remoteLine, delivered);
+            }
+            if (!found) {
+                if (missing.isEmpty()) {
+                    missing = new ArrayList<>();
+                }
+                missing.add(recipients.isGroup(i) ? "@" + recipients.name(i) : recipients.name(i));
+            }
+        }
+        return missing;
+    }
+
+    private boolean send(String key, Frame frame, String remoteLine, Set<String> delivered) {
+        if (delivered != null && delivered.contains(key)) {
+            return true;
+        }
+        ClientHandler recipient = clients.findByKey(key);
+        boolean sent;
+        if (recipient != null) {
+            recipient.sendFrame(frame);
+            sent = true;
+        } else {
+            Cluster cluster = this.cluster;
+            sent = cluster != null && cluster.routeWhisper(key, remoteLine);
+        }
+        if (sent && delivered != null) {
+            delivered.add(key);
+        }
+        return sent;
+    }
+
+    // ---- groups ----
+
+    /**
+     * @return how many of {@code names} were not members yet
+     */
+    public int addMembers(String group, List<String> names) {
+        int[] added = {0};
+        groups.compute(group, (key, members) -> {
+            Set<String> next = members != null ? members : ConcurrentHashMap.newKeySet();
+            for (String name : names) {
+                if (next.add(ClientRegistry.normalize(name))) {
+                    added[0]++;
+                }
+            }
+            return next.isEmpty() ? null : next;
+        });
+        if (added[0] > 0) {
+            saveGroups();
+        }
+        return added[0];
+    }
+
+    /**
+     * Removes the names; a group left empty is deleted.
+     *
+     * @return how many of {@code names} were members
+     */
+    public int removeMembers(String group, List<String> names) {
+        int[] removed = {0};
+        groups.computeIfPresent(group, (key, members) -> {
+            for (String name : names) {
+                if (members.remove(ClientRegistry.normalize(name))) {
+                    removed[0]++;
+                }
+            }
+            return members.isEmpty() ? null : members;
+        });
+        if (removed[0] > 0) {
+            saveGroups();
+        }
+        return removed[0];
+    }
+
+    /**
+     * @return the members sorted, or null if there is no such group
+     */
+    public List<String> members(String group) {
+        Set<String> members = groups.get(group);
+        if (members == null) {
+            return null;
+        }
+        List<String> sorted = new ArrayList<>(members);
+        Collections.sort(sorted);
+        return sorted;
+    }
+
+    /**
+     * Group sizes by name, sorted.
+     */
+    public Map<String, Integer> groups() {
+        Map<String, Integer> sizes = new TreeMap<>();
+        groups.forEach((group, members) -> sizes.put(group, members.size()));
+        return sizes;
+    }
+
+    private void loadGroups() {
+        if (groupsFile == null || !Files.exists(groupsFile)) {
+            return;
+        }
+        try {
+            for (String line : Files.readAllLines(groupsFile, StandardCharsets.UTF_8)) {
+                int colon = line.indexOf(':');
+                String group = colon > 0 && !line.startsWith("#") ? groupKey(line.substring(0, colon)) : null;
+                if (group == null) {
+                    if (!line.isBlank() && !line.startsWith("#")) {
+                        logger.log(Level.WARNING, "Ignoring invalid line in {0}: {1}", new Object[]{groupsFile, line});
+                    }
+                    continue;
+                }
+                Set<String> members = groups.computeIfAbsent(group, key -> ConcurrentHashMap.newKeySet());
+                for (String name : line.substring(colon + 1).split(",")) {
+                    if (!name.isBlank()) {
+                        members.add(ClientRegistry.normalize(name));
+                    }
+                }
+            }
+            logger.log(Level.INFO, "Loaded {0} whisper groups from {1}", new Object[]{groups.size(), groupsFile});
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Unable to read whisper groups {0}: {1}", new Object[]{groupsFile, e.getMessage()});
+        }
+    }
+
+    private synchronized void saveGroups() {
+        if (groupsFile == null) {
+            return;
+        }
+        List<String> lines = new ArrayList<>();
+        for (Map.Entry<String, Integer> group : groups().entrySet()) {
+            List<String> members = members(group.getKey());
+            if (members != null) {
+                lines.add(group.getKey() + ": " + String.join(", ", members));
+            }
+        }
+        try {
+            if (groupsFile.getParent() != null) {
+                Files.createDirectories(groupsFile.getParent());
+            }
+            Files.write(groupsFile, lines, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Unable to save whisper groups {0}: {1}", new Object[]{groupsFile, e.getMessage()});
+        }
+    }
+}
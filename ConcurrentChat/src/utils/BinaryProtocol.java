@@ -0,0 +1,96 @@
+package utils;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Constants and varint helpers for the binary wire protocol.
+ * <p>
+ * A client asks for it by sending {@link #MAGIC} as its very first byte. Everything the server sent before it
+ * saw the request is plain text; the server then sends {@link #MAGIC} itself and only binary frames after it.
+ * Clients that start with anything else keep the newline protocol.
+ * <p>
+ * A frame is {@code varint length, type byte, body}, where length counts the type byte and the body. Text is
+ * UTF-8 and runs to the end of the frame. Bodies by type:
+ * <pre>
+ * USER     varint senderId, byte color, name      introduces a sender once per connection
+ * CHAT     varint senderId, text
+ * WHISPER  varint senderId, text
+ * CHANNEL  varint senderId, varint length + channel name, text
+ * SYSTEM   byte color, text
+ * HISTORY  text, one entry per line
+ * LINE     text that may hold ANSI colour codes, e.g. relayed from another cluster node
+ * PING     no body: the server checks the client is alive, clients answer with the input line /pong
+ * INPUT    text: one line typed by the user (client to server)
+ * </pre>
+ * Colours are {@link ConsoleColor} ordinals.
+ */
+public final class BinaryProtocol {
+
+    public static final int MAGIC = 0x00;
+
+    public static final byte USER = 1;
+    public static final byte CHAT = 2;
+    public static final byte WHISPER = 3;
+    public static final byte CHANNEL = 4;
+    public static final byte SYSTEM = 5;
+    public static final byte HISTORY = 6;
+    public static final byte LINE = 7;
+    public static final byte PING = 8;
+    public static final byte INPUT = 16;
+
+    private BinaryProtocol() {
+    }
+
+    public static int varintSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    /**
+     * @return the offset after the written varint
+     */
+    public static int putVarint(byte[] bytes, int offset, int value) {
+        while ((value & ~0x7F) != 0) {
+            bytes[offset++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        bytes[offset++] = (byte) value;
+        return offset;
+    }
+
+    public static void writeVarint(OutputStream outputStream, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            outputStream.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        outputStream.write(value);
+    }
+
+    /**
+     * @return the value, or -1 if the stream ended before the first byte
+     */
+    public static int readVarint(InputStream inputStream) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = inputStream.read();
+            if (b == -1) {
+                if (shift == 0) {
+                    return -1;
+                }
+                throw new EOFException("Stream ended inside a varint");
+            }
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Varint too long");
+    }
+}